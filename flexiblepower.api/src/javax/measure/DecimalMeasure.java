@@ -155,7 +155,7 @@ public class DecimalMeasure<Q extends Quantity> extends Measure<BigDecimal, Q> {
         if ((unit == this.unit) || (unit.equals(this.unit))) {
             return this;
         }
-        UnitConverter cvtr = this.unit.getConverterTo(unit);
+        UnitConverter cvtr = converterOf(this.unit, unit);
         if (cvtr instanceof RationalConverter) {
             RationalConverter factor = (RationalConverter) cvtr;
             BigDecimal dividend = BigDecimal.valueOf(factor.getDividend());
@@ -184,7 +184,7 @@ public class DecimalMeasure<Q extends Quantity> extends Measure<BigDecimal, Q> {
         if ((unit == this.unit) || (unit.equals(this.unit))) {
             return this.value.doubleValue();
         }
-        return this.unit.getConverterTo(unit).convert(this.value.doubleValue());
+        return converterOf(this.unit, unit).convert(this.value.doubleValue());
     }
 
     @Override
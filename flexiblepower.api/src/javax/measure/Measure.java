@@ -10,9 +10,11 @@ package javax.measure;
 
 import java.io.Serializable;
 
+import javax.measure.converter.UnitConverter;
 import javax.measure.quantity.Quantity;
 import javax.measure.unit.CompoundUnit;
 import javax.measure.unit.Unit;
+import javax.measure.unit.UnitConversionTable;
 
 /**
  * <p>
@@ -250,6 +252,22 @@ public abstract class Measure<V, Q extends Quantity> implements Measurable<Q>, S
         return java.lang.Double.compare(doubleValue(getUnit()), that.doubleValue(getUnit()));
     }
 
+    /**
+     * Returns the converter between the specified units. The {@link UnitConversionTable#getDefault() default
+     * conversion table} is consulted first, the generic {@link Unit#getConverterTo(Unit)} is used for units that are
+     * not in the table.
+     *
+     * @param from
+     *            the source unit.
+     * @param to
+     *            the target unit.
+     * @return the converter from <code>from</code> to <code>to</code>.
+     */
+    static UnitConverter converterOf(Unit<?> from, Unit<?> to) {
+        UnitConverter cvtr = UnitConversionTable.getDefault().getConverter(from, to);
+        return cvtr != null ? cvtr : from.getConverterTo(to);
+    }
+
     /**
      * Holds scalar implementation for <code>double</code> values.
      */
@@ -292,7 +310,7 @@ public abstract class Measure<V, Q extends Quantity> implements Measurable<Q>, S
             if ((unit == this.unit) || (unit.equals(this.unit))) {
                 return this.value;
             }
-            return this.unit.getConverterTo(unit).convert(this.value);
+            return converterOf(this.unit, unit).convert(this.value);
         }
 
         private static final long serialVersionUID = 1L;
@@ -340,7 +358,7 @@ public abstract class Measure<V, Q extends Quantity> implements Measurable<Q>, S
             if ((unit == this.unit) || (unit.equals(this.unit))) {
                 return this.value;
             }
-            return this.unit.getConverterTo(unit).convert(this.value);
+            return converterOf(this.unit, unit).convert(this.value);
         }
 
         @Override
@@ -397,7 +415,7 @@ public abstract class Measure<V, Q extends Quantity> implements Measurable<Q>, S
             if ((unit == this.unit) || (unit.equals(this.unit))) {
                 return this.value;
             }
-            return this.unit.getConverterTo(unit).convert(this.value);
+            return converterOf(this.unit, unit).convert(this.value);
         }
 
         private static final long serialVersionUID = 1L;
@@ -445,7 +463,7 @@ public abstract class Measure<V, Q extends Quantity> implements Measurable<Q>, S
             if ((unit == this.unit) || (unit.equals(this.unit))) {
                 return this.value;
             }
-            return this.unit.getConverterTo(unit).convert(this.value);
+            return converterOf(this.unit, unit).convert(this.value);
         }
 
         @Override
@@ -27,6 +27,11 @@ public final class AddConverter extends UnitConverter {
      */
     private final double offset;
 
+    /**
+     * Holds the inverse of this converter, created on first use.
+     */
+    private transient volatile AddConverter inverse;
+
     /**
      * Creates an add converter with the specified offset.
      * 
@@ -42,6 +47,11 @@ public final class AddConverter extends UnitConverter {
         this.offset = offset;
     }
 
+    private AddConverter(double offset, AddConverter inverse) {
+        this(offset);
+        this.inverse = inverse;
+    }
+
     /**
      * Returns the offset value for this add converter.
      * 
@@ -53,7 +63,12 @@ public final class AddConverter extends UnitConverter {
 
     @Override
     public UnitConverter inverse() {
-        return new AddConverter(-offset);
+        AddConverter result = inverse;
+        if (result == null) {
+            result = new AddConverter(-offset, this);
+            inverse = result;
+        }
+        return result;
     }
 
     @Override
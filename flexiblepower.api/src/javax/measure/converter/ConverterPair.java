@@ -0,0 +1,99 @@
+package javax.measure.converter;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * This class holds the converters in both directions between two units, as obtained with a single lookup through
+ * {@link javax.measure.unit.Unit#getConverterPairTo(javax.measure.unit.Unit) Unit.getConverterPairTo(Unit)}. This is
+ * useful for code that converts values back and forth, for example kW in a request and W in the response.
+ * </p>
+ *
+ * <p>
+ * Instances of this class are immutable.
+ * </p>
+ */
+public final class ConverterPair implements Serializable {
+
+    /**
+     * Holds the converter from the source unit to the target unit.
+     */
+    private final UnitConverter forward;
+
+    /**
+     * Holds the converter from the target unit back to the source unit.
+     */
+    private final UnitConverter backward;
+
+    /**
+     * Holds the reversed pair, created on first use.
+     */
+    private transient volatile ConverterPair reverse;
+
+    private ConverterPair(UnitConverter forward, UnitConverter backward) {
+        this.forward = forward;
+        this.backward = backward;
+    }
+
+    /**
+     * Returns the pair for the specified converter and its {@link UnitConverter#inverse() inverse}.
+     *
+     * @param forward
+     *            the converter from the source unit to the target unit.
+     * @return the corresponding converter pair.
+     */
+    public static ConverterPair valueOf(UnitConverter forward) {
+        return new ConverterPair(forward, forward.inverse());
+    }
+
+    /**
+     * Returns the converter from the source unit to the target unit.
+     *
+     * @return the forward converter.
+     */
+    public UnitConverter forward() {
+        return forward;
+    }
+
+    /**
+     * Returns the converter from the target unit back to the source unit.
+     *
+     * @return <code>forward().inverse()</code>
+     */
+    public UnitConverter backward() {
+        return backward;
+    }
+
+    /**
+     * Returns the pair with both directions swapped.
+     *
+     * @return the pair converting from the target unit to the source unit.
+     */
+    public ConverterPair reverse() {
+        ConverterPair result = reverse;
+        if (result == null) {
+            result = new ConverterPair(backward, forward);
+            result.reverse = this;
+            reverse = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ConverterPair)) {
+            return false;
+        }
+        return forward.equals(((ConverterPair) obj).forward);
+    }
+
+    @Override
+    public int hashCode() {
+        return forward.hashCode();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -28,6 +28,11 @@ public final class MultiplyConverter extends UnitConverter {
      */
     private final double factor;
 
+    /**
+     * Holds the inverse of this converter, created on first use.
+     */
+    private transient volatile MultiplyConverter inverse;
+
     /**
      * Creates a multiply converter with the specified scale factor.
      * 
@@ -43,6 +48,11 @@ public final class MultiplyConverter extends UnitConverter {
         this.factor = factor;
     }
 
+    private MultiplyConverter(double factor, MultiplyConverter inverse) {
+        this(factor);
+        this.inverse = inverse;
+    }
+
     /**
      * Returns the scale factor.
      * 
@@ -54,7 +64,12 @@ public final class MultiplyConverter extends UnitConverter {
 
     @Override
     public UnitConverter inverse() {
-        return new MultiplyConverter(1.0 / factor);
+        MultiplyConverter result = inverse;
+        if (result == null) {
+            result = new MultiplyConverter(1.0 / factor, this);
+            inverse = result;
+        }
+        return result;
     }
 
     @Override
@@ -33,6 +33,11 @@ public final class RationalConverter extends UnitConverter {
      */
     private final long divisor;
 
+    /**
+     * Holds the inverse of this converter, created on first use.
+     */
+    private transient volatile RationalConverter inverse;
+
     /**
      * Creates a rational converter with the specified dividend and divisor.
      * 
@@ -56,6 +61,11 @@ public final class RationalConverter extends UnitConverter {
         this.divisor = divisor;
     }
 
+    private RationalConverter(long dividend, long divisor, RationalConverter inverse) {
+        this(dividend, divisor);
+        this.inverse = inverse;
+    }
+
     /**
      * Returns the dividend for this rational converter.
      * 
@@ -76,7 +86,13 @@ public final class RationalConverter extends UnitConverter {
 
     @Override
     public UnitConverter inverse() {
-        return dividend < 0 ? new RationalConverter(-divisor, -dividend) : new RationalConverter(divisor, dividend);
+        RationalConverter result = inverse;
+        if (result == null) {
+            result = dividend < 0 ? new RationalConverter(-divisor, -dividend, this)
+                                 : new RationalConverter(divisor, dividend, this);
+            inverse = result;
+        }
+        return result;
     }
 
     @Override
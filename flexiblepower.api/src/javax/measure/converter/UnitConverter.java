@@ -45,6 +45,11 @@ public abstract class UnitConverter implements Serializable {
      * Returns the inverse of this converter. If <code>x</code> is a valid value, then
      * <code>x == inverse().convert(convert(x))</code> to within the accuracy of computer arithmetic.
      * 
+     * <p>
+     * The converters of this package compute their inverse only once, so that <code>inverse().inverse()</code> returns
+     * this converter itself.
+     * </p>
+     * 
      * @return the inverse of this converter.
      */
     public abstract UnitConverter inverse();
@@ -159,6 +164,11 @@ public abstract class UnitConverter implements Serializable {
          */
         private final UnitConverter second;
 
+        /**
+         * Holds the inverse of this converter, created on first use.
+         */
+        private transient volatile Compound inverse;
+
         /**
          * Creates a compound converter resulting from the combined transformation of the specified converters.
          * 
@@ -172,9 +182,19 @@ public abstract class UnitConverter implements Serializable {
             this.second = second;
         }
 
+        private Compound(UnitConverter first, UnitConverter second, Compound inverse) {
+            this(first, second);
+            this.inverse = inverse;
+        }
+
         @Override
         public UnitConverter inverse() {
-            return new Compound(second.inverse(), first.inverse());
+            Compound result = inverse;
+            if (result == null) {
+                result = new Compound(second.inverse(), first.inverse(), this);
+                inverse = result;
+            }
+            return result;
         }
 
         @Override
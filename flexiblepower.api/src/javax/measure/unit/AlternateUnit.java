@@ -55,20 +55,17 @@ public final class AlternateUnit<Q extends Quantity> extends DerivedUnit<Q> {
         this.symbol = symbol;
         this.parent = parent;
         // Checks if the symbol is associated to a different unit.
-        synchronized (Unit.SYMBOL_TO_UNIT) {
-            Unit<?> unit = Unit.SYMBOL_TO_UNIT.get(symbol);
-            if (unit == null) {
-                Unit.SYMBOL_TO_UNIT.put(symbol, this);
-                return;
-            }
-            if (unit instanceof AlternateUnit) {
-                AlternateUnit<?> existingUnit = (AlternateUnit<?>) unit;
-                if (symbol.equals(existingUnit.symbol) && this.parent.equals(existingUnit.parent)) {
-                    return; // OK, same unit.
-                }
+        Unit<?> unit = Unit.SYMBOL_TO_UNIT.putIfAbsent(symbol, this);
+        if (unit == null) {
+            return;
+        }
+        if (unit instanceof AlternateUnit) {
+            AlternateUnit<?> existingUnit = (AlternateUnit<?>) unit;
+            if (symbol.equals(existingUnit.symbol) && this.parent.equals(existingUnit.parent)) {
+                return; // OK, same unit.
             }
-            throw new IllegalArgumentException("Symbol " + symbol + " is associated to a different unit");
         }
+        throw new IllegalArgumentException("Symbol " + symbol + " is associated to a different unit");
     }
 
     /**
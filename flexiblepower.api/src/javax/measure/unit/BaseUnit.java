@@ -56,15 +56,9 @@ public class BaseUnit<Q extends Quantity> extends Unit<Q> {
     public BaseUnit(String symbol) {
         this.symbol = symbol;
         // Checks if the symbol is associated to a different unit.
-        synchronized (Unit.SYMBOL_TO_UNIT) {
-            Unit<?> unit = Unit.SYMBOL_TO_UNIT.get(symbol);
-            if (unit == null) {
-                Unit.SYMBOL_TO_UNIT.put(symbol, this);
-                return;
-            }
-            if (!(unit instanceof BaseUnit)) {
-                throw new IllegalArgumentException("Symbol " + symbol + " is associated to a different unit");
-            }
+        Unit<?> unit = Unit.SYMBOL_TO_UNIT.putIfAbsent(symbol, this);
+        if ((unit != null) && !(unit instanceof BaseUnit)) {
+            throw new IllegalArgumentException("Symbol " + symbol + " is associated to a different unit");
         }
     }
 
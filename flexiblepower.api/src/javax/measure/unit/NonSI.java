@@ -34,6 +34,7 @@ import static javax.measure.unit.SI.TESLA;
 import static javax.measure.unit.SI.WATT;
 import static javax.measure.unit.SI.WEBER;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -83,9 +84,15 @@ import javax.measure.quantity.VolumetricFlowRate;
 public final class NonSI extends SystemOfUnits {
 
     /**
-     * Holds collection of NonSI units.
+     * Holds collection of NonSI units, in order of definition.
      */
-    private static HashSet<Unit<?>> units = new HashSet<Unit<?>>();
+    private static final ArrayList<Unit<?>> units = new ArrayList<Unit<?>>();
+
+    /**
+     * Holds the read only set view of {@link #units}. It is only created when {@link #getUnits()} is first called, so
+     * that class initialization does not have to hash every unit.
+     */
+    private static volatile Set<Unit<?>> unitsView;
 
     /**
      * Holds the standard gravity constant: 9.80665 m/s² exact.
@@ -736,7 +743,12 @@ public final class NonSI extends SystemOfUnits {
      */
     @Override
     public Set<Unit<?>> getUnits() {
-        return Collections.unmodifiableSet(units);
+        Set<Unit<?>> view = unitsView;
+        if (view == null) {
+            view = Collections.unmodifiableSet(new HashSet<Unit<?>>(units));
+            unitsView = view;
+        }
+        return view;
     }
 
     /**
@@ -8,6 +8,7 @@
  */
 package javax.measure.unit;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -70,9 +71,15 @@ import javax.measure.quantity.Volume;
 public final class SI extends SystemOfUnits {
 
     /**
-     * Holds collection of SI units.
+     * Holds collection of SI units, in order of definition.
      */
-    private static HashSet<Unit<?>> units = new HashSet<Unit<?>>();
+    private static final ArrayList<Unit<?>> units = new ArrayList<Unit<?>>();
+
+    /**
+     * Holds the read only set view of {@link #units}. It is only created when {@link #getUnits()} is first called, so
+     * that class initialization does not have to hash every unit.
+     */
+    private static volatile Set<Unit<?>> unitsView;
 
     /**
      * Default constructor (prevents this class from being instantiated).
@@ -622,7 +629,12 @@ public final class SI extends SystemOfUnits {
      */
     @Override
     public Set<Unit<?>> getUnits() {
-        return Collections.unmodifiableSet(units);
+        Set<Unit<?>> view = unitsView;
+        if (view == null) {
+            view = Collections.unmodifiableSet(new HashSet<Unit<?>>(units));
+            unitsView = view;
+        }
+        return view;
     }
 
     /**
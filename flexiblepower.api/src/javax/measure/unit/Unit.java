@@ -11,11 +11,12 @@ package javax.measure.unit;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.text.ParsePosition;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.measure.MeasureFormat;
 import javax.measure.converter.AddConverter;
 import javax.measure.converter.ConversionException;
+import javax.measure.converter.ConverterPair;
 import javax.measure.converter.MultiplyConverter;
 import javax.measure.converter.RationalConverter;
 import javax.measure.converter.UnitConverter;
@@ -57,9 +58,10 @@ public abstract class Unit<Q extends Quantity> implements Serializable {
     public static final Unit<Dimensionless> ONE = new ProductUnit<Dimensionless>();
 
     /**
-     * Holds the unique symbols collection (base unit or alternate units).
+     * Holds the unique symbols collection (base unit or alternate units). This map is read without locking by the
+     * {@link UnitFormat} when parsing.
      */
-    static final HashMap<String, Unit<?>> SYMBOL_TO_UNIT = new HashMap<String, Unit<?>>();
+    static final ConcurrentHashMap<String, Unit<?>> SYMBOL_TO_UNIT = new ConcurrentHashMap<String, Unit<?>>();
 
     /**
      * Default constructor.
@@ -226,6 +228,20 @@ public abstract class Unit<Q extends Quantity> implements Serializable {
         return thatTransform.inverse().concatenate(thisTransform);
     }
 
+    /**
+     * Returns the converters of numeric values between this unit and another unit in both directions, using a single
+     * lookup. The backward converter is the (cached) inverse of the forward converter.
+     *
+     * @param that
+     *            the unit to which the forward converter converts the numeric values.
+     * @return the converters from this unit to <code>that</code> unit and back.
+     * @throws ConversionException
+     *             if the conveter cannot be constructed (e.g. <code>!this.isCompatible(that)</code>).
+     */
+    public final ConverterPair getConverterPairTo(Unit<?> that) throws ConversionException {
+        return ConverterPair.valueOf(getConverterTo(that));
+    }
+
     private Unit<?> getBaseUnits() {
         Unit<?> systemUnit = this.getStandardUnit();
         if (systemUnit instanceof BaseUnit) {
@@ -0,0 +1,233 @@
+package javax.measure.unit;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.measure.converter.ConversionException;
+import javax.measure.converter.RationalConverter;
+import javax.measure.converter.UnitConverter;
+
+/**
+ * <p>
+ * This class holds the converters between every pair of a fixed set of units, computed once when the table is
+ * created. Looking up a converter in the table does not allocate any objects, which makes it suitable for code that
+ * converts many values between a handful of units, such as the energy and price units used in the flexiblepower
+ * messages.
+ * </p>
+ *
+ * <p>
+ * When both units have an exact rational factor to the same standard unit, the factor between them is computed with
+ * arbitrary precision and stored as a {@link RationalConverter}. Unlike {@link Unit#getConverterTo(Unit)} this never
+ * falls back to a floating point factor because an intermediate product overflows. Other pairs hold the converter
+ * returned by {@link Unit#getConverterTo(Unit)}.
+ * </p>
+ *
+ * <p>
+ * Units are looked up by identity first and by {@link Unit#equals(Object) equality} second, so the fastest path is
+ * taken when the caller uses the same unit instances that were used to build the table.
+ * </p>
+ *
+ * <p>
+ * The {@link #getDefault() default} table is used by {@link javax.measure.Measure#doubleValue(Unit)
+ * Measure.doubleValue(Unit)} and {@link javax.measure.DecimalMeasure#to(Unit) DecimalMeasure.to(Unit)} before the
+ * generic conversion path. It holds <code>W, kW, MW, Wh, kWh, MWh, J, €/MWh, ct/kWh</code> and can be replaced with
+ * {@link #setDefault(UnitConversionTable)}.
+ * </p>
+ *
+ * <p>
+ * Instances of this class are immutable.
+ * </p>
+ */
+public final class UnitConversionTable {
+
+    /**
+     * Holds the units of the default table.
+     */
+    private static final Unit<?>[] DEFAULT_UNITS = { SI.WATT,
+                                                    SI.KILO(SI.WATT),
+                                                    SI.MEGA(SI.WATT),
+                                                    SI.JOULE.times(3600),
+                                                    NonSI.KWH,
+                                                    NonSI.KWH.times(1000),
+                                                    SI.JOULE,
+                                                    NonSI.EUR.divide(NonSI.KWH.times(1000)),
+                                                    NonSI.EUROCENT.divide(NonSI.KWH) };
+
+    /**
+     * Holds the table used by the measures.
+     */
+    private static volatile UnitConversionTable defaultTable = new UnitConversionTable(DEFAULT_UNITS);
+
+    /**
+     * Holds the units of this table, in the order they were specified.
+     */
+    private final Unit<?>[] units;
+
+    /**
+     * Holds the index of each unit, for the lookups by equality.
+     */
+    private final Map<Unit<?>, Integer> indices;
+
+    /**
+     * Holds the converters, the converter from unit <code>i</code> to unit <code>j</code> is at index
+     * <code>i * units.length + j</code>. Holds <code>null</code> for incompatible units.
+     */
+    private final UnitConverter[] converters;
+
+    /**
+     * Creates a table holding the converters between each pair of the specified units. Duplicate units are ignored.
+     *
+     * @param units
+     *            the units of the table.
+     */
+    public UnitConversionTable(Unit<?>... units) {
+        Map<Unit<?>, Integer> indices = new HashMap<Unit<?>, Integer>();
+        Unit<?>[] distinct = new Unit<?>[units.length];
+        int count = 0;
+        for (Unit<?> unit : units) {
+            if (unit == null) {
+                throw new NullPointerException("unit");
+            }
+            if (!indices.containsKey(unit)) {
+                indices.put(unit, count);
+                distinct[count++] = unit;
+            }
+        }
+        this.units = Arrays.copyOf(distinct, count);
+        this.indices = indices;
+
+        BigInteger[][] factors = new BigInteger[count][];
+        for (int i = 0; i < count; i++) {
+            factors[i] = factorToStandardUnit(this.units[i]);
+        }
+        this.converters = new UnitConverter[count * count];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                this.converters[i * count + j] = converter(this.units[i], factors[i], this.units[j], factors[j]);
+            }
+        }
+    }
+
+    /**
+     * Returns the table that is used by the measures.
+     *
+     * @return the default table.
+     */
+    public static UnitConversionTable getDefault() {
+        return defaultTable;
+    }
+
+    /**
+     * Replaces the table that is used by the measures. This is meant to be called once at startup, for example to add
+     * the units of a specific application to the table.
+     *
+     * @param table
+     *            the new default table.
+     */
+    public static void setDefault(UnitConversionTable table) {
+        if (table == null) {
+            throw new NullPointerException("table");
+        }
+        defaultTable = table;
+    }
+
+    /**
+     * Returns the units of the default table when the class was loaded, to be extended when creating a new table.
+     *
+     * @return the default units.
+     */
+    public static List<Unit<?>> getDefaultUnits() {
+        return Collections.unmodifiableList(Arrays.asList(DEFAULT_UNITS));
+    }
+
+    /**
+     * Returns the units held by this table.
+     *
+     * @return the units of this table.
+     */
+    public List<Unit<?>> getUnits() {
+        return Collections.unmodifiableList(Arrays.asList(units));
+    }
+
+    /**
+     * Returns the converter between the specified units if both are held by this table.
+     *
+     * @param from
+     *            the source unit.
+     * @param to
+     *            the target unit.
+     * @return the converter from <code>from</code> to <code>to</code>, or <code>null</code> if one of the units is not
+     *         held by this table or if the units are not compatible.
+     */
+    public UnitConverter getConverter(Unit<?> from, Unit<?> to) {
+        int i = indexOf(from);
+        if (i < 0) {
+            return null;
+        }
+        int j = indexOf(to);
+        if (j < 0) {
+            return null;
+        }
+        return converters[i * units.length + j];
+    }
+
+    private int indexOf(Unit<?> unit) {
+        for (int i = 0; i < units.length; i++) {
+            if (units[i] == unit) {
+                return i;
+            }
+        }
+        Integer index = indices.get(unit);
+        return index == null ? -1 : index.intValue();
+    }
+
+    /**
+     * Returns the exact factor from the specified unit to its standard unit as a <code>{dividend, divisor}</code>
+     * pair, or <code>null</code> if the unit is not an exact rational multiple of its standard unit.
+     */
+    private static BigInteger[] factorToStandardUnit(Unit<?> unit) {
+        UnitConverter cvtr;
+        try {
+            cvtr = unit.toStandardUnit();
+        } catch (ConversionException e) {
+            return null;
+        }
+        if (cvtr == UnitConverter.IDENTITY) {
+            return new BigInteger[] { BigInteger.ONE, BigInteger.ONE };
+        } else if (cvtr instanceof RationalConverter) {
+            RationalConverter factor = (RationalConverter) cvtr;
+            return new BigInteger[] { BigInteger.valueOf(factor.getDividend()),
+                                     BigInteger.valueOf(factor.getDivisor()) };
+        }
+        return null;
+    }
+
+    private static UnitConverter converter(Unit<?> from, BigInteger[] fromFactor, Unit<?> to, BigInteger[] toFactor) {
+        if ((fromFactor != null) && (toFactor != null) && from.getStandardUnit().equals(to.getStandardUnit())) {
+            // from / to = (fromDividend * toDivisor) / (fromDivisor * toDividend)
+            BigInteger dividend = fromFactor[0].multiply(toFactor[1]);
+            BigInteger divisor = fromFactor[1].multiply(toFactor[0]);
+            BigInteger gcd = dividend.gcd(divisor);
+            dividend = dividend.divide(gcd);
+            divisor = divisor.divide(gcd);
+            if (divisor.signum() < 0) {
+                dividend = dividend.negate();
+                divisor = divisor.negate();
+            }
+            if (dividend.equals(divisor)) {
+                return UnitConverter.IDENTITY;
+            } else if ((dividend.bitLength() < Long.SIZE) && (divisor.bitLength() < Long.SIZE)) {
+                return new RationalConverter(dividend.longValue(), divisor.longValue());
+            }
+        }
+        try {
+            return from.getConverterTo(to);
+        } catch (ConversionException e) {
+            return null;
+        }
+    }
+}
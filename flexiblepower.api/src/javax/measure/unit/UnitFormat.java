@@ -34,8 +34,8 @@ import java.text.FieldPosition;
 import java.text.Format;
 import java.text.ParseException;
 import java.text.ParsePosition;
-import java.util.HashMap;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 //@RETROWEAVER import javolution.text.Appendable;
 import javax.measure.converter.AddConverter;
@@ -278,12 +278,12 @@ public abstract class UnitFormat extends Format {
         /**
          * Holds the name to unit mapping.
          */
-        final HashMap<String, Unit<?>> nameToUnit = new HashMap<String, Unit<?>>();
+        final ConcurrentHashMap<String, Unit<?>> nameToUnit = new ConcurrentHashMap<String, Unit<?>>();
 
         /**
          * Holds the unit to name mapping.
          */
-        final HashMap<Unit<?>, String> unitToName = new HashMap<Unit<?>, String>();
+        final ConcurrentHashMap<Unit<?>, String> unitToName = new ConcurrentHashMap<Unit<?>, String>();
 
         @Override
         public void label(Unit<?> unit, String label) {
@@ -306,6 +306,20 @@ public abstract class UnitFormat extends Format {
             }
         }
 
+        /**
+         * Attaches a label to a prefixed SI unit that has been resolved on demand. Unlike {@link #label(Unit, String)},
+         * this never replaces an existing label or name (e.g. the megagram keeps its "t" label).
+         *
+         * @param unit
+         *            the prefixed unit.
+         * @param label
+         *            the prefixed symbol.
+         */
+        void labelPrefixed(Unit<?> unit, String label) {
+            nameToUnit.putIfAbsent(label, unit);
+            unitToName.putIfAbsent(unit, label);
+        }
+
         @Override
         public boolean isValidIdentifier(String name) {
             if ((name == null) || (name.length() == 0)) {
@@ -349,6 +363,12 @@ public abstract class UnitFormat extends Format {
                 return ((AlternateUnit<?>) unit).getSymbol();
             }
             if (unit instanceof TransformedUnit) {
+                if (resolvePrefixedUnit((TransformedUnit<?>) unit)) {
+                    label = unitToName.get(unit);
+                    if (label != null) {
+                        return label;
+                    }
+                }
                 TransformedUnit<?> tfmUnit = (TransformedUnit<?>) unit;
                 Unit<?> baseUnits = tfmUnit.getStandardUnit();
                 UnitConverter cvtr = tfmUnit.toStandardUnit();
@@ -402,7 +422,10 @@ public abstract class UnitFormat extends Format {
                 return unit;
             }
             unit = Unit.SYMBOL_TO_UNIT.get(name);
-            return unit;
+            if (unit != null) {
+                return unit;
+            }
+            return resolvePrefixedUnit(name) ? nameToUnit.get(name) : null;
         }
 
         // //////////////////////////
@@ -766,7 +789,10 @@ public abstract class UnitFormat extends Format {
                 return name;
             }
             // Else returns default name.
-            return DEFAULT.nameFor(unit);
+            name = DEFAULT.nameFor(unit);
+            // Resolving a prefixed unit may have attached an ASCII label as well.
+            String asciiName = unitToName.get(unit);
+            return asciiName != null ? asciiName : name;
         }
 
         @Override
@@ -777,7 +803,12 @@ public abstract class UnitFormat extends Format {
                 return unit;
             }
             // Else returns default mapping.
-            return DEFAULT.unitFor(name);
+            unit = DEFAULT.unitFor(name);
+            if (unit != null) {
+                return unit;
+            }
+            // Resolving a prefixed unit may have attached an ASCII label as well.
+            return nameToUnit.get(name);
         }
 
         @Override
@@ -892,47 +923,136 @@ public abstract class UnitFormat extends Format {
         return prefix == "µ" ? "micro" : prefix;
     }
 
-    static {
-        for (Unit<?> si : SI_UNITS) {
-            for (int j = 0; j < PREFIXES.length; j++) {
-                Unit<?> u = si.transform(CONVERTERS[j]);
-                String symbol = (si instanceof BaseUnit) ? ((BaseUnit<?>) si).getSymbol()
-                                                        : ((AlternateUnit<?>) si).getSymbol();
-                DEFAULT.label(u, PREFIXES[j] + symbol);
-                if (PREFIXES[j] == "µ") {
-                    ASCII.label(u, "micro" + symbol);
+    private static String symbolOf(Unit<?> si) {
+        return (si instanceof BaseUnit) ? ((BaseUnit<?>) si).getSymbol() : ((AlternateUnit<?>) si).getSymbol();
+    }
+
+    private static String withoutPrefix(String name, String prefix) {
+        return (name.length() > prefix.length()) && name.startsWith(prefix) ? name.substring(prefix.length()) : null;
+    }
+
+    // //////////////////////////////////////////////////////////////////////////
+    // The 20 prefixed variants of the SI units are not labelled up front. A prefixed unit is labelled when it is first
+    // looked up, either by name (when parsing) or by unit (when formatting).
+
+    /**
+     * Resolves a name of the form prefix + SI symbol (e.g. "kW", "µs" or "microOhm") and labels the corresponding unit.
+     *
+     * @param name
+     *            the name to resolve.
+     * @return <code>true</code> if the name denotes a prefixed SI unit.
+     */
+    static boolean resolvePrefixedUnit(String name) {
+        for (int i = 0; i < PREFIXES.length; i++) {
+            String symbol = withoutPrefix(name, PREFIXES[i]);
+            if ((symbol == null) && (PREFIXES[i] == "µ")) {
+                symbol = withoutPrefix(name, asciiPrefix(PREFIXES[i]));
+            }
+            if (symbol == null) {
+                continue;
+            }
+            if (symbol.equals("g")) {
+                if (CONVERTERS[i] != E3) { // kg is the base unit itself.
+                    labelPrefixedGram(i);
+                    return true;
+                }
+            } else if (symbol.equals("℃") || symbol.equals("°C") || symbol.equals("Celsius")) {
+                labelPrefixedCelsius(i);
+                return true;
+            } else if (symbol.equals("Ohm")) {
+                labelPrefixedUnit(i, SI.OHM);
+                return true;
+            } else {
+                for (Unit<?> si : SI_UNITS) {
+                    if (symbolOf(si).equals(symbol)) {
+                        labelPrefixedUnit(i, si);
+                        return true;
+                    }
                 }
             }
         }
-        // Special case for KILOGRAM.
-        DEFAULT.label(SI.GRAM, "g");
-        for (int i = 0; i < PREFIXES.length; i++) {
-            if (CONVERTERS[i] == E3) {
-                continue; // kg is already defined.
+        return false;
+    }
+
+    /**
+     * Resolves a transformed unit that is a prefixed SI unit (e.g. <code>KILO(WATT)</code>) and labels it.
+     *
+     * @param unit
+     *            the unit to resolve.
+     * @return <code>true</code> if the unit is a prefixed SI unit.
+     */
+    static boolean resolvePrefixedUnit(TransformedUnit<?> unit) {
+        Unit<?> parent = unit.getParentUnit();
+        UnitConverter toParent = unit.toParentUnit();
+        if (parent.equals(SI.KILOGRAM)) {
+            for (int i = 0; i < CONVERTERS.length; i++) {
+                if ((CONVERTERS[i] != E3) && CONVERTERS[i].concatenate(Em3).equals(toParent)) {
+                    labelPrefixedGram(i);
+                    return true;
+                }
+            }
+        } else if (parent.equals(SI.KELVIN)) {
+            for (int i = 0; i < CONVERTERS.length; i++) {
+                if (SI.CELSIUS.transform(CONVERTERS[i]).equals(unit)) {
+                    labelPrefixedCelsius(i);
+                    return true;
+                }
             }
-            DEFAULT.label(SI.KILOGRAM.transform(CONVERTERS[i].concatenate(Em3)), PREFIXES[i] + "g");
-            if (PREFIXES[i] == "µ") {
-                ASCII.label(SI.KILOGRAM.transform(CONVERTERS[i].concatenate(Em3)), "microg");
+        }
+        for (Unit<?> si : SI_UNITS) {
+            if (si.equals(parent)) {
+                for (int i = 0; i < CONVERTERS.length; i++) {
+                    if (CONVERTERS[i].equals(toParent)) {
+                        labelPrefixedUnit(i, si);
+                        return true;
+                    }
+                }
+                return false;
             }
         }
+        return false;
+    }
+
+    private static void labelPrefixedUnit(int i, Unit<?> si) {
+        Unit<?> u = si.transform(CONVERTERS[i]);
+        String symbol = symbolOf(si);
+        if (si == SI.OHM) {
+            DEFAULT.alias(u, PREFIXES[i] + "Ohm");
+            ASCII.labelPrefixed(u, asciiPrefix(PREFIXES[i]) + "Ohm");
+        }
+        DEFAULT.labelPrefixed(u, PREFIXES[i] + symbol);
+        if (PREFIXES[i] == "µ") {
+            ASCII.labelPrefixed(u, "micro" + symbol);
+        }
+    }
+
+    private static void labelPrefixedGram(int i) {
+        Unit<?> u = SI.KILOGRAM.transform(CONVERTERS[i].concatenate(Em3));
+        DEFAULT.labelPrefixed(u, PREFIXES[i] + "g");
+        if (PREFIXES[i] == "µ") {
+            ASCII.labelPrefixed(u, "microg");
+        }
+    }
+
+    private static void labelPrefixedCelsius(int i) {
+        Unit<?> u = SI.CELSIUS.transform(CONVERTERS[i]);
+        DEFAULT.labelPrefixed(u, PREFIXES[i] + "℃");
+        DEFAULT.alias(u, PREFIXES[i] + "°C");
+        ASCII.labelPrefixed(u, asciiPrefix(PREFIXES[i]) + "Celsius");
+    }
+
+    static {
+        // Special case for KILOGRAM.
+        DEFAULT.label(SI.GRAM, "g");
 
         // Alias and ASCIIFormat for Ohm
         DEFAULT.alias(SI.OHM, "Ohm");
         ASCII.label(SI.OHM, "Ohm");
-        for (int i = 0; i < PREFIXES.length; i++) {
-            DEFAULT.alias(SI.OHM.transform(CONVERTERS[i]), PREFIXES[i] + "Ohm");
-            ASCII.label(SI.OHM.transform(CONVERTERS[i]), asciiPrefix(PREFIXES[i]) + "Ohm");
-        }
 
         // Special case for DEGREE_CElSIUS.
         DEFAULT.label(SI.CELSIUS, "℃");
         DEFAULT.alias(SI.CELSIUS, "°C");
         ASCII.label(SI.CELSIUS, "Celsius");
-        for (int i = 0; i < PREFIXES.length; i++) {
-            DEFAULT.label(SI.CELSIUS.transform(CONVERTERS[i]), PREFIXES[i] + "℃");
-            DEFAULT.alias(SI.CELSIUS.transform(CONVERTERS[i]), PREFIXES[i] + "°C");
-            ASCII.label(SI.CELSIUS.transform(CONVERTERS[i]), asciiPrefix(PREFIXES[i]) + "Celsius");
-        }
     }
 
     // //////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,39 @@
+package org.flexiblepower.context;
+
+/**
+ * The {@link FlexiblePowerClock} gives access to the time of a {@link FlexiblePowerContext} with different levels of
+ * precision. A {@link FlexiblePowerContext} implementation may also implement this interface, in which case all
+ * methods follow the clock of the context, also when the context runs on simulated time.
+ *
+ * None of the methods allocate objects, which makes them suitable for hot paths such as timestamping messages and
+ * observations.
+ */
+public interface FlexiblePowerClock {
+    /**
+     * Returns the exact current time in milliseconds. This is the same value as
+     * {@link FlexiblePowerContext#currentTimeMillis()} returns.
+     *
+     * @return the difference, measured in milliseconds, between the current time and midnight, January 1, 1970 UTC.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Returns a cached value of the current time in milliseconds, which is updated at a fixed resolution. The value
+     * lags behind {@link #currentTimeMillis()} by at most that resolution, but is much cheaper to obtain. It never
+     * decreases, unless the wall clock itself is set back.
+     *
+     * @return the cached difference, measured in milliseconds, between the current time and midnight, January 1, 1970
+     *         UTC.
+     */
+    long coarseTimeMillis();
+
+    /**
+     * Returns the current value of a monotonic clock in nanoseconds, in the same way as {@link System#nanoTime()}.
+     * This value is only meaningful when it is compared to another value of the same clock, for example to measure
+     * the latency of an operation. It is not related to the wall clock time and is not affected when the wall clock
+     * is set.
+     *
+     * @return the current value of the monotonic clock, in nanoseconds.
+     */
+    long nanoTime();
+}
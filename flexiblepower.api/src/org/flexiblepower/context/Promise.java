@@ -0,0 +1,111 @@
+package org.flexiblepower.context;
+
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Promise} is a {@link Future} that can be composed with other work without blocking a thread, in the style
+ * of a <code>CompletionStage</code>. Functions and listeners that are added to a promise are called as soon as it
+ * completes, by the thread that completes it, or immediately by the calling thread when the promise has already been
+ * completed.
+ *
+ * E.g. to read a device, convert the value and publish it without ever calling {@link #get()}:
+ *
+ * <pre>
+ * PromiseUtil.submit(context, readRegister).thenApply(new Promise.Function&lt;Integer, Measurable&lt;Power&gt;&gt;() {
+ *     public Measurable&lt;Power&gt; apply(Integer value) {
+ *         return Measure.valueOf(value, SI.WATT);
+ *     }
+ * }).whenComplete(publisher);
+ * </pre>
+ *
+ * @param <T>
+ *            The type of the result of this promise
+ */
+public interface Promise<T> extends Future<T> {
+    /**
+     * A function that is applied to the result of a promise.
+     *
+     * @param <T>
+     *            The type of the argument
+     * @param <R>
+     *            The type of the result
+     */
+    interface Function<T, R> {
+        /**
+         * @param value
+         *            The argument of the function
+         * @return The result of the function
+         * @throws Exception
+         *             When the function fails, which completes the resulting promise exceptionally
+         */
+        R apply(T value) throws Exception;
+    }
+
+    /**
+     * A listener that is called when a promise completes.
+     *
+     * @param <T>
+     *            The type of the result of the promise
+     */
+    interface Listener<T> {
+        /**
+         * Called when the promise has completed.
+         *
+         * @param value
+         *            The result of the promise, or <code>null</code> when it completed exceptionally
+         * @param failure
+         *            The cause of the failure, a <code>CancellationException</code> when the promise was cancelled, or
+         *            <code>null</code> when it completed normally
+         */
+        void completed(T value, Throwable failure);
+    }
+
+    /**
+     * Returns a new promise that is completed with the result of the function applied to the result of this promise.
+     * When this promise completes exceptionally, the new promise completes exceptionally with the same cause.
+     *
+     * @param function
+     *            The function to apply
+     * @param <R>
+     *            The type of the result of the function
+     * @return The new promise
+     */
+    <R> Promise<R> thenApply(Function<? super T, ? extends R> function);
+
+    /**
+     * Returns a new promise that is completed with the same result as the promise that the function returns when it is
+     * applied to the result of this promise. When this promise completes exceptionally, the new promise completes
+     * exceptionally with the same cause.
+     *
+     * @param function
+     *            The function that starts the next asynchronous step
+     * @param <R>
+     *            The type of the result of the next step
+     * @return The new promise
+     */
+    <R> Promise<R> thenCompose(Function<? super T, ? extends Promise<R>> function);
+
+    /**
+     * Returns a new promise that is completed with the result of this promise when it completes normally, or with the
+     * result of the function applied to the cause when it completes exceptionally.
+     *
+     * @param function
+     *            The function that computes the result from the cause of the failure
+     * @return The new promise
+     */
+    Promise<T> exceptionally(Function<Throwable, ? extends T> function);
+
+    /**
+     * Adds a listener that is called when this promise completes.
+     *
+     * @param listener
+     *            The listener
+     * @return This promise
+     */
+    Promise<T> whenComplete(Listener<? super T> listener);
+
+    /**
+     * @return <code>true</code> when this promise completed exceptionally, including when it was cancelled.
+     */
+    boolean isCompletedExceptionally();
+}
@@ -0,0 +1,500 @@
+package org.flexiblepower.context.ext;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link AcceleratedFlexiblePowerContext} is a {@link FlexiblePowerContext} with a clock that runs a configurable
+ * factor faster (or slower) than real time. It sits between the {@link SimulatedFlexiblePowerContext}, which jumps
+ * from task to task, and a real-time runtime; it is meant for hardware-in-the-loop tests that compress a scenario of a
+ * day into minutes. E.g.:
+ *
+ * <pre>
+ * AcceleratedFlexiblePowerContext context = new AcceleratedFlexiblePowerContext(workerPool, startTime, 60);
+ * // Activate the components with this context, one hour of context time takes one minute
+ * </pre>
+ *
+ * All delays and periods are in context time, so they are scaled by the speed factor. The pending tasks are ordered by
+ * their execution time in context time, so changing the speed factor with {@link #setSpeedFactor(double)} never
+ * reorders them; it only changes how fast the clock moves towards them.
+ *
+ * Each task is compared with the clock when it starts to run. When it starts more than the lag threshold (in real
+ * time) after its execution time, the host can not keep up with the speed factor, either because the tasks take too
+ * long or because the worker pool is saturated. This is reported to the {@link LagListener}s once when the context
+ * falls behind and once when it has caught up again.
+ *
+ * The timer thread is a daemon thread that is stopped by {@link #close()}. Closing the context cancels all scheduled
+ * tasks, but does not shut down the worker pool.
+ */
+@SuppressWarnings("deprecation")
+public class AcceleratedFlexiblePowerContext implements FlexiblePowerContext,
+                                            FlexiblePowerClock,
+                                            org.flexiblepower.time.TimeService,
+                                            Closeable {
+    /**
+     * The default lag threshold of 100 milliseconds of real time.
+     */
+    public static final Measurable<Duration> DEFAULT_LAG_THRESHOLD = Measure.valueOf(100, TimeUtil.MS);
+
+    /**
+     * A {@link LagListener} is notified when the context can not keep up with its speed factor.
+     */
+    public interface LagListener {
+        /**
+         * Called when a task starts later than the lag threshold after its execution time, while the context was
+         * keeping up before.
+         *
+         * @param context
+         *            The context that is falling behind
+         * @param lagMillis
+         *            How much later than its execution time the task started, in milliseconds of context time
+         */
+        void fallingBehind(AcceleratedFlexiblePowerContext context, long lagMillis);
+
+        /**
+         * Called when a task starts within the lag threshold again after the context has been falling behind.
+         *
+         * @param context
+         *            The context that has caught up
+         */
+        void caughtUp(AcceleratedFlexiblePowerContext context);
+    }
+
+    /**
+     * The relation between real time and context time, from a point where the speed factor was set.
+     */
+    private static final class Rate {
+        final long realNanos;
+        final long contextNanos;
+        final double speedFactor;
+
+        Rate(long realNanos, long contextNanos, double speedFactor) {
+            this.realNanos = realNanos;
+            this.contextNanos = contextNanos;
+            this.speedFactor = speedFactor;
+        }
+
+        long contextNanos(long realNanos) {
+            return contextNanos + (long) ((realNanos - this.realNanos) * speedFactor);
+        }
+    }
+
+    private final Executor workerPool;
+    private final long startTime;
+    private final long lagThresholdNanos;
+    private final List<LagListener> lagListeners = new CopyOnWriteArrayList<LagListener>();
+    private final Thread timer;
+    private volatile Rate rate;
+    private volatile boolean running = true;
+
+    // Guarded by this
+    private final PriorityQueue<WarpedTask<?>> queue = new PriorityQueue<WarpedTask<?>>();
+    private long sequence;
+
+    // Guarded by lagListeners
+    private boolean keepingUp = true;
+    private long maxLagNanos;
+    private long lateTasks;
+
+    /**
+     * Creates a new context with the {@link #DEFAULT_LAG_THRESHOLD}.
+     *
+     * @param workerPool
+     *            The executor that runs the submitted and scheduled tasks
+     * @param startTimeMillis
+     *            The time in milliseconds since the epoch at which the clock of the context starts
+     * @param speedFactor
+     *            How much faster the context clock runs than real time
+     */
+    public AcceleratedFlexiblePowerContext(Executor workerPool, long startTimeMillis, double speedFactor) {
+        this(workerPool, startTimeMillis, speedFactor, DEFAULT_LAG_THRESHOLD);
+    }
+
+    /**
+     * Creates a new context.
+     *
+     * @param workerPool
+     *            The executor that runs the submitted and scheduled tasks
+     * @param startTimeMillis
+     *            The time in milliseconds since the epoch at which the clock of the context starts
+     * @param speedFactor
+     *            How much faster the context clock runs than real time
+     * @param lagThreshold
+     *            How late (in real time) a task may start before the context is considered to be falling behind
+     */
+    public AcceleratedFlexiblePowerContext(Executor workerPool,
+                                           long startTimeMillis,
+                                           double speedFactor,
+                                           Measurable<Duration> lagThreshold) {
+        if (workerPool == null) {
+            throw new NullPointerException("workerPool");
+        }
+        this.workerPool = workerPool;
+        startTime = startTimeMillis;
+        lagThresholdNanos = TimeUtil.toTimeUnit(lagThreshold, TimeUnit.NANOSECONDS);
+        rate = new Rate(System.nanoTime(), 0, checkSpeedFactor(speedFactor));
+
+        timer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        }, "FlexiblePowerContext accelerated timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    private static double checkSpeedFactor(double speedFactor) {
+        if (!(speedFactor > 0) || Double.isInfinite(speedFactor)) {
+            throw new IllegalArgumentException("The speed factor should be positive, but is " + speedFactor);
+        }
+        return speedFactor;
+    }
+
+    /**
+     * @return How much faster the context clock runs than real time.
+     */
+    public double getSpeedFactor() {
+        return rate.speedFactor;
+    }
+
+    /**
+     * Changes the speed of the context clock from now on. The clock continues from its current time and the order of
+     * the pending tasks does not change.
+     *
+     * @param speedFactor
+     *            How much faster the context clock runs than real time
+     */
+    public void setSpeedFactor(double speedFactor) {
+        checkSpeedFactor(speedFactor);
+        synchronized (this) {
+            long now = System.nanoTime();
+            rate = new Rate(now, rate.contextNanos(now), speedFactor);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param listener
+     *            The listener that should be notified when the context falls behind or catches up
+     */
+    public void addLagListener(LagListener listener) {
+        lagListeners.add(listener);
+    }
+
+    /**
+     * @param listener
+     *            The listener that should no longer be notified
+     */
+    public void removeLagListener(LagListener listener) {
+        lagListeners.remove(listener);
+    }
+
+    /**
+     * @return <code>false</code> when the last task started later than the lag threshold after its execution time.
+     */
+    public boolean isKeepingUp() {
+        synchronized (lagListeners) {
+            return keepingUp;
+        }
+    }
+
+    /**
+     * @return The number of task executions that started later than the lag threshold.
+     */
+    public long getLateTaskCount() {
+        synchronized (lagListeners) {
+            return lateTasks;
+        }
+    }
+
+    /**
+     * @return The largest delay between the execution time and the start of a task, in milliseconds of context time.
+     */
+    public long getMaxLagMillis() {
+        synchronized (lagListeners) {
+            return TimeUnit.NANOSECONDS.toMillis(maxLagNanos);
+        }
+    }
+
+    /**
+     * @return The number of tasks that are waiting for their execution time.
+     */
+    public synchronized int getPendingTaskCount() {
+        return queue.size();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return startTime + TimeUnit.NANOSECONDS.toMillis(nanoTime());
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(currentTimeMillis());
+    }
+
+    /**
+     * @return The context time, which is calculated on each call, so there is no coarse resolution.
+     */
+    @Override
+    public long coarseTimeMillis() {
+        return currentTimeMillis();
+    }
+
+    /**
+     * @return The context time that has passed since the creation of this context, in nanoseconds.
+     */
+    @Override
+    public long nanoTime() {
+        return rate.contextNanos(System.nanoTime());
+    }
+
+    @Override
+    public Date getTime() {
+        return currentTime();
+    }
+
+    @Override
+    public long getCurrentTimeMillis() {
+        return currentTimeMillis();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return enqueue(new WarpedTask<T>(task, nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return submit(Executors.callable(task, result));
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return schedule(Executors.callable(command), delay);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return enqueue(new WarpedTask<V>(callable, timeAfter(delay), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return enqueue(new WarpedTask<Object>(Executors.callable(command), timeAfter(initialDelay), positive(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return enqueue(new WarpedTask<Object>(Executors.callable(command), timeAfter(initialDelay), -positive(delay)));
+    }
+
+    /**
+     * Stops the timer thread and cancels all pending tasks.
+     */
+    @Override
+    public void close() {
+        List<WarpedTask<?>> pending;
+        synchronized (this) {
+            running = false;
+            pending = new ArrayList<WarpedTask<?>>(queue);
+            queue.clear();
+            notifyAll();
+        }
+        for (WarpedTask<?> task : pending) {
+            task.cancel(false);
+        }
+    }
+
+    private long timeAfter(Measurable<Duration> delay) {
+        return nanoTime() + Math.max(0, TimeUtil.toTimeUnit(delay, TimeUnit.NANOSECONDS));
+    }
+
+    private static long positive(Measurable<Duration> period) {
+        long nanos = TimeUtil.toTimeUnit(period, TimeUnit.NANOSECONDS);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("The period should be positive, but is " + period);
+        }
+        return nanos;
+    }
+
+    private synchronized <V> WarpedTask<V> enqueue(WarpedTask<V> task) {
+        if (!running) {
+            throw new RejectedExecutionException("The context has been closed");
+        }
+        task.sequenceNumber = sequence++;
+        queue.add(task);
+        if (queue.peek() == task) {
+            notifyAll();
+        }
+        return task;
+    }
+
+    private synchronized void dequeue(WarpedTask<?> task) {
+        queue.remove(task);
+    }
+
+    private void runTimer() {
+        while (true) {
+            WarpedTask<?> task;
+            synchronized (this) {
+                try {
+                    while (true) {
+                        if (!running) {
+                            return;
+                        }
+                        task = queue.peek();
+                        if (task == null) {
+                            wait();
+                        } else {
+                            Rate r = rate;
+                            long remaining = task.time - r.contextNanos(System.nanoTime());
+                            if (remaining <= 0) {
+                                queue.poll();
+                                break;
+                            }
+                            // Wait in real time, which is woken up early when the speed factor changes
+                            TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, (long) (remaining / r.speedFactor)));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            try {
+                workerPool.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    private void started(long lagNanos) {
+        boolean late = lagNanos / rate.speedFactor > lagThresholdNanos;
+        boolean changed;
+        synchronized (lagListeners) {
+            maxLagNanos = Math.max(maxLagNanos, lagNanos);
+            if (late) {
+                lateTasks++;
+            }
+            changed = late == keepingUp;
+            keepingUp = !late;
+        }
+        if (changed) {
+            for (LagListener listener : lagListeners) {
+                if (late) {
+                    listener.fallingBehind(this, TimeUnit.NANOSECONDS.toMillis(lagNanos));
+                } else {
+                    listener.caughtUp(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * A pending task. The time is in nanoseconds of context time. The period is positive for tasks at a fixed rate,
+     * negative for tasks with a fixed delay and zero for tasks that run once.
+     */
+    private class WarpedTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final long period;
+        private volatile long time;
+        private long sequenceNumber;
+
+        WarpedTask(Callable<V> callable, long time, long period) {
+            super(callable);
+            if (callable == null) {
+                throw new NullPointerException();
+            }
+            this.time = time;
+            this.period = period;
+        }
+
+        /**
+         * @return The time until the execution of this task, in context time.
+         */
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            } else if (other instanceof WarpedTask) {
+                WarpedTask<?> that = (WarpedTask<?>) other;
+                if (time != that.time) {
+                    return time < that.time ? -1 : 1;
+                }
+                return sequenceNumber < that.sequenceNumber ? -1 : 1;
+            }
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            started(Math.max(0, nanoTime() - time));
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period : nanoTime() - period;
+                try {
+                    enqueue(this);
+                } catch (RejectedExecutionException e) {
+                    // The context has been closed while the task was running
+                    cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                dequeue(this);
+            }
+            return cancelled;
+        }
+    }
+}
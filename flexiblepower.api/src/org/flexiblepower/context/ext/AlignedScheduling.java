@@ -0,0 +1,211 @@
+package org.flexiblepower.context.ext;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * This is a utility class to schedule periodic tasks on the boundaries of the clock of a {@link FlexiblePowerContext},
+ * such as every 15 minutes or every full hour. The boundaries are multiples of the period since the epoch (UTC), moved
+ * by an optional offset.
+ *
+ * After each execution the next boundary is calculated again from {@link FlexiblePowerContext#currentTimeMillis()},
+ * so the task does not drift, and boundaries that have passed while the task was running are skipped. The next
+ * execution is never earlier than one period after the previous one, so a timer that fires slightly before the wall
+ * clock reaches the boundary (because the wall clock has been slewed or set back) does not run the task twice in the
+ * same period. An optional
+ * jitter delays each execution by a fixed amount that is derived from a key, which spreads the load of many tasks on
+ * the same boundary while every task still runs at the same moment in each period. Since only the schedule methods and
+ * the clock of the context are used, the behaviour is the same under simulated time.
+ */
+public final class AlignedScheduling {
+    private AlignedScheduling() {
+    }
+
+    /**
+     * Calculates the first boundary that is after a given time.
+     *
+     * @param time
+     *            The time in milliseconds since the epoch
+     * @param periodMillis
+     *            The period in milliseconds
+     * @param offsetMillis
+     *            The offset of the boundaries in milliseconds
+     * @return The first time after <code>time</code> that is equal to <code>offsetMillis</code> plus a multiple of
+     *         <code>periodMillis</code>
+     */
+    public static long nextBoundary(long time, long periodMillis, long offsetMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("The period should be positive, but is " + periodMillis);
+        }
+        long since = time - offsetMillis;
+        long remainder = since % periodMillis;
+        if (remainder < 0) {
+            remainder += periodMillis;
+        }
+        return time - remainder + periodMillis;
+    }
+
+    /**
+     * Calculates the jitter for a key. The same key and maximum always give the same jitter.
+     *
+     * @param key
+     *            The key of the task, e.g. the identifier of the component
+     * @param maxJitterMillis
+     *            The maximum jitter in milliseconds
+     * @return The jitter, between 0 (inclusive) and <code>maxJitterMillis</code> (exclusive)
+     */
+    public static long jitterOf(Object key, long maxJitterMillis) {
+        if (key == null || maxJitterMillis <= 0) {
+            return 0;
+        }
+        // Spread the bits of the hash code (murmur3 finalizer), since hash codes of similar keys are often close
+        long h = key.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h >>> 1) % maxJitterMillis;
+    }
+
+    /**
+     * Schedules a task on each boundary of the period, e.g. every full quarter of an hour for a period of 15 minutes.
+     *
+     * @param context
+     *            The context that runs the task
+     * @param command
+     *            The task to run
+     * @param period
+     *            The period between the boundaries
+     * @return A future that represents the pending executions of the task
+     */
+    public static ScheduledFuture<?> scheduleAligned(FlexiblePowerContext context,
+                                                     Runnable command,
+                                                     Measurable<Duration> period) {
+        return scheduleAligned(context, command, period, TimeUtil.ZERO, TimeUtil.ZERO, null);
+    }
+
+    /**
+     * Schedules a task on each boundary of the period, moved by an offset and delayed by a jitter that is derived from
+     * a key.
+     *
+     * @param context
+     *            The context that runs the task
+     * @param command
+     *            The task to run
+     * @param period
+     *            The period between the boundaries
+     * @param offset
+     *            The offset of the boundaries, e.g. 5 minutes with a period of 1 hour runs the task at 5 minutes past
+     *            each hour
+     * @param maxJitter
+     *            The maximum delay after each boundary
+     * @param jitterKey
+     *            The key from which the delay after the boundaries is derived, or <code>null</code> for no jitter
+     * @return A future that represents the pending executions of the task. Cancelling it stops the executions.
+     */
+    public static ScheduledFuture<?> scheduleAligned(FlexiblePowerContext context,
+                                                     Runnable command,
+                                                     Measurable<Duration> period,
+                                                     Measurable<Duration> offset,
+                                                     Measurable<Duration> maxJitter,
+                                                     Object jitterKey) {
+        if (context == null || command == null) {
+            throw new NullPointerException();
+        }
+        long periodMillis = TimeUtil.toMillis(period);
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("The period should be positive, but is " + period);
+        }
+        long jitterMillis = jitterOf(jitterKey, Math.min(TimeUtil.toMillis(maxJitter), periodMillis));
+        AlignedTask task = new AlignedTask(context, command, periodMillis, TimeUtil.toMillis(offset), jitterMillis);
+        task.scheduleNext(false);
+        return task;
+    }
+
+    private static class AlignedTask extends FutureTask<Object> implements RunnableScheduledFuture<Object> {
+        private final FlexiblePowerContext context;
+        private final long periodMillis;
+        private final long offsetMillis;
+        private final long jitterMillis;
+        private volatile ScheduledFuture<?> timer;
+        private volatile long nextTime;
+
+        AlignedTask(FlexiblePowerContext context,
+                    Runnable command,
+                    long periodMillis,
+                    long offsetMillis,
+                    long jitterMillis) {
+            super(command, null);
+            this.context = context;
+            this.periodMillis = periodMillis;
+            this.offsetMillis = offsetMillis;
+            this.jitterMillis = jitterMillis;
+        }
+
+        /**
+         * @param ran
+         *            <code>true</code> when the task has just run at {@link #nextTime}
+         */
+        void scheduleNext(boolean ran) {
+            long now = context.currentTimeMillis();
+            // The boundary that belongs to the current period may still be ahead because of the jitter
+            long next = nextBoundary(now - jitterMillis, periodMillis, offsetMillis) + jitterMillis;
+            if (ran) {
+                // The wall clock may still read just before the boundary that has run
+                next = Math.max(next, nextTime + periodMillis);
+            }
+            nextTime = next;
+            timer = context.schedule(this, Measure.valueOf(next - now, TimeUtil.MS));
+            if (isCancelled()) {
+                timer.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (runAndReset()) {
+                scheduleNext(true);
+            }
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return true;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextTime - context.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            ScheduledFuture<?> t = timer;
+            if (cancelled && t != null) {
+                t.cancel(false);
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,701 @@
+package org.flexiblepower.context.ext;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link Bulkheads} divide a shared worker pool into isolated lanes, so a component that submits many or
+ * long-running tasks can not delay the tasks of other components. Each lane is a {@link FlexiblePowerContext} view
+ * that is handed to one component, with its own maximum concurrency, queue bound and {@link RejectionPolicy}.
+ *
+ * At most <code>parallelism</code> tasks of all lanes run on the worker pool at the same time. When a slot becomes
+ * free, it goes to the lane with queued tasks that has received the smallest share relative to its weight (stride
+ * scheduling), so a lane with weight 2 gets twice as many slots as a lane with weight 1 when both are busy. The
+ * timing of scheduled tasks is done by the shared context, a task only enters the queue of its lane when it is due.
+ * E.g.:
+ *
+ * <pre>
+ * Bulkheads bulkheads = new Bulkheads(runtimeContext, workerPool, 8);
+ * FlexiblePowerContext control = bulkheads.lane(&quot;control&quot;).weight(4).maxConcurrency(2).build();
+ * FlexiblePowerContext driver = bulkheads.lane(&quot;modbus-driver&quot;).queueCapacity(100).build();
+ * </pre>
+ */
+public class Bulkheads {
+    /**
+     * What a lane does with a task when its queue is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Throws a {@link RejectedExecutionException} to the submitter. A scheduled task fails with that exception.
+         */
+        ABORT,
+        /**
+         * Runs the task on the thread that submitted it, or on the timer thread for a scheduled task.
+         */
+        CALLER_RUNS,
+        /**
+         * Cancels the new task. A periodic task skips this execution.
+         */
+        DISCARD,
+        /**
+         * Drops the execution that has been waiting longest in the queue and queues the new task. A task that runs once
+         * is cancelled, a periodic task skips that execution.
+         */
+        DISCARD_OLDEST
+    }
+
+    private final FlexiblePowerContext context;
+    private final FlexiblePowerClock clock;
+    private final Executor workerPool;
+    private final List<Lane> lanes = new ArrayList<Lane>();
+
+    // Guarded by lanes
+    private int availableSlots;
+    private double globalPass;
+
+    /**
+     * Creates new bulkheads.
+     *
+     * @param context
+     *            The context that is used for timing and the clock
+     * @param workerPool
+     *            The executor that runs the tasks of all lanes
+     * @param parallelism
+     *            The maximum number of tasks of all lanes that run on the worker pool at the same time
+     */
+    public Bulkheads(FlexiblePowerContext context, Executor workerPool, int parallelism) {
+        if (context == null) {
+            throw new NullPointerException("context");
+        }
+        if (workerPool == null) {
+            throw new NullPointerException("workerPool");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("The parallelism should be positive, but is " + parallelism);
+        }
+        this.context = context;
+        clock = ContextClocks.clockOf(context);
+        this.workerPool = workerPool;
+        availableSlots = parallelism;
+    }
+
+    /**
+     * Starts the configuration of a new lane.
+     *
+     * @param name
+     *            The name of the lane, usually the name of the component that uses it
+     * @return The builder of the lane
+     */
+    public LaneBuilder lane(String name) {
+        return new LaneBuilder(name);
+    }
+
+    /**
+     * @return The lanes that have been built.
+     */
+    public List<Lane> getLanes() {
+        synchronized (lanes) {
+            return Collections.unmodifiableList(new ArrayList<Lane>(lanes));
+        }
+    }
+
+    long nanoTime() {
+        return clock.nanoTime();
+    }
+
+    /**
+     * The {@link LaneBuilder} configures a new lane. Create it with {@link Bulkheads#lane(String)} and finish with
+     * {@link #build()}.
+     */
+    public class LaneBuilder {
+        private final String name;
+        private int maxConcurrency = Integer.MAX_VALUE;
+        private int queueCapacity = Integer.MAX_VALUE;
+        private RejectionPolicy rejectionPolicy = RejectionPolicy.ABORT;
+        private int weight = 1;
+
+        LaneBuilder(String name) {
+            if (name == null) {
+                throw new NullPointerException("name");
+            }
+            this.name = name;
+        }
+
+        /**
+         * Sets the maximum number of tasks of the lane that run at the same time. The default is unlimited, up to the
+         * parallelism of the bulkheads.
+         *
+         * @param maxConcurrency
+         *            The maximum number of running tasks
+         * @return this
+         */
+        public LaneBuilder maxConcurrency(int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException("The maximum concurrency should be positive");
+            }
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of tasks that wait in the queue of the lane. A task that can run right away does not
+         * wait, so a lane with a capacity of zero still runs tasks as long as it has a free slot. The default is
+         * unbounded.
+         *
+         * @param queueCapacity
+         *            The maximum number of queued tasks
+         * @return this
+         */
+        public LaneBuilder queueCapacity(int queueCapacity) {
+            if (queueCapacity < 0) {
+                throw new IllegalArgumentException("The queue capacity should not be negative");
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Sets what happens with a task when the queue is full. The default is {@link RejectionPolicy#ABORT}.
+         *
+         * @param rejectionPolicy
+         *            The rejection policy
+         * @return this
+         */
+        public LaneBuilder rejectionPolicy(RejectionPolicy rejectionPolicy) {
+            if (rejectionPolicy == null) {
+                throw new NullPointerException("rejectionPolicy");
+            }
+            this.rejectionPolicy = rejectionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the weight of the lane in the fair share of the worker pool. The default is 1.
+         *
+         * @param weight
+         *            The weight
+         * @return this
+         */
+        public LaneBuilder weight(int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("The weight should be positive");
+            }
+            this.weight = weight;
+            return this;
+        }
+
+        /**
+         * @return The new lane
+         */
+        public Lane build() {
+            Lane lane = new Lane(name, maxConcurrency, queueCapacity, rejectionPolicy, weight);
+            synchronized (lanes) {
+                lanes.add(lane);
+            }
+            return lane;
+        }
+    }
+
+    /**
+     * A lane of the bulkheads, which is a {@link FlexiblePowerContext} that runs its tasks on the shared worker pool
+     * within its own limits.
+     */
+    public class Lane implements FlexiblePowerContext, FlexiblePowerClock {
+        private final String name;
+        private final int maxConcurrency;
+        private final int queueCapacity;
+        private final RejectionPolicy rejectionPolicy;
+        private final double stride;
+        private final Histogram queueWait = new Histogram();
+        private final Histogram runTime = new Histogram();
+
+        // Guarded by lanes
+        private final ArrayDeque<LaneTask<?>> queue = new ArrayDeque<LaneTask<?>>();
+        private double pass;
+        private int running;
+        private int peakQueued;
+        private long submitted;
+        private long completed;
+        private long rejected;
+        private long overruns;
+
+        Lane(String name, int maxConcurrency, int queueCapacity, RejectionPolicy rejectionPolicy, int weight) {
+            this.name = name;
+            this.maxConcurrency = maxConcurrency;
+            this.queueCapacity = queueCapacity;
+            this.rejectionPolicy = rejectionPolicy;
+            stride = 1.0 / weight;
+        }
+
+        /**
+         * @return The name of this lane.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The number of tasks that wait in the queue of this lane.
+         */
+        public int getQueuedCount() {
+            synchronized (lanes) {
+                return queue.size();
+            }
+        }
+
+        /**
+         * @return The highest number of tasks that have been waiting in the queue of this lane at the same time.
+         */
+        public int getPeakQueuedCount() {
+            synchronized (lanes) {
+                return peakQueued;
+            }
+        }
+
+        /**
+         * @return The number of tasks of this lane that are running.
+         */
+        public int getRunningCount() {
+            synchronized (lanes) {
+                return running;
+            }
+        }
+
+        /**
+         * @return The number of task executions that entered the queue of this lane.
+         */
+        public long getSubmittedCount() {
+            synchronized (lanes) {
+                return submitted;
+            }
+        }
+
+        /**
+         * @return The number of task executions of this lane that have finished.
+         */
+        public long getCompletedCount() {
+            synchronized (lanes) {
+                return completed;
+            }
+        }
+
+        /**
+         * @return The number of task executions that have been rejected because the queue was full.
+         */
+        public long getRejectedCount() {
+            synchronized (lanes) {
+                return rejected;
+            }
+        }
+
+        /**
+         * @return The number of executions of periodic tasks that were skipped because the previous execution was still
+         *         queued or running.
+         */
+        public long getOverrunCount() {
+            synchronized (lanes) {
+                return overruns;
+            }
+        }
+
+        /**
+         * @return The time in nanoseconds that tasks waited in the queue of this lane.
+         */
+        public Histogram.Snapshot getQueueWait() {
+            return queueWait.snapshot();
+        }
+
+        /**
+         * @return The run time of the tasks of this lane in nanoseconds.
+         */
+        public Histogram.Snapshot getRunTime() {
+            return runTime.snapshot();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return context.currentTimeMillis();
+        }
+
+        @Override
+        public Date currentTime() {
+            return context.currentTime();
+        }
+
+        @Override
+        public long coarseTimeMillis() {
+            return clock.coarseTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return Bulkheads.this.nanoTime();
+        }
+
+        @Override
+        public <T> Future<T> submit(Callable<T> task) {
+            LaneTask<T> laneTask = new LaneTask<T>(this, task, 0);
+            enqueue(laneTask, true);
+            return laneTask;
+        }
+
+        @Override
+        public <T> Future<T> submit(Runnable task, T result) {
+            return submit(Executors.callable(task, result));
+        }
+
+        @Override
+        public Future<?> submit(Runnable task) {
+            return submit(task, null);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+            return schedule(Executors.callable(command), delay);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+            LaneTask<V> task = new LaneTask<V>(this, callable, 0);
+            task.timer = context.schedule(task.releaser, delay);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                      Measurable<Duration> initialDelay,
+                                                      Measurable<Duration> period) {
+            LaneTask<Object> task = new LaneTask<Object>(this, Executors.callable(command), 1);
+            task.timer = context.scheduleAtFixedRate(task.releaser, initialDelay, period);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                         Measurable<Duration> initialDelay,
+                                                         Measurable<Duration> delay) {
+            if (TimeUtil.toMillis(delay) <= 0) {
+                throw new IllegalArgumentException("The delay should be positive, but is " + delay);
+            }
+            LaneTask<Object> task = new LaneTask<Object>(this, Executors.callable(command), -1);
+            task.delay = delay;
+            task.timer = context.schedule(task.releaser, initialDelay);
+            return task;
+        }
+
+        /**
+         * Adds a task to the queue.
+         *
+         * @param task
+         *            The task to run
+         * @param direct
+         *            <code>true</code> when the task is submitted directly, <code>false</code> when a scheduled task is
+         *            due
+         */
+        void enqueue(LaneTask<?> task, boolean direct) {
+            List<LaneTask<?>> toRun = null;
+            LaneTask<?> skipped = null;
+            boolean runHere = false;
+            synchronized (lanes) {
+                if (task.pending) {
+                    // The end of the pending execution releases the next one of a task with a fixed delay
+                    overruns++;
+                    return;
+                }
+                boolean accepted = true;
+                // Only a task that has to wait for a slot counts against the capacity of the queue
+                boolean runsNow = queue.isEmpty() && running < maxConcurrency && availableSlots > 0;
+                if (!runsNow && queue.size() >= queueCapacity) {
+                    rejected++;
+                    switch (rejectionPolicy) {
+                    case ABORT:
+                        RejectedExecutionException e = new RejectedExecutionException("The queue of lane " + name
+                                                                                      + " is full");
+                        if (direct) {
+                            throw e;
+                        }
+                        task.fail(e);
+                        return;
+                    case DISCARD:
+                        skipped = task;
+                        accepted = false;
+                        break;
+                    case DISCARD_OLDEST:
+                        LaneTask<?> oldest = queue.poll();
+                        if (oldest == null) {
+                            // Nothing is waiting, so the new task is the one to drop
+                            skipped = task;
+                            accepted = false;
+                        } else {
+                            oldest.pending = false;
+                            skipped = oldest;
+                        }
+                        break;
+                    case CALLER_RUNS:
+                    default:
+                        task.pending = true;
+                        runHere = true;
+                        accepted = false;
+                    }
+                }
+                if (accepted) {
+                    task.pending = true;
+                    task.enqueuedNanos = nanoTime();
+                    queue.add(task);
+                    submitted++;
+                    if (pass < globalPass) {
+                        // A lane that has been idle does not get to catch up
+                        pass = globalPass;
+                    }
+                    toRun = dispatch();
+                    peakQueued = Math.max(peakQueued, queue.size());
+                }
+            }
+            if (skipped != null) {
+                skipped.skipped();
+            }
+            if (runHere) {
+                long start = nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    finished(task, nanoTime() - start, false);
+                }
+            }
+            execute(toRun);
+        }
+
+        void remove(LaneTask<?> task) {
+            synchronized (lanes) {
+                if (queue.remove(task)) {
+                    task.pending = false;
+                }
+            }
+        }
+
+        /**
+         * Called after an execution of a task has finished.
+         *
+         * @param pooled
+         *            <code>true</code> when the task ran on the worker pool, <code>false</code> when it ran on the
+         *            thread of the caller
+         */
+        void finished(LaneTask<?> task, long runNanos, boolean pooled) {
+            runTime.record(runNanos);
+            List<LaneTask<?>> toRun = null;
+            synchronized (lanes) {
+                completed++;
+                task.pending = false;
+                if (pooled) {
+                    running--;
+                    availableSlots++;
+                    toRun = dispatch();
+                }
+            }
+            task.finished();
+            execute(toRun);
+        }
+
+        @Override
+        public String toString() {
+            return "Lane [name=" + name
+                   + ", queued="
+                   + getQueuedCount()
+                   + ", running="
+                   + getRunningCount()
+                   + ", completed="
+                   + getCompletedCount()
+                   + ", rejected="
+                   + getRejectedCount()
+                   + "]";
+        }
+    }
+
+    /**
+     * Takes tasks from the lanes as long as there are free slots. Must be called while holding the lock on the lanes.
+     */
+    private List<LaneTask<?>> dispatch() {
+        List<LaneTask<?>> toRun = null;
+        while (availableSlots > 0) {
+            Lane next = null;
+            for (Lane lane : lanes) {
+                if (!lane.queue.isEmpty() && lane.running < lane.maxConcurrency
+                    && (next == null || lane.pass < next.pass)) {
+                    next = lane;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            LaneTask<?> task = next.queue.poll();
+            next.running++;
+            globalPass = next.pass;
+            next.pass += next.stride;
+            availableSlots--;
+            next.queueWait.record(nanoTime() - task.enqueuedNanos);
+            if (toRun == null) {
+                toRun = new ArrayList<LaneTask<?>>();
+            }
+            toRun.add(task);
+        }
+        return toRun;
+    }
+
+    private void execute(List<LaneTask<?>> tasks) {
+        if (tasks == null) {
+            return;
+        }
+        for (final LaneTask<?> task : tasks) {
+            try {
+                workerPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = nanoTime();
+                        try {
+                            task.run();
+                        } finally {
+                            task.lane.finished(task, nanoTime() - start, true);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                task.fail(e);
+                task.lane.finished(task, 0, true);
+            }
+        }
+    }
+
+    /**
+     * A task of a lane. The period is positive for tasks at a fixed rate, negative for tasks with a fixed delay and zero
+     * for tasks that run once. The timer of the shared context puts the task in the queue of the lane when it is due.
+     * The next release of a task with a fixed delay is scheduled when an execution has finished or has been skipped.
+     */
+    private class LaneTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        final Lane lane;
+        final int period;
+        final Runnable releaser = new Runnable() {
+            @Override
+            public void run() {
+                if (!isDone()) {
+                    lane.enqueue(LaneTask.this, false);
+                }
+            }
+        };
+        volatile ScheduledFuture<?> timer;
+        Measurable<Duration> delay;
+        // Guarded by lanes, true while the task is queued or running
+        boolean pending;
+        long enqueuedNanos;
+
+        LaneTask(Lane lane, Callable<V> callable, int period) {
+            super(callable);
+            if (callable == null) {
+                throw new NullPointerException();
+            }
+            this.lane = lane;
+            this.period = period;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            ScheduledFuture<?> t = timer;
+            return t == null ? 0 : t.getDelay(unit);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (!runAndReset()) {
+                cancelTimer();
+            }
+        }
+
+        /**
+         * Called after an execution has finished and is no longer pending.
+         */
+        void finished() {
+            if (period < 0) {
+                releaseLater();
+            }
+        }
+
+        /**
+         * Called when an execution has been dropped by the lane. A task that runs once is cancelled, a periodic task
+         * skips this execution.
+         */
+        void skipped() {
+            if (!isPeriodic()) {
+                cancel(false);
+            } else if (period < 0) {
+                releaseLater();
+            }
+        }
+
+        private void releaseLater() {
+            if (!isDone()) {
+                timer = context.schedule(releaser, delay);
+                if (isDone()) {
+                    // Cancelled while the timer was set
+                    cancelTimer();
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                cancelTimer();
+                lane.remove(this);
+            }
+            return cancelled;
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+            cancelTimer();
+        }
+
+        private void cancelTimer() {
+            ScheduledFuture<?> t = timer;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package org.flexiblepower.context.ext;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link CoalescingScheduler} schedules tasks on a {@link FlexiblePowerContext} with a slack: a task may run at
+ * any moment between its scheduled time and its scheduled time plus the slack. Tasks whose windows overlap are
+ * combined into a single wakeup of the context, which saves thousands of wakeups when many components run periodic
+ * tasks with the same period, such as every 15 seconds or every PTU.
+ *
+ * The scheduler wakes up at the end of the earliest window that has not been handled yet. It then runs all tasks whose
+ * window has started, either back-to-back on the thread of the wakeup or in parallel by submitting them to the
+ * context. Because all timing is based on the clock of the context, this also works under simulated time. E.g.:
+ *
+ * <pre>
+ * CoalescingScheduler scheduler = new CoalescingScheduler(context, false);
+ * scheduler.scheduleAtFixedRate(pollTask, TimeUtil.ZERO, Measure.valueOf(15, SI.SECOND), Measure.valueOf(1, SI.SECOND));
+ * </pre>
+ *
+ * The returned {@link ScheduledFuture}s follow the same contract as the ones of the context. Periodic tasks keep their
+ * nominal schedule, so the slack does not add up over the executions.
+ */
+public class CoalescingScheduler {
+    private static final Comparator<CoalescedTask<?>> BY_EARLIEST = new Comparator<CoalescedTask<?>>() {
+        @Override
+        public int compare(CoalescedTask<?> o1, CoalescedTask<?> o2) {
+            if (o1.earliest != o2.earliest) {
+                return o1.earliest < o2.earliest ? -1 : 1;
+            }
+            return o1.sequenceNumber < o2.sequenceNumber ? -1 : (o1.sequenceNumber > o2.sequenceNumber ? 1 : 0);
+        }
+    };
+
+    private static final Comparator<CoalescedTask<?>> BY_LATEST = new Comparator<CoalescedTask<?>>() {
+        @Override
+        public int compare(CoalescedTask<?> o1, CoalescedTask<?> o2) {
+            if (o1.latest != o2.latest) {
+                return o1.latest < o2.latest ? -1 : 1;
+            }
+            return o1.sequenceNumber < o2.sequenceNumber ? -1 : (o1.sequenceNumber > o2.sequenceNumber ? 1 : 0);
+        }
+    };
+
+    private final FlexiblePowerContext context;
+    private final boolean parallel;
+
+    // Guarded by this
+    private final TreeSet<CoalescedTask<?>> byEarliest = new TreeSet<CoalescedTask<?>>(BY_EARLIEST);
+    private final TreeSet<CoalescedTask<?>> byLatest = new TreeSet<CoalescedTask<?>>(BY_LATEST);
+    private ScheduledFuture<?> wakeup;
+    private Runnable wakeupTask;
+    private long wakeupTime = Long.MAX_VALUE;
+    private long sequence;
+    private long wakeups;
+    private long executions;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param context
+     *            The context that is used for the wakeups and for the clock
+     * @param parallel
+     *            <code>true</code> when the tasks of a wakeup should be submitted to the context to run in parallel,
+     *            <code>false</code> when they should run back-to-back on the thread of the wakeup
+     */
+    public CoalescingScheduler(FlexiblePowerContext context, boolean parallel) {
+        if (context == null) {
+            throw new NullPointerException("context");
+        }
+        this.context = context;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Creates and executes a one-shot action that becomes enabled after the given delay and runs at most the given
+     * slack later.
+     *
+     * @param command
+     *            the task to execute
+     * @param delay
+     *            the time from now to delay execution
+     * @param slack
+     *            the time the execution may be delayed further to combine it with other tasks
+     * @return a ScheduledFuture representing pending completion of the task and whose {@code get()} method will return
+     *         {@code null} upon completion
+     * @see FlexiblePowerContext#schedule(Runnable, Measurable)
+     */
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay, Measurable<Duration> slack) {
+        return schedule(Executors.callable(command), delay, slack);
+    }
+
+    /**
+     * Creates and executes a ScheduledFuture that becomes enabled after the given delay and runs at most the given
+     * slack later.
+     *
+     * @param callable
+     *            the function to execute
+     * @param delay
+     *            the time from now to delay execution
+     * @param slack
+     *            the time the execution may be delayed further to combine it with other tasks
+     * @param <V>
+     *            the type of the callable's result
+     * @return a ScheduledFuture that can be used to extract result or cancel
+     * @see FlexiblePowerContext#schedule(Callable, Measurable)
+     */
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable,
+                                           Measurable<Duration> delay,
+                                           Measurable<Duration> slack) {
+        return add(new CoalescedTask<V>(callable, timeAfter(delay), 0, slackOf(slack)));
+    }
+
+    /**
+     * Creates and executes a periodic action like
+     * {@link FlexiblePowerContext#scheduleAtFixedRate(Runnable, Measurable, Measurable)}, where each execution may be
+     * delayed by at most the given slack.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param period
+     *            the period between successive executions
+     * @param slack
+     *            the time each execution may be delayed to combine it with other tasks
+     * @return a ScheduledFuture representing pending completion of the task, and whose {@code get()} method will throw
+     *         an exception upon cancellation
+     * @throws IllegalArgumentException
+     *             if period less than or equal to zero
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period,
+                                                  Measurable<Duration> slack) {
+        return add(new CoalescedTask<Object>(Executors.callable(command),
+                                             timeAfter(initialDelay),
+                                             positive(period),
+                                             slackOf(slack)));
+    }
+
+    /**
+     * Creates and executes a periodic action like
+     * {@link FlexiblePowerContext#scheduleWithFixedDelay(Runnable, Measurable, Measurable)}, where each execution may
+     * be delayed by at most the given slack.
+     *
+     * @param command
+     *            the task to execute
+     * @param initialDelay
+     *            the time to delay first execution
+     * @param delay
+     *            the delay between the termination of one execution and the commencement of the next
+     * @param slack
+     *            the time each execution may be delayed to combine it with other tasks
+     * @return a ScheduledFuture representing pending completion of the task, and whose {@code get()} method will throw
+     *         an exception upon cancellation
+     * @throws IllegalArgumentException
+     *             if delay less than or equal to zero
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay,
+                                                     Measurable<Duration> slack) {
+        return add(new CoalescedTask<Object>(Executors.callable(command),
+                                             timeAfter(initialDelay),
+                                             -positive(delay),
+                                             slackOf(slack)));
+    }
+
+    /**
+     * @return The number of times the scheduler woke up, including wakeups that found no task to run.
+     */
+    public synchronized long getWakeupCount() {
+        return wakeups;
+    }
+
+    /**
+     * @return The number of task executions, where each execution of a periodic task is counted separately.
+     */
+    public synchronized long getExecutionCount() {
+        return executions;
+    }
+
+    /**
+     * @return The average number of task executions per wakeup, or <code>0</code> when the scheduler has not woken up
+     *         yet. A ratio of 1 means that no executions have been combined.
+     */
+    public synchronized double getCoalescingRatio() {
+        return wakeups == 0 ? 0 : (double) executions / wakeups;
+    }
+
+    /**
+     * @return The number of tasks that are waiting for their next execution.
+     */
+    public synchronized int getScheduledTaskCount() {
+        return byEarliest.size();
+    }
+
+    private long timeAfter(Measurable<Duration> delay) {
+        return context.currentTimeMillis() + Math.max(0, TimeUtil.toMillis(delay));
+    }
+
+    private static long positive(Measurable<Duration> period) {
+        long ms = TimeUtil.toMillis(period);
+        if (ms <= 0) {
+            throw new IllegalArgumentException("The period should be positive, but is " + period);
+        }
+        return ms;
+    }
+
+    private static long slackOf(Measurable<Duration> slack) {
+        long ms = TimeUtil.toMillis(slack);
+        if (ms < 0) {
+            throw new IllegalArgumentException("The slack should not be negative, but is " + slack);
+        }
+        return ms;
+    }
+
+    private synchronized <V> CoalescedTask<V> add(CoalescedTask<V> task) {
+        task.sequenceNumber = sequence++;
+        byEarliest.add(task);
+        byLatest.add(task);
+        if (task.latest < wakeupTime) {
+            scheduleWakeup(task.latest);
+        }
+        return task;
+    }
+
+    private synchronized void remove(CoalescedTask<?> task) {
+        if (byEarliest.remove(task)) {
+            byLatest.remove(task);
+        }
+    }
+
+    private void scheduleWakeup(long time) {
+        cancelWakeup();
+        wakeupTime = time;
+        wakeupTask = new Runnable() {
+            @Override
+            public void run() {
+                wakeup(this);
+            }
+        };
+        wakeup = context.schedule(wakeupTask, Measure.valueOf(Math.max(0, time - context.currentTimeMillis()),
+                                                              TimeUtil.MS));
+    }
+
+    private void cancelWakeup() {
+        if (wakeup != null) {
+            wakeup.cancel(false);
+        }
+        wakeup = null;
+        wakeupTask = null;
+        wakeupTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * @param firing
+     *            The task of the wakeup that fired. When it is no longer the current one, a newer wakeup was scheduled
+     *            while it fired, and that one is kept if it is still needed.
+     */
+    private void wakeup(Runnable firing) {
+        List<CoalescedTask<?>> batch = new ArrayList<CoalescedTask<?>>();
+        synchronized (this) {
+            long now = context.currentTimeMillis();
+            while (!byEarliest.isEmpty() && byEarliest.first().earliest <= now) {
+                CoalescedTask<?> task = byEarliest.pollFirst();
+                byLatest.remove(task);
+                batch.add(task);
+            }
+            if (firing == wakeupTask) {
+                wakeup = null;
+                wakeupTask = null;
+                wakeupTime = Long.MAX_VALUE;
+            }
+            long next = byLatest.isEmpty() ? Long.MAX_VALUE : byLatest.first().latest;
+            if (next == Long.MAX_VALUE) {
+                cancelWakeup();
+            } else if (next != wakeupTime) {
+                scheduleWakeup(next);
+            }
+            wakeups++;
+            executions += batch.size();
+        }
+        for (CoalescedTask<?> task : batch) {
+            if (parallel) {
+                context.submit(task);
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * A task with a window. The period is positive for tasks at a fixed rate, negative for tasks with a fixed delay and
+     * zero for tasks that run once. The window may only be changed while the task is not in the sets.
+     */
+    private class CoalescedTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final long period;
+        private final long slack;
+        private volatile long earliest;
+        private volatile long latest;
+        private long sequenceNumber;
+
+        CoalescedTask(Callable<V> callable, long time, long period, long slack) {
+            super(callable);
+            if (callable == null) {
+                throw new NullPointerException();
+            }
+            this.period = period;
+            this.slack = slack;
+            setTime(time);
+        }
+
+        private void setTime(long time) {
+            earliest = time;
+            latest = time + slack;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(earliest - context.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                setTime(period > 0 ? earliest + period : context.currentTimeMillis() - period);
+                add(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                remove(this);
+            }
+            return cancelled;
+        }
+    }
+}
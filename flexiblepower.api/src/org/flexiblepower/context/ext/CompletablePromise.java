@@ -0,0 +1,291 @@
+package org.flexiblepower.context.ext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.flexiblepower.context.Promise;
+
+/**
+ * The {@link CompletablePromise} is a {@link Promise} that is completed explicitly with {@link #complete(Object)} or
+ * {@link #completeExceptionally(Throwable)}. Only the first completion has effect.
+ *
+ * Listeners are called on the thread that completes the promise, or on the thread that adds them when the promise has
+ * already completed. An exception thrown by a listener is passed to the uncaught exception handler of that thread and
+ * does not keep the other listeners from being called.
+ *
+ * @param <T>
+ *            The type of the result of this promise
+ */
+public class CompletablePromise<T> implements Promise<T> {
+    /**
+     * Returns a promise that has already been completed with the given value.
+     *
+     * @param value
+     *            The result of the promise
+     * @param <T>
+     *            The type of the result
+     * @return The completed promise
+     */
+    public static <T> CompletablePromise<T> completed(T value) {
+        CompletablePromise<T> promise = new CompletablePromise<T>();
+        promise.complete(value);
+        return promise;
+    }
+
+    /**
+     * Returns a promise that has already been completed exceptionally with the given cause.
+     *
+     * @param failure
+     *            The cause of the failure
+     * @param <T>
+     *            The type of the result
+     * @return The failed promise
+     */
+    public static <T> CompletablePromise<T> failed(Throwable failure) {
+        CompletablePromise<T> promise = new CompletablePromise<T>();
+        promise.completeExceptionally(failure);
+        return promise;
+    }
+
+    // Guarded by this
+    private boolean done;
+    private T value;
+    private Throwable failure;
+    private List<Listener<? super T>> listeners;
+
+    /**
+     * Completes this promise with the given value.
+     *
+     * @param result
+     *            The result of the promise
+     * @return <code>true</code> when this call completed the promise, <code>false</code> when it was already completed
+     */
+    public boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    /**
+     * Completes this promise exceptionally with the given cause.
+     *
+     * @param cause
+     *            The cause of the failure
+     * @return <code>true</code> when this call completed the promise, <code>false</code> when it was already completed
+     */
+    public boolean completeExceptionally(Throwable cause) {
+        if (cause == null) {
+            throw new NullPointerException("cause");
+        }
+        return finish(null, cause);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized boolean isCompletedExceptionally() {
+        return failure != null;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException,
+                                                          ExecutionException,
+                                                          TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        } else if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    @Override
+    public Promise<T> whenComplete(Listener<? super T> listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Listener<? super T>>(2);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+        notify(listener, value, failure);
+        return this;
+    }
+
+    @Override
+    public <R> Promise<R> thenApply(final Function<? super T, ? extends R> function) {
+        if (function == null) {
+            throw new NullPointerException("function");
+        }
+        final CompletablePromise<R> next = new CompletablePromise<R>();
+        whenComplete(new Listener<T>() {
+            @Override
+            public void completed(T result, Throwable cause) {
+                if (cause != null) {
+                    next.completeExceptionally(cause);
+                } else {
+                    try {
+                        next.complete(function.apply(result));
+                    } catch (Throwable e) {
+                        next.completeExceptionally(e);
+                    }
+                }
+            }
+        });
+        return next;
+    }
+
+    @Override
+    public <R> Promise<R> thenCompose(final Function<? super T, ? extends Promise<R>> function) {
+        if (function == null) {
+            throw new NullPointerException("function");
+        }
+        final CompletablePromise<R> next = new CompletablePromise<R>();
+        whenComplete(new Listener<T>() {
+            @Override
+            public void completed(T result, Throwable cause) {
+                if (cause != null) {
+                    next.completeExceptionally(cause);
+                    return;
+                }
+                Promise<R> step;
+                try {
+                    step = function.apply(result);
+                } catch (Throwable e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                if (step == null) {
+                    next.completeExceptionally(new NullPointerException("The function returned no promise"));
+                } else {
+                    step.whenComplete(next.completer());
+                }
+            }
+        });
+        return next;
+    }
+
+    @Override
+    public Promise<T> exceptionally(final Function<Throwable, ? extends T> function) {
+        if (function == null) {
+            throw new NullPointerException("function");
+        }
+        final CompletablePromise<T> next = new CompletablePromise<T>();
+        whenComplete(new Listener<T>() {
+            @Override
+            public void completed(T result, Throwable cause) {
+                if (cause == null) {
+                    next.complete(result);
+                } else {
+                    try {
+                        next.complete(function.apply(cause));
+                    } catch (Throwable e) {
+                        next.completeExceptionally(e);
+                    }
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * @return A listener that completes this promise in the same way as the promise it is added to.
+     */
+    public Listener<T> completer() {
+        return new Listener<T>() {
+            @Override
+            public void completed(T result, Throwable cause) {
+                if (cause == null) {
+                    complete(result);
+                } else {
+                    completeExceptionally(cause);
+                }
+            }
+        };
+    }
+
+    private boolean finish(T result, Throwable cause) {
+        List<Listener<? super T>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            done = true;
+            value = result;
+            failure = cause;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (Listener<? super T> listener : toNotify) {
+                notify(listener, result, cause);
+            }
+        }
+        return true;
+    }
+
+    private void notify(Listener<? super T> listener, T result, Throwable cause) {
+        try {
+            listener.completed(result, cause);
+        } catch (RuntimeException e) {
+            Thread thread = Thread.currentThread();
+            Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+            if (handler != null) {
+                handler.uncaughtException(thread, e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            if (!done) {
+                return "CompletablePromise [pending]";
+            } else if (failure != null) {
+                return "CompletablePromise [failed=" + failure + "]";
+            }
+            return "CompletablePromise [value=" + value + "]";
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.flexiblepower.context.ext;
+
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * This is a utility class to obtain the {@link FlexiblePowerClock} of any {@link FlexiblePowerContext}. Components
+ * should measure durations with the {@link FlexiblePowerClock#nanoTime()} of the clock of their context instead of
+ * {@link System#nanoTime()}, so the measurements follow the context time, also under simulation. E.g.:
+ *
+ * <pre>
+ * FlexiblePowerClock clock = ContextClocks.clockOf(context);
+ * long start = clock.nanoTime();
+ * </pre>
+ */
+public final class ContextClocks {
+    private ContextClocks() {
+    }
+
+    /**
+     * Returns the clock of a context. When the context implements {@link FlexiblePowerClock} itself, the context is
+     * returned. Otherwise the returned clock is derived from {@link FlexiblePowerContext#currentTimeMillis()}, which
+     * means that the monotonic clock has a resolution of a millisecond and does not go back when the wall clock is set
+     * back.
+     *
+     * @param context
+     *            The context
+     * @return The clock that follows the time of the context
+     */
+    public static FlexiblePowerClock clockOf(FlexiblePowerContext context) {
+        if (context == null) {
+            throw new NullPointerException("context");
+        } else if (context instanceof FlexiblePowerClock) {
+            return (FlexiblePowerClock) context;
+        } else {
+            return new ContextClock(context);
+        }
+    }
+
+    private static final class ContextClock implements FlexiblePowerClock {
+        private final FlexiblePowerContext context;
+        private final long startTime;
+        // Only written when the clock moves forward, so readings within the same millisecond only read it
+        private volatile long lastNanos;
+
+        ContextClock(FlexiblePowerContext context) {
+            this.context = context;
+            startTime = context.currentTimeMillis();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return context.currentTimeMillis();
+        }
+
+        @Override
+        public long coarseTimeMillis() {
+            return context.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(context.currentTimeMillis() - startTime);
+            long last = lastNanos;
+            if (nanos <= last) {
+                // The same millisecond, or the wall clock has been set back
+                return last;
+            }
+            // Racing writers store the time of their own reading; none of them is earlier than the last value they saw
+            lastNanos = nanos;
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "ContextClock [context=" + context + "]";
+        }
+    }
+}
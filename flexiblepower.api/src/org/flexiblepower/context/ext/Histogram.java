@@ -0,0 +1,170 @@
+package org.flexiblepower.context.ext;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@link Histogram} records the distribution of non-negative <code>long</code> values, such as durations in
+ * nanoseconds. Recording a value is lock-free and does not allocate, so it can be used on hot paths by many threads at
+ * the same time.
+ *
+ * Each power of two is divided into 8 buckets, so the values that are reported by a {@link Snapshot} are at most 12.5%
+ * larger than the recorded values. Negative values are recorded as <code>0</code>.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value
+     *            The value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return A copy of the current state of this histogram. Values that are recorded while the snapshot is taken may
+     *         be partially included.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, count.get(), sum.get(), max.get());
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of the state of a {@link Histogram}.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Combines this snapshot with another one, e.g. of a histogram that has been recorded by another thread.
+         *
+         * @param other
+         *            The other snapshot
+         * @return A snapshot that holds the values of both snapshots
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(merged, count + other.count, sum + other.sum, Math.max(max, other.max));
+        }
+
+        /**
+         * @return The number of recorded values.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return The sum of the recorded values.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return The largest recorded value, or <code>0</code> when no values have been recorded.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return The average of the recorded values, or <code>0</code> when no values have been recorded.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns the value below which the given percentage of the recorded values fall.
+         *
+         * @param percentile
+         *            The percentile, between 0 and 100
+         * @return The upper bound of the bucket that holds the percentile, but never more than {@link #getMax()}, or
+         *         <code>0</code> when no values have been recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                   + ", mean="
+                   + (long) getMean()
+                   + ", p50="
+                   + getValueAtPercentile(50)
+                   + ", p99="
+                   + getValueAtPercentile(99)
+                   + ", max="
+                   + max;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package org.flexiblepower.context.ext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link InstrumentedFlexiblePowerContext} wraps another {@link FlexiblePowerContext} and measures how its tasks
+ * behave. For each component and each class of task it records:
+ *
+ * <ul>
+ * <li>the queue delay, which is the time between the moment the task should have started and the moment it did;</li>
+ * <li>the run time of each execution;</li>
+ * <li>the drift of periodic tasks, which is the time between the nominal start of an execution and its actual start;
+ * </li>
+ * <li>the number of overruns, which are executions of a task at a fixed rate that took longer than the period;</li>
+ * <li>the number of executions that failed with an exception.</li>
+ * </ul>
+ *
+ * All durations are recorded in nanoseconds in lock-free {@link Histogram}s. Time is taken from the clock of the
+ * wrapped context (see {@link ContextClocks#clockOf(FlexiblePowerContext)}), so the measurements are also correct under
+ * simulated time.
+ *
+ * A component can get its own view on the context with {@link #forComponent(String)}, so the tasks it submits are
+ * tagged with its name. The measurements can be pulled with {@link #getSnapshots()} or exported periodically with
+ * {@link #exportEvery(Measurable, Exporter)}. E.g.:
+ *
+ * <pre>
+ * InstrumentedFlexiblePowerContext instrumented = new InstrumentedFlexiblePowerContext(runtimeContext);
+ * FlexiblePowerContext driverContext = instrumented.forComponent(&quot;modbus-driver&quot;);
+ * </pre>
+ */
+public class InstrumentedFlexiblePowerContext implements FlexiblePowerContext, FlexiblePowerClock {
+    /**
+     * The component name of the tasks that are not submitted through a component view.
+     */
+    public static final String DEFAULT_COMPONENT = "";
+
+    /**
+     * An {@link Exporter} receives the measurements periodically, see
+     * {@link InstrumentedFlexiblePowerContext#exportEvery(Measurable, Exporter)}.
+     */
+    public interface Exporter {
+        /**
+         * Receives the current measurements. This is called on a thread of the context, so it should not block.
+         *
+         * @param timestamp
+         *            The time of the snapshots in milliseconds since the epoch, according to the context
+         * @param snapshots
+         *            The snapshot of each combination of component and task class
+         */
+        void export(long timestamp, List<Snapshot> snapshots);
+    }
+
+    /**
+     * An immutable copy of the measurements of the tasks of one class that are submitted by one component. The
+     * measurements are cumulative since the creation of the context.
+     */
+    public static final class Snapshot {
+        private final String component;
+        private final String taskClass;
+        private final long failures;
+        private final long overruns;
+        private final Histogram.Snapshot queueDelay;
+        private final Histogram.Snapshot runTime;
+        private final Histogram.Snapshot drift;
+
+        Snapshot(String component, String taskClass, TaskMetrics metrics) {
+            this.component = component;
+            this.taskClass = taskClass;
+            failures = metrics.failures.get();
+            overruns = metrics.overruns.get();
+            queueDelay = metrics.queueDelay.snapshot();
+            runTime = metrics.runTime.snapshot();
+            drift = metrics.drift.snapshot();
+        }
+
+        /**
+         * @return The name of the component that submitted the tasks.
+         */
+        public String getComponent() {
+            return component;
+        }
+
+        /**
+         * @return The name of the class of the tasks.
+         */
+        public String getTaskClass() {
+            return taskClass;
+        }
+
+        /**
+         * @return The number of executions.
+         */
+        public long getExecutions() {
+            return runTime.getCount();
+        }
+
+        /**
+         * @return The number of executions that failed with an exception.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return The number of executions of tasks at a fixed rate that took longer than their period.
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * @return The time in nanoseconds between the moment a task should have started and the moment it did.
+         */
+        public Histogram.Snapshot getQueueDelay() {
+            return queueDelay;
+        }
+
+        /**
+         * @return The run time of the executions in nanoseconds.
+         */
+        public Histogram.Snapshot getRunTime() {
+            return runTime;
+        }
+
+        /**
+         * @return The time in nanoseconds between the nominal start of an execution of a periodic task and its actual
+         *         start.
+         */
+        public Histogram.Snapshot getDrift() {
+            return drift;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot [component=" + component
+                   + ", taskClass="
+                   + taskClass
+                   + ", failures="
+                   + failures
+                   + ", overruns="
+                   + overruns
+                   + ", queueDelay=("
+                   + queueDelay
+                   + "), runTime=("
+                   + runTime
+                   + "), drift=("
+                   + drift
+                   + ")]";
+        }
+    }
+
+    private static final class TaskMetrics {
+        final Histogram queueDelay = new Histogram();
+        final Histogram runTime = new Histogram();
+        final Histogram drift = new Histogram();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong overruns = new AtomicLong();
+    }
+
+    private final FlexiblePowerContext context;
+    private final FlexiblePowerClock clock;
+    private final ConcurrentMap<String, ConcurrentMap<Class<?>, TaskMetrics>> registry;
+    private final String component;
+    private final ConcurrentMap<Class<?>, TaskMetrics> metrics;
+
+    /**
+     * Creates a new instrumented context.
+     *
+     * @param context
+     *            The context that runs the tasks
+     */
+    public InstrumentedFlexiblePowerContext(FlexiblePowerContext context) {
+        this(context, new ConcurrentHashMap<String, ConcurrentMap<Class<?>, TaskMetrics>>(), DEFAULT_COMPONENT);
+    }
+
+    private InstrumentedFlexiblePowerContext(FlexiblePowerContext context,
+                                             ConcurrentMap<String, ConcurrentMap<Class<?>, TaskMetrics>> registry,
+                                             String component) {
+        if (context == null) {
+            throw new NullPointerException("context");
+        }
+        this.context = context;
+        clock = ContextClocks.clockOf(context);
+        this.registry = registry;
+        this.component = component;
+        ConcurrentMap<Class<?>, TaskMetrics> map = new ConcurrentHashMap<Class<?>, TaskMetrics>();
+        ConcurrentMap<Class<?>, TaskMetrics> existing = registry.putIfAbsent(component, map);
+        metrics = existing == null ? map : existing;
+    }
+
+    /**
+     * Returns a view on this context that tags all submitted and scheduled tasks with the name of a component. The
+     * measurements of all views are reported together by {@link #getSnapshots()}.
+     *
+     * @param componentName
+     *            The name of the component, for example the symbolic name of its bundle
+     * @return The view for the component
+     */
+    public InstrumentedFlexiblePowerContext forComponent(String componentName) {
+        if (componentName == null) {
+            throw new NullPointerException("componentName");
+        }
+        return new InstrumentedFlexiblePowerContext(context, registry, componentName);
+    }
+
+    /**
+     * @return The name of the component of this view, or {@link #DEFAULT_COMPONENT}.
+     */
+    public String getComponent() {
+        return component;
+    }
+
+    /**
+     * @return The current measurements of each combination of component and task class, sorted by component.
+     */
+    public List<Snapshot> getSnapshots() {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        List<String> components = new ArrayList<String>(registry.keySet());
+        Collections.sort(components);
+        for (String name : components) {
+            for (Map.Entry<Class<?>, TaskMetrics> entry : registry.get(name).entrySet()) {
+                snapshots.add(new Snapshot(name, entry.getKey().getName(), entry.getValue()));
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Exports the measurements periodically, using the wrapped context.
+     *
+     * @param interval
+     *            The time between two exports
+     * @param exporter
+     *            The receiver of the measurements
+     * @return The future of the periodic export, which can be used to stop it
+     */
+    public ScheduledFuture<?> exportEvery(Measurable<Duration> interval, final Exporter exporter) {
+        if (exporter == null) {
+            throw new NullPointerException("exporter");
+        }
+        return context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                exporter.export(context.currentTimeMillis(), getSnapshots());
+            }
+        }, interval, interval);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return context.currentTimeMillis();
+    }
+
+    @Override
+    public Date currentTime() {
+        return context.currentTime();
+    }
+
+    @Override
+    public long coarseTimeMillis() {
+        return clock.coarseTimeMillis();
+    }
+
+    @Override
+    public long nanoTime() {
+        return clock.nanoTime();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return context.submit((Callable<T>) new InstrumentedTask<T>(metricsOf(task), task, null, nanoTime(), 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return context.submit(new InstrumentedTask<Object>(metricsOf(task), null, task, nanoTime(), 0), result);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return context.submit((Runnable) new InstrumentedTask<Object>(metricsOf(task), null, task, nanoTime(), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        Runnable task = new InstrumentedTask<Object>(metricsOf(command), null, command, startAfter(delay), 0);
+        return context.schedule(task, delay);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        Callable<V> task = new InstrumentedTask<V>(metricsOf(callable), callable, null, startAfter(delay), 0);
+        return context.schedule(task, delay);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        long periodNanos = TimeUtil.toTimeUnit(period, TimeUnit.NANOSECONDS);
+        return context.scheduleAtFixedRate(new InstrumentedTask<Object>(metricsOf(command),
+                                                                        null,
+                                                                        command,
+                                                                        startAfter(initialDelay),
+                                                                        periodNanos),
+                                           initialDelay,
+                                           period);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        long delayNanos = TimeUtil.toTimeUnit(delay, TimeUnit.NANOSECONDS);
+        return context.scheduleWithFixedDelay(new InstrumentedTask<Object>(metricsOf(command),
+                                                                           null,
+                                                                           command,
+                                                                           startAfter(initialDelay),
+                                                                           -delayNanos),
+                                              initialDelay,
+                                              delay);
+    }
+
+    private long startAfter(Measurable<Duration> delay) {
+        return nanoTime() + Math.max(0, TimeUtil.toTimeUnit(delay, TimeUnit.NANOSECONDS));
+    }
+
+    private TaskMetrics metricsOf(Object task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        Class<?> taskClass = task.getClass();
+        TaskMetrics result = metrics.get(taskClass);
+        if (result == null) {
+            result = new TaskMetrics();
+            TaskMetrics existing = metrics.putIfAbsent(taskClass, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wraps a task to measure its executions. The period is positive for tasks at a fixed rate, negative for tasks
+     * with a fixed delay and zero for tasks that run once. The executions of a periodic task never overlap, so the
+     * nominal start does not need to be synchronized.
+     */
+    private class InstrumentedTask<V> implements Runnable, Callable<V> {
+        private final TaskMetrics taskMetrics;
+        private final Callable<V> callable;
+        private final Runnable runnable;
+        private final long period;
+        private long nominalStart;
+        private boolean started;
+
+        InstrumentedTask(TaskMetrics taskMetrics, Callable<V> callable, Runnable runnable, long start, long period) {
+            this.taskMetrics = taskMetrics;
+            this.callable = callable;
+            this.runnable = runnable;
+            nominalStart = start;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            try {
+                call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public V call() throws Exception {
+            long start = nanoTime();
+            if (period == 0 || !started) {
+                taskMetrics.queueDelay.record(start - nominalStart);
+            } else {
+                taskMetrics.drift.record(start - nominalStart);
+            }
+            started = true;
+            boolean failed = true;
+            try {
+                V result = callable != null ? callable.call() : null;
+                if (runnable != null) {
+                    runnable.run();
+                }
+                failed = false;
+                return result;
+            } finally {
+                long end = nanoTime();
+                taskMetrics.runTime.record(end - start);
+                if (failed) {
+                    taskMetrics.failures.incrementAndGet();
+                }
+                if (period > 0) {
+                    if (end - start > period) {
+                        taskMetrics.overruns.incrementAndGet();
+                    }
+                    nominalStart += period;
+                } else if (period < 0) {
+                    nominalStart = end - period;
+                }
+            }
+        }
+    }
+}
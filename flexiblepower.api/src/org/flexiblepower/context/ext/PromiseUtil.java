@@ -0,0 +1,189 @@
+package org.flexiblepower.context.ext;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.context.Promise;
+
+/**
+ * This is a utility class to run work on a {@link FlexiblePowerContext} as {@link Promise}s. All timing is done with
+ * the schedule methods of the context, so the delays and timeouts follow the clock of the context, also under
+ * simulated time.
+ */
+public final class PromiseUtil {
+    private PromiseUtil() {
+    }
+
+    /**
+     * Submits a task to the context.
+     *
+     * @param context
+     *            The context that runs the task
+     * @param task
+     *            The task to run
+     * @param <T>
+     *            The type of the result
+     * @return A promise of the result of the task. Cancelling the promise cancels the task.
+     * @see FlexiblePowerContext#submit(Callable)
+     */
+    public static <T> Promise<T> submit(FlexiblePowerContext context, Callable<T> task) {
+        TaskPromise<T> promise = new TaskPromise<T>(task);
+        promise.setFuture(context.submit((Runnable) promise));
+        return promise;
+    }
+
+    /**
+     * Schedules a task on the context.
+     *
+     * @param context
+     *            The context that runs the task
+     * @param task
+     *            The task to run
+     * @param delay
+     *            The time from now to delay the execution
+     * @param <T>
+     *            The type of the result
+     * @return A promise of the result of the task. Cancelling the promise cancels the task.
+     * @see FlexiblePowerContext#schedule(Callable, Measurable)
+     */
+    public static <T> Promise<T> schedule(FlexiblePowerContext context, Callable<T> task, Measurable<Duration> delay) {
+        TaskPromise<T> promise = new TaskPromise<T>(task);
+        promise.setFuture(context.schedule((Runnable) promise, delay));
+        return promise;
+    }
+
+    /**
+     * Returns a promise that completes with <code>null</code> after the given delay.
+     *
+     * @param context
+     *            The context that determines the time
+     * @param delay
+     *            The time from now until the completion
+     * @return The promise
+     */
+    public static Promise<Void> delay(FlexiblePowerContext context, Measurable<Duration> delay) {
+        return schedule(context, new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }, delay);
+    }
+
+    /**
+     * Returns a promise that completes in the same way as the given promise, or exceptionally with a
+     * {@link TimeoutException} when the given promise has not completed within the timeout.
+     *
+     * @param context
+     *            The context that determines the time
+     * @param promise
+     *            The promise to wait for
+     * @param timeout
+     *            The maximum time to wait. E.g. 10 seconds is <code>Measure.valueOf(10, SI.SECOND)</code>.
+     * @param <T>
+     *            The type of the result
+     * @return The new promise
+     */
+    public static <T> Promise<T> withTimeout(FlexiblePowerContext context,
+                                             Promise<T> promise,
+                                             final Measurable<Duration> timeout) {
+        final CompletablePromise<T> result = new CompletablePromise<T>();
+        final Future<?> timer = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.completeExceptionally(new TimeoutException("No result within " + timeout));
+            }
+        }, timeout);
+        return complete(result, promise, timer);
+    }
+
+    /**
+     * Returns a promise that completes in the same way as the given promise, or with the given value when the given
+     * promise has not completed within the timeout.
+     *
+     * @param context
+     *            The context that determines the time
+     * @param promise
+     *            The promise to wait for
+     * @param value
+     *            The result when the timeout passes
+     * @param timeout
+     *            The maximum time to wait
+     * @param <T>
+     *            The type of the result
+     * @return The new promise
+     */
+    public static <T> Promise<T> completeOnTimeout(FlexiblePowerContext context,
+                                                   Promise<T> promise,
+                                                   final T value,
+                                                   Measurable<Duration> timeout) {
+        final CompletablePromise<T> result = new CompletablePromise<T>();
+        final Future<?> timer = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.complete(value);
+            }
+        }, timeout);
+        return complete(result, promise, timer);
+    }
+
+    private static <T> Promise<T> complete(final CompletablePromise<T> result, Promise<T> promise, final Future<?> timer) {
+        promise.whenComplete(result.completer());
+        result.whenComplete(new Promise.Listener<T>() {
+            @Override
+            public void completed(T value, Throwable failure) {
+                timer.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * A promise that is completed by running a task, and cancels the task when it is cancelled.
+     */
+    private static class TaskPromise<T> extends CompletablePromise<T> implements Runnable {
+        private final Callable<T> task;
+        private volatile Future<?> future;
+
+        TaskPromise(Callable<T> task) {
+            if (task == null) {
+                throw new NullPointerException();
+            }
+            this.task = task;
+        }
+
+        void setFuture(Future<?> future) {
+            this.future = future;
+            if (isCancelled()) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            try {
+                complete(task.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<?> f = future;
+            if (cancelled && f != null) {
+                f.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.flexiblepower.context.ext;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+
+/**
+ * The {@link SampleTimer} records the durations of an operation in a {@link Histogram}, measured on the monotonic clock
+ * of a {@link FlexiblePowerClock}. A sample is the start time that is returned by {@link #start()} and passed to
+ * {@link #stop(long)}, so taking a sample does not allocate and a single timer can be shared by many threads. E.g.:
+ *
+ * <pre>
+ * long sample = timer.start();
+ * try {
+ *     // The work to measure
+ * } finally {
+ *     timer.stop(sample);
+ * }
+ * </pre>
+ */
+public final class SampleTimer {
+    private final FlexiblePowerClock clock;
+    private final Histogram histogram = new Histogram();
+
+    /**
+     * Creates a new timer without samples.
+     *
+     * @param clock
+     *            The clock that is used to measure the time
+     */
+    public SampleTimer(FlexiblePowerClock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock");
+        }
+        this.clock = clock;
+    }
+
+    /**
+     * Starts a sample.
+     *
+     * @return The start of the sample, which should be passed to {@link #stop(long)}
+     */
+    public long start() {
+        return clock.nanoTime();
+    }
+
+    /**
+     * Stops a sample and records its duration.
+     *
+     * @param sample
+     *            The value that was returned by {@link #start()}
+     * @return The duration of the sample in nanoseconds
+     */
+    public long stop(long sample) {
+        long duration = clock.nanoTime() - sample;
+        histogram.record(duration);
+        return duration;
+    }
+
+    /**
+     * Records a duration that has been measured elsewhere.
+     *
+     * @param durationNanos
+     *            The duration in nanoseconds
+     */
+    public void record(long durationNanos) {
+        histogram.record(durationNanos);
+    }
+
+    /**
+     * @return The distribution of the recorded durations in nanoseconds.
+     */
+    public Histogram.Snapshot snapshot() {
+        return histogram.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return "SampleTimer [" + histogram.snapshot() + "]";
+    }
+}
@@ -0,0 +1,376 @@
+package org.flexiblepower.context.ext;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link SimulatedFlexiblePowerContext} is a discrete-event simulation of the {@link FlexiblePowerContext}. It has
+ * a virtual clock that only moves when the simulation is driven forward and all submitted and scheduled tasks are
+ * kept in a single event queue, ordered by their virtual execution time.
+ *
+ * The simulation is driven by calling one of the run methods, which execute the tasks in the calling thread. Whenever
+ * no task is due at the current virtual time, the clock jumps straight to the time of the next task. Tasks that are due
+ * at the same time are executed in the order in which they were scheduled, so a simulation that is driven from a
+ * single thread is deterministic and can be reproduced exactly. E.g.:
+ *
+ * <pre>
+ * SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(startTime);
+ * // Activate the components with this context
+ * context.runFor(Measure.valueOf(365, NonSI.DAY));
+ * </pre>
+ *
+ * Tasks may be scheduled from any thread, but a task that is scheduled from another thread while the simulation is
+ * running is only guaranteed to be executed by a later call to one of the run methods. Note that calling
+ * {@link Future#get()} from the thread that drives the simulation blocks forever when the task has not been executed
+ * yet.
+ *
+ * This class also implements the {@link FlexiblePowerClock}, where all precision levels follow the virtual clock, and
+ * the deprecated {@link org.flexiblepower.time.TimeService}, so older components can be run in the same simulation.
+ */
+@SuppressWarnings("deprecation")
+public class SimulatedFlexiblePowerContext implements FlexiblePowerContext,
+                                          FlexiblePowerClock,
+                                          org.flexiblepower.time.TimeService {
+    private final PriorityQueue<SimulatedTask<?>> queue = new PriorityQueue<SimulatedTask<?>>();
+    private final long startTime;
+    private volatile long currentTime;
+    private long sequence;
+    private long executedTasks;
+    // The number of cancelled tasks that are still in the queue
+    private int cancelledTasks;
+
+    /**
+     * Creates a new simulation context where the virtual clock starts at the given time.
+     *
+     * @param startTimeMillis
+     *            The start time of the simulation in milliseconds since the epoch
+     */
+    public SimulatedFlexiblePowerContext(long startTimeMillis) {
+        startTime = startTimeMillis;
+        currentTime = startTimeMillis;
+    }
+
+    /**
+     * Creates a new simulation context where the virtual clock starts at the given time.
+     *
+     * @param startTime
+     *            The start time of the simulation
+     */
+    public SimulatedFlexiblePowerContext(Date startTime) {
+        this(startTime.getTime());
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return currentTime;
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date(currentTime);
+    }
+
+    /**
+     * @return The virtual time, the simulated clock has no coarse resolution.
+     */
+    @Override
+    public long coarseTimeMillis() {
+        return currentTime;
+    }
+
+    /**
+     * @return The virtual time that has passed since the start of the simulation, in nanoseconds.
+     */
+    @Override
+    public long nanoTime() {
+        return TimeUnit.MILLISECONDS.toNanos(currentTime - startTime);
+    }
+
+    @Override
+    public Date getTime() {
+        return currentTime();
+    }
+
+    @Override
+    public long getCurrentTimeMillis() {
+        return currentTime;
+    }
+
+    /**
+     * Executes the next task in the event queue. If that task is scheduled in the future, the virtual clock first jumps
+     * to its execution time.
+     *
+     * @return <code>true</code> when a task has been executed, <code>false</code> when the event queue is empty.
+     */
+    public boolean runNext() {
+        SimulatedTask<?> task;
+        synchronized (this) {
+            task = peekLive();
+            if (task == null) {
+                return false;
+            }
+            queue.poll();
+            task.queued = false;
+            if (task.time > currentTime) {
+                currentTime = task.time;
+            }
+            executedTasks++;
+        }
+        task.run();
+        return true;
+    }
+
+    /**
+     * Executes all tasks that are scheduled up to and including the given time, including the tasks that are scheduled
+     * by those tasks, and then moves the virtual clock to that time.
+     *
+     * @param timeMillis
+     *            The time in milliseconds since the epoch until which the simulation runs
+     * @return The number of tasks that have been executed.
+     * @throws IllegalArgumentException
+     *             when the given time lies before the current virtual time
+     */
+    public long runUntil(long timeMillis) {
+        if (timeMillis < currentTime) {
+            throw new IllegalArgumentException("Can not run the simulation back to " + new Date(timeMillis));
+        }
+        long count = 0;
+        while (true) {
+            synchronized (this) {
+                SimulatedTask<?> next = peekLive();
+                if (next == null || next.time > timeMillis) {
+                    currentTime = timeMillis;
+                    return count;
+                }
+            }
+            runNext();
+            count++;
+        }
+    }
+
+    /**
+     * Executes all tasks that are scheduled during the given duration from the current virtual time.
+     *
+     * @param duration
+     *            The duration that should be simulated
+     * @return The number of tasks that have been executed.
+     * @see #runUntil(long)
+     */
+    public long runFor(Measurable<Duration> duration) {
+        return runUntil(TimeUtil.add(currentTime, duration));
+    }
+
+    /**
+     * Executes tasks until the event queue is empty. Note that this never returns when there are periodic tasks.
+     *
+     * @return The number of tasks that have been executed.
+     */
+    public long runUntilEmpty() {
+        long count = 0;
+        while (runNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of tasks that are waiting in the event queue.
+     */
+    public synchronized int getPendingTaskCount() {
+        return queue.size() - cancelledTasks;
+    }
+
+    /**
+     * @return The total number of task executions since this context was created, where each execution of a periodic
+     *         task is counted separately.
+     */
+    public synchronized long getExecutedTaskCount() {
+        return executedTasks;
+    }
+
+    /**
+     * @return The virtual execution time of the next task in milliseconds since the epoch, or {@link Long#MAX_VALUE}
+     *         when the event queue is empty.
+     */
+    public synchronized long getNextTaskTime() {
+        SimulatedTask<?> next = peekLive();
+        return next == null ? Long.MAX_VALUE : next.time;
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return enqueue(new SimulatedTask<T>(task, currentTime, 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return enqueue(new SimulatedTask<T>(Executors.callable(task, result), currentTime, 0));
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return schedule(Executors.callable(command), delay);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return enqueue(new SimulatedTask<V>(callable, timeAfter(delay), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return enqueue(new SimulatedTask<Object>(Executors.callable(command), timeAfter(initialDelay), positive(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return enqueue(new SimulatedTask<Object>(Executors.callable(command), timeAfter(initialDelay), -positive(delay)));
+    }
+
+    private long timeAfter(Measurable<Duration> delay) {
+        return currentTime + Math.max(0, TimeUtil.toMillis(delay));
+    }
+
+    private static long positive(Measurable<Duration> period) {
+        long ms = TimeUtil.toMillis(period);
+        if (ms <= 0) {
+            throw new IllegalArgumentException("The period should be positive, but is " + period);
+        }
+        return ms;
+    }
+
+    private synchronized <V> SimulatedTask<V> enqueue(SimulatedTask<V> task) {
+        if (!task.isCancelled()) {
+            task.sequenceNumber = sequence++;
+            task.queued = true;
+            queue.add(task);
+        }
+        return task;
+    }
+
+    /**
+     * Returns the first task in the queue that has not been cancelled. Cancelled tasks stay in the queue until they
+     * reach its head, because removing them from the middle of the queue takes linear time.
+     */
+    private SimulatedTask<?> peekLive() {
+        SimulatedTask<?> next = queue.peek();
+        while (next != null && next.counted) {
+            queue.poll();
+            next.queued = false;
+            next.counted = false;
+            cancelledTasks--;
+            next = queue.peek();
+        }
+        return next;
+    }
+
+    private synchronized void cancelled(SimulatedTask<?> task) {
+        if (task.queued && !task.counted) {
+            task.counted = true;
+            cancelledTasks++;
+            if (cancelledTasks > 64 && cancelledTasks > queue.size() / 2) {
+                // Most of the queue has been cancelled, so it is cheaper to remove all of them at once
+                for (Iterator<SimulatedTask<?>> it = queue.iterator(); it.hasNext();) {
+                    SimulatedTask<?> next = it.next();
+                    if (next.counted) {
+                        it.remove();
+                        next.queued = false;
+                        next.counted = false;
+                    }
+                }
+                cancelledTasks = 0;
+            }
+        }
+    }
+
+    /**
+     * A task in the event queue. The period is positive for tasks at a fixed rate, negative for tasks with a fixed
+     * delay and zero for tasks that run once.
+     */
+    private class SimulatedTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final long period;
+        private long time;
+        private long sequenceNumber;
+        // Guarded by the context. Counted means that the task has been cancelled while it was queued.
+        private boolean queued;
+        private boolean counted;
+
+        SimulatedTask(Callable<V> callable, long time, long period) {
+            super(callable);
+            if (callable == null) {
+                throw new NullPointerException();
+            }
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - currentTime, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            } else if (other instanceof SimulatedTask) {
+                SimulatedTask<?> that = (SimulatedTask<?>) other;
+                if (time != that.time) {
+                    return time < that.time ? -1 : 1;
+                }
+                return sequenceNumber < that.sequenceNumber ? -1 : 1;
+            }
+            long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period : currentTime - period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                cancelled(this);
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.flexiblepower.context.ext;
+
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+
+/**
+ * The {@link Stopwatch} measures elapsed time on the monotonic clock of a {@link FlexiblePowerClock}, so it measures
+ * context time, also under simulation. Starting, stopping and reading the stopwatch do not allocate, so a single
+ * instance can be reused on a hot path. E.g.:
+ *
+ * <pre>
+ * Stopwatch stopwatch = new Stopwatch(ContextClocks.clockOf(context));
+ * stopwatch.start();
+ * // The work to measure
+ * long nanos = stopwatch.stop();
+ * </pre>
+ *
+ * A stopwatch accumulates the time of all intervals between {@link #start()} and {@link #stop()} until it is
+ * {@link #reset()}. Instances are not thread-safe.
+ */
+public final class Stopwatch {
+    private final FlexiblePowerClock clock;
+    private boolean running;
+    private long startNanos;
+    private long elapsedNanos;
+
+    /**
+     * Creates a new stopwatch that is not running.
+     *
+     * @param clock
+     *            The clock that is used to measure the time
+     */
+    public Stopwatch(FlexiblePowerClock clock) {
+        if (clock == null) {
+            throw new NullPointerException("clock");
+        }
+        this.clock = clock;
+    }
+
+    /**
+     * Starts the stopwatch.
+     *
+     * @return this
+     * @throws IllegalStateException
+     *             when the stopwatch is already running
+     */
+    public Stopwatch start() {
+        if (running) {
+            throw new IllegalStateException("The stopwatch is already running");
+        }
+        running = true;
+        startNanos = clock.nanoTime();
+        return this;
+    }
+
+    /**
+     * Stops the stopwatch.
+     *
+     * @return The total elapsed time in nanoseconds
+     * @throws IllegalStateException
+     *             when the stopwatch is not running
+     */
+    public long stop() {
+        if (!running) {
+            throw new IllegalStateException("The stopwatch is not running");
+        }
+        elapsedNanos += clock.nanoTime() - startNanos;
+        running = false;
+        return elapsedNanos;
+    }
+
+    /**
+     * Stops the stopwatch, if it is running, and sets the elapsed time to zero.
+     *
+     * @return this
+     */
+    public Stopwatch reset() {
+        running = false;
+        elapsedNanos = 0;
+        return this;
+    }
+
+    /**
+     * @return <code>true</code> when the stopwatch has been started and not stopped.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The total elapsed time in nanoseconds, including the current interval when the stopwatch is running.
+     */
+    public long elapsedNanos() {
+        return running ? elapsedNanos + clock.nanoTime() - startNanos : elapsedNanos;
+    }
+
+    /**
+     * @param unit
+     *            The unit of the result
+     * @return The total elapsed time in the given unit, rounded down.
+     */
+    public long elapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "Stopwatch [running=" + running + ", elapsedNanos=" + elapsedNanos() + "]";
+    }
+}
@@ -0,0 +1,86 @@
+package org.flexiblepower.context.ext;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link SystemClock} is a {@link FlexiblePowerClock} on the system clock. The coarse time is updated by a daemon
+ * ticker thread at a configurable resolution, so reading it is a single volatile read instead of a system call.
+ *
+ * The ticker thread is stopped by {@link #close()}, after which the coarse time follows the exact time.
+ */
+public class SystemClock implements FlexiblePowerClock, Closeable {
+    /**
+     * The default resolution of the coarse time of 10 milliseconds.
+     */
+    public static final Measurable<Duration> DEFAULT_RESOLUTION = Measure.valueOf(10, TimeUtil.MS);
+
+    private final Thread ticker;
+    private volatile boolean running = true;
+    private volatile long coarseTime = System.currentTimeMillis();
+
+    /**
+     * Creates a new clock where the coarse time has the default resolution.
+     */
+    public SystemClock() {
+        this(DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * Creates a new clock.
+     *
+     * @param resolution
+     *            The interval at which the coarse time is updated
+     * @throws IllegalArgumentException
+     *             when the resolution is not positive
+     */
+    public SystemClock(Measurable<Duration> resolution) {
+        final long resolutionNanos = TimeUtil.toTimeUnit(resolution, TimeUnit.NANOSECONDS);
+        if (resolutionNanos <= 0) {
+            throw new IllegalArgumentException("The resolution should be positive, but is " + resolution);
+        }
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    LockSupport.parkNanos(SystemClock.this, resolutionNanos);
+                    coarseTime = System.currentTimeMillis();
+                }
+            }
+        }, "FlexiblePowerClock ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long coarseTimeMillis() {
+        return running ? coarseTime : System.currentTimeMillis();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Stops the ticker thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
@@ -0,0 +1,489 @@
+package org.flexiblepower.context.ext;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link TimingWheelFlexiblePowerContext} is a {@link FlexiblePowerContext} that keeps its scheduled tasks in a
+ * hierarchical timing wheel instead of a heap. Scheduling and cancelling a task take constant time, which makes it
+ * suitable for runtimes with hundreds of thousands of live {@link ScheduledFuture}s, such as a polling task per device
+ * and a timeout per message.
+ *
+ * The wheel has a number of levels that each have the same number of slots. A slot of the lowest level covers one
+ * tick, a slot of each next level covers all slots of the level below it. Tasks that are due further in the future
+ * are kept in a higher level and move down a level each time the wheel passes their slot. The wheel is owned by a
+ * single ticker thread; scheduling and cancelling only add the task to a lock-free queue that the ticker drains every
+ * tick. Scheduling takes the read side of a lock that is only written by {@link #close()}, so callers do not contend
+ * with each other.
+ *
+ * Expired tasks are executed on the worker pool that is given to the constructor, which is also used for the submit
+ * methods. A task is never executed before its delay has passed, but it may be executed up to one tick later.
+ *
+ * This class also implements the {@link FlexiblePowerClock}. The coarse time is updated by the ticker thread on every
+ * tick, so its resolution is the tick duration.
+ *
+ * The ticker thread is a daemon thread that is stopped by {@link #close()}. Closing the context cancels all scheduled
+ * tasks and rejects new ones, but does not shut down the worker pool.
+ */
+public class TimingWheelFlexiblePowerContext implements FlexiblePowerContext, FlexiblePowerClock, Closeable {
+    /**
+     * The default tick duration of 10 milliseconds.
+     */
+    public static final Measurable<Duration> DEFAULT_TICK = Measure.valueOf(10, TimeUtil.MS);
+
+    /**
+     * The default number of slots on each level of the wheel.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The default number of levels of the wheel.
+     */
+    public static final int DEFAULT_LEVELS = 4;
+
+    private final Executor workerPool;
+    private final long tickNanos;
+    private final int bits;
+    private final int mask;
+    private final WheelTask<?>[][] slots;
+    private final long startNanos;
+
+    private final Queue<WheelTask<?>> scheduledTasks = new ConcurrentLinkedQueue<WheelTask<?>>();
+    private final Queue<WheelTask<?>> cancelledTasks = new ConcurrentLinkedQueue<WheelTask<?>>();
+    private final Thread ticker;
+    // Written under the write lock, so no task is added to the scheduled tasks after the ticker has drained them
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+    private volatile boolean running = true;
+    private volatile long coarseTime = System.currentTimeMillis();
+
+    // Only accessed by the ticker thread
+    private long currentTick;
+    private volatile int size;
+
+    /**
+     * Creates a new context with the default tick duration and wheel dimensions.
+     *
+     * @param workerPool
+     *            The executor that runs the submitted and expired tasks
+     */
+    public TimingWheelFlexiblePowerContext(Executor workerPool) {
+        this(workerPool, DEFAULT_TICK, DEFAULT_WHEEL_SIZE, DEFAULT_LEVELS);
+    }
+
+    /**
+     * Creates a new context.
+     *
+     * @param workerPool
+     *            The executor that runs the submitted and expired tasks
+     * @param tick
+     *            The resolution of the timer
+     * @param wheelSize
+     *            The number of slots on each level of the wheel, must be a power of two
+     * @param levels
+     *            The number of levels of the wheel. Tasks that are due beyond the span of the wheel (
+     *            <code>tick * wheelSize ^ levels</code>) are kept in the highest level until they are within reach.
+     * @throws IllegalArgumentException
+     *             when the tick is not positive or when the wheel dimensions are invalid
+     */
+    public TimingWheelFlexiblePowerContext(Executor workerPool, Measurable<Duration> tick, int wheelSize, int levels) {
+        if (workerPool == null) {
+            throw new NullPointerException("workerPool");
+        }
+        if (wheelSize < 2 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("The wheel size should be a power of two, but is " + wheelSize);
+        }
+        if (levels < 1 || levels * Integer.numberOfTrailingZeros(wheelSize) >= Long.SIZE - 2) {
+            throw new IllegalArgumentException("Invalid number of levels " + levels);
+        }
+        this.workerPool = workerPool;
+        tickNanos = TimeUtil.toTimeUnit(tick, TimeUnit.NANOSECONDS);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("The tick should be positive, but is " + tick);
+        }
+        bits = Integer.numberOfTrailingZeros(wheelSize);
+        mask = wheelSize - 1;
+        slots = new WheelTask<?>[levels][wheelSize];
+        startNanos = System.nanoTime();
+
+        ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, "FlexiblePowerContext timing wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public Date currentTime() {
+        return new Date();
+    }
+
+    @Override
+    public long coarseTimeMillis() {
+        return running ? coarseTime : System.currentTimeMillis();
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return execute(new WheelTask<T>(task, 0, 0));
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return execute(new WheelTask<T>(Executors.callable(task, result), 0, 0));
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return schedule(Executors.callable(command), delay);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return enqueue(new WheelTask<V>(callable, deadlineAfter(delay), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return enqueue(new WheelTask<Object>(Executors.callable(command),
+                                             deadlineAfter(initialDelay),
+                                             positiveNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return enqueue(new WheelTask<Object>(Executors.callable(command),
+                                             deadlineAfter(initialDelay),
+                                             -positiveNanos(delay)));
+    }
+
+    /**
+     * @return The number of scheduled tasks that are kept in the wheel. This does not include the tasks that have been
+     *         scheduled or cancelled since the last tick.
+     */
+    public int getScheduledTaskCount() {
+        return size;
+    }
+
+    /**
+     * Stops the ticker thread and cancels all scheduled tasks. Tasks that are already running on the worker pool are
+     * not interrupted.
+     */
+    @Override
+    public void close() {
+        runningLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+        LockSupport.unpark(ticker);
+        if (Thread.currentThread() != ticker) {
+            try {
+                ticker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private long deadlineAfter(Measurable<Duration> delay) {
+        return elapsedNanos() + Math.max(0, TimeUtil.toTimeUnit(delay, TimeUnit.NANOSECONDS));
+    }
+
+    private static long positiveNanos(Measurable<Duration> period) {
+        long nanos = TimeUtil.toTimeUnit(period, TimeUnit.NANOSECONDS);
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("The period should be positive, but is " + period);
+        }
+        return nanos;
+    }
+
+    private <V> WheelTask<V> enqueue(WheelTask<V> task) {
+        if (!offer(task)) {
+            throw new RejectedExecutionException("The context has been closed");
+        }
+        return task;
+    }
+
+    /**
+     * Adds a task to the queue that the ticker drains, unless the context has been closed.
+     *
+     * @return <code>true</code> when the task has been added
+     */
+    private boolean offer(WheelTask<?> task) {
+        runningLock.readLock().lock();
+        try {
+            if (!running) {
+                return false;
+            }
+            scheduledTasks.add(task);
+            return true;
+        } finally {
+            runningLock.readLock().unlock();
+        }
+    }
+
+    private <V> WheelTask<V> execute(WheelTask<V> task) {
+        if (!running) {
+            throw new RejectedExecutionException("The context has been closed");
+        }
+        workerPool.execute(task);
+        return task;
+    }
+
+    private void tick() {
+        while (running) {
+            long sleep = (currentTick + 1) * tickNanos - elapsedNanos();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            currentTick++;
+            coarseTime = System.currentTimeMillis();
+            removeCancelled();
+            addScheduled();
+            for (int level = slots.length - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (bits * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (bits * level)) & mask);
+                }
+            }
+            expire((int) currentTick & mask);
+        }
+        shutdown();
+    }
+
+    private void removeCancelled() {
+        for (WheelTask<?> task = cancelledTasks.poll(); task != null; task = cancelledTasks.poll()) {
+            if (task.level >= 0) {
+                unlink(task);
+            }
+        }
+    }
+
+    private void addScheduled() {
+        for (WheelTask<?> task = scheduledTasks.poll(); task != null; task = scheduledTasks.poll()) {
+            if (!task.isCancelled()) {
+                add(task);
+            }
+        }
+    }
+
+    private void add(WheelTask<?> task) {
+        // Round up, so a task never runs before its deadline
+        long deadlineTick = (task.deadline + tickNanos - 1) / tickNanos;
+        if (deadlineTick <= currentTick) {
+            dispatch(task);
+            return;
+        }
+        int top = slots.length - 1;
+        for (int level = 0; level <= top; level++) {
+            int shift = bits * level;
+            if ((deadlineTick >>> shift) - (currentTick >>> shift) <= mask) {
+                link(task, level, (int) (deadlineTick >>> shift) & mask);
+                return;
+            }
+        }
+        // Beyond the span of the wheel, park it in the last slot of the highest level until it comes within reach
+        link(task, top, (int) ((currentTick >>> (bits * top)) + mask) & mask);
+    }
+
+    private void cascade(int level, int slot) {
+        WheelTask<?> task = slots[level][slot];
+        slots[level][slot] = null;
+        while (task != null) {
+            WheelTask<?> next = task.next;
+            task.level = -1;
+            task.next = null;
+            task.previous = null;
+            size--;
+            add(task);
+            task = next;
+        }
+    }
+
+    private void expire(int slot) {
+        WheelTask<?> task = slots[0][slot];
+        slots[0][slot] = null;
+        while (task != null) {
+            WheelTask<?> next = task.next;
+            task.level = -1;
+            task.next = null;
+            task.previous = null;
+            size--;
+            dispatch(task);
+            task = next;
+        }
+    }
+
+    private void dispatch(WheelTask<?> task) {
+        if (task.isCancelled()) {
+            return;
+        }
+        try {
+            workerPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.reject(e);
+        }
+    }
+
+    private void link(WheelTask<?> task, int level, int slot) {
+        WheelTask<?> head = slots[level][slot];
+        task.level = level;
+        task.slot = slot;
+        task.previous = null;
+        task.next = head;
+        if (head != null) {
+            head.previous = task;
+        }
+        slots[level][slot] = task;
+        size++;
+    }
+
+    private void unlink(WheelTask<?> task) {
+        if (task.previous == null) {
+            slots[task.level][task.slot] = task.next;
+        } else {
+            task.previous.next = task.next;
+        }
+        if (task.next != null) {
+            task.next.previous = task.previous;
+        }
+        task.level = -1;
+        task.next = null;
+        task.previous = null;
+        size--;
+    }
+
+    private void shutdown() {
+        for (WheelTask<?>[] level : slots) {
+            for (int slot = 0; slot < level.length; slot++) {
+                for (WheelTask<?> task = level[slot]; task != null; task = task.next) {
+                    task.cancel(false);
+                }
+                level[slot] = null;
+            }
+        }
+        for (WheelTask<?> task = scheduledTasks.poll(); task != null; task = scheduledTasks.poll()) {
+            task.cancel(false);
+        }
+        cancelledTasks.clear();
+        size = 0;
+    }
+
+    /**
+     * A task in the wheel. The deadline is in nanoseconds since the start of the context. The period is positive for
+     * tasks at a fixed rate, negative for tasks with a fixed delay and zero for tasks that run once. The links are only
+     * accessed by the ticker thread.
+     */
+    private class WheelTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        private final long period;
+        private volatile long deadline;
+
+        private WheelTask<?> previous;
+        private WheelTask<?> next;
+        private int level = -1;
+        private int slot;
+
+        WheelTask(Callable<V> callable, long deadline, long period) {
+            super(callable);
+            if (callable == null) {
+                throw new NullPointerException();
+            }
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - elapsedNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            }
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (runAndReset()) {
+                deadline = period > 0 ? deadline + period : elapsedNanos() - period;
+                if (!offer(this)) {
+                    cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && running) {
+                cancelledTasks.add(this);
+            }
+            return cancelled;
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+    }
+}
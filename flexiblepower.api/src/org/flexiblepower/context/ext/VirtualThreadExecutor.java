@@ -0,0 +1,294 @@
+package org.flexiblepower.context.ext;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@link VirtualThreadExecutor} runs each task on its own virtual thread when the JVM supports them (Java 21 and
+ * later), and on a fallback {@link ExecutorService} otherwise. It is meant as the worker pool of a context that
+ * schedules on a small number of platform threads, so components can submit thousands of blocking device calls (such
+ * as Modbus reads or HTTP calls to a local gateway) without starving each other. E.g.:
+ *
+ * <pre>
+ * VirtualThreadExecutor workers = VirtualThreadExecutor.create(false);
+ * FlexiblePowerContext context = new TimingWheelFlexiblePowerContext(workers);
+ * </pre>
+ *
+ * Here the timing stays on the single ticker thread of the timing wheel, while the task bodies run on virtual threads.
+ *
+ * The executor keeps track of the number of running tasks and, when the JVM allows access to it, of the use of the
+ * carrier threads that run the virtual threads. When pinning is monitored, the <code>jdk.VirtualThreadPinned</code>
+ * events of the flight recorder are counted, which shows how often and how long a virtual thread blocked its carrier
+ * thread, for example by blocking inside a <code>synchronized</code> block.
+ *
+ * The virtual threads are accessed through reflection, so this class can be used on older JVMs as well.
+ */
+public class VirtualThreadExecutor implements Executor, Closeable {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    /**
+     * Creates a new executor that falls back to a cached thread pool when virtual threads are not supported.
+     *
+     * @param monitorPinning
+     *            <code>true</code> when the pinning of carrier threads should be monitored, which has a small overhead
+     * @return The new executor
+     */
+    public static VirtualThreadExecutor create(boolean monitorPinning) {
+        return new VirtualThreadExecutor(null, monitorPinning);
+    }
+
+    private final ExecutorService executor;
+    private final ExecutorService fallback;
+    private final boolean virtual;
+    private final ForkJoinPool carrierPool;
+    private final Closeable pinningMonitor;
+
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicInteger peakActiveTasks = new AtomicInteger();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong pinnedEvents = new AtomicLong();
+    private final AtomicLong pinnedNanos = new AtomicLong();
+
+    /**
+     * Creates a new executor.
+     *
+     * @param fallback
+     *            The executor that runs the tasks when virtual threads are not supported, or <code>null</code> to use a
+     *            cached thread pool. It is shut down when this executor is closed, also when it was not used.
+     * @param monitorPinning
+     *            <code>true</code> when the pinning of carrier threads should be monitored, which has a small overhead
+     */
+    public VirtualThreadExecutor(ExecutorService fallback, boolean monitorPinning) {
+        this.fallback = fallback;
+        ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+        virtual = virtualExecutor != null;
+        if (virtual) {
+            executor = virtualExecutor;
+        } else {
+            executor = fallback != null ? fallback : Executors.newCachedThreadPool();
+        }
+        carrierPool = virtual ? findCarrierPool() : null;
+        pinningMonitor = virtual && monitorPinning ? startPinningMonitor() : null;
+    }
+
+    /**
+     * @return <code>true</code> when the tasks are run on virtual threads, <code>false</code> when they are run on the
+     *         fallback executor.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int active = activeTasks.incrementAndGet();
+                int peak = peakActiveTasks.get();
+                while (active > peak && !peakActiveTasks.compareAndSet(peak, active)) {
+                    peak = peakActiveTasks.get();
+                }
+                try {
+                    command.run();
+                } finally {
+                    activeTasks.decrementAndGet();
+                    completedTasks.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The number of tasks that are running at this moment.
+     */
+    public int getActiveTaskCount() {
+        return activeTasks.get();
+    }
+
+    /**
+     * @return The highest number of tasks that have been running at the same time.
+     */
+    public int getPeakActiveTaskCount() {
+        return peakActiveTasks.get();
+    }
+
+    /**
+     * @return The number of tasks that have finished.
+     */
+    public long getCompletedTaskCount() {
+        return completedTasks.get();
+    }
+
+    /**
+     * @return The number of carrier threads that are available to run virtual threads, or <code>-1</code> when
+     *         virtual threads are not used.
+     */
+    public int getCarrierParallelism() {
+        if (!virtual) {
+            return -1;
+        }
+        return carrierPool != null ? carrierPool.getParallelism()
+                                  : Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                                                       Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return The number of carrier threads that are running a virtual thread at this moment, or <code>-1</code> when
+     *         this is not known. The JVM only gives access to the carrier threads when the <code>java.lang</code>
+     *         package is opened to this bundle (<code>--add-opens java.base/java.lang=ALL-UNNAMED</code>).
+     */
+    public int getActiveCarrierCount() {
+        return carrierPool != null ? carrierPool.getActiveThreadCount() : -1;
+    }
+
+    /**
+     * @return <code>true</code> when the pinning of carrier threads is monitored.
+     */
+    public boolean isPinningMonitored() {
+        return pinningMonitor != null;
+    }
+
+    /**
+     * @return The number of times a virtual thread was pinned to its carrier thread while it blocked, or
+     *         <code>0</code> when pinning is not monitored.
+     */
+    public long getPinnedCount() {
+        return pinnedEvents.get();
+    }
+
+    /**
+     * @return The total time in nanoseconds that virtual threads blocked while they were pinned to their carrier
+     *         thread, or <code>0</code> when pinning is not monitored.
+     */
+    public long getPinnedNanos() {
+        return pinnedNanos.get();
+    }
+
+    /**
+     * Stops the monitoring and shuts down the executor and the fallback executor. Tasks that have been submitted before
+     * are still executed.
+     */
+    @Override
+    public void close() {
+        if (pinningMonitor != null) {
+            try {
+                pinningMonitor.close();
+            } catch (Exception e) {
+                // The monitor is only used for statistics
+            }
+        }
+        executor.shutdown();
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualThreadExecutor [virtual=" + virtual
+               + ", active="
+               + getActiveTaskCount()
+               + ", peak="
+               + getPeakActiveTaskCount()
+               + ", completed="
+               + getCompletedTaskCount()
+               + ", carriers="
+               + getActiveCarrierCount()
+               + "/"
+               + getCarrierParallelism()
+               + ", pinned="
+               + getPinnedCount()
+               + "]";
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            // Virtual threads are not supported or not enabled on this JVM
+            return null;
+        }
+    }
+
+    private static ForkJoinPool findCarrierPool() {
+        try {
+            Field field = Class.forName("java.lang.VirtualThread").getDeclaredField("DEFAULT_SCHEDULER");
+            field.setAccessible(true);
+            Object scheduler = field.get(null);
+            return scheduler instanceof ForkJoinPool ? (ForkJoinPool) scheduler : null;
+        } catch (Exception e) {
+            // The java.lang package has not been opened, the carrier use is not known
+            return null;
+        }
+    }
+
+    /**
+     * Starts a <code>jdk.jfr.consumer.RecordingStream</code> that counts the pinned events.
+     *
+     * @return The stream, or <code>null</code> when the flight recorder is not available.
+     */
+    private Closeable startPinningMonitor() {
+        try {
+            ClassLoader loader = ClassLoader.getSystemClassLoader();
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream", true, loader);
+            Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings", true, loader);
+            Class<?> recordedEventClass = Class.forName("jdk.jfr.consumer.RecordedEvent", true, loader);
+            Class<?> durationClass = Class.forName("java.time.Duration");
+            Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+
+            final Object stream = streamClass.getConstructor().newInstance();
+            Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+            settingsClass.getMethod("withThreshold", durationClass)
+                         .invoke(settings, durationClass.getField("ZERO").get(null));
+
+            final Method getDuration = recordedEventClass.getMethod("getDuration");
+            final Method toNanos = durationClass.getMethod("toNanos");
+            Object consumer = Proxy.newProxyInstance(loader, new Class<?>[] { consumerClass }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ("accept".equals(method.getName())) {
+                        pinnedEvents.incrementAndGet();
+                        pinnedNanos.addAndGet((Long) toNanos.invoke(getDuration.invoke(args[0])));
+                        return null;
+                    } else if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    } else if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return "PinningMonitor";
+                }
+            });
+            streamClass.getMethod("onEvent", String.class, consumerClass).invoke(stream, PINNED_EVENT, consumer);
+            streamClass.getMethod("startAsync").invoke(stream);
+
+            final Method close = streamClass.getMethod("close");
+            return new Closeable() {
+                @Override
+                public void close() {
+                    try {
+                        close.invoke(stream);
+                    } catch (Exception e) {
+                        // Already closed
+                    }
+                }
+            };
+        } catch (Exception e) {
+            // The flight recorder is not available on this JVM
+            return null;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+/**
+ * The extended context package contains implementations of the
+ * {@link org.flexiblepower.context.FlexiblePowerContext} that can be used by a runtime or in simulations and tests.
+ */
+@Version("1.0.0.${qualifier}")
+package org.flexiblepower.context.ext;
+
+import aQute.bnd.annotation.Version;
@@ -1,7 +1,8 @@
 /**
- * This packages defines the {@link org.flexiblepower.context.FlexiblePowerContext} interface.
+ * This packages defines the {@link org.flexiblepower.context.FlexiblePowerContext},
+ * {@link org.flexiblepower.context.FlexiblePowerClock} and {@link org.flexiblepower.context.Promise} interfaces.
  */
-@Version("1.0.0.${qualifier}")
+@Version("1.1.0.${qualifier}")
 package org.flexiblepower.context;
 
 import aQute.bnd.annotation.Version;
@@ -0,0 +1,29 @@
+package org.flexiblepower.messaging;
+
+import java.util.List;
+
+/**
+ * A {@link BatchMessageHandler} is a {@link MessageHandler} that can handle a number of messages in a single call. A
+ * runtime that supports this delivers the messages that are queued for the handler (up to a maximum, or those that
+ * arrive within a short time) together, so the handler can lock its state, write to a database or recompute an
+ * aggregate once per batch instead of once per message.
+ *
+ * The messages in a batch are in the order in which they were sent on each connection. The
+ * {@link #handleMessage(Object)} method may still be called for single messages, e.g. by a runtime that does not
+ * support batches.
+ *
+ * <p>
+ * <b>This interface should be implemented by users</b>
+ * </p>
+ */
+public interface BatchMessageHandler extends MessageHandler {
+    /**
+     * Called when a batch of messages is available for processing. This method is always called on a separate
+     * {@link Thread} by the runtime environment, and never concurrently with the other methods of this handler.
+     *
+     * @param messages
+     *            The messages that should be handled. The list can not be modified and is reused by the runtime, so it
+     *            is only valid during this call.
+     */
+    void handleMessages(List<Object> messages);
+}
@@ -0,0 +1,86 @@
+package org.flexiblepower.messaging;
+
+/**
+ * A {@link Connection} with a bounded queue. The runtime may provide this interface to let senders control the flow of
+ * messages, e.g. by skipping a message when the receiver is behind or by pausing when the queue passes a watermark.
+ * The capacity and the {@link OverflowPolicy} of the queue are defined by the receiving {@link Port}.
+ *
+ * <p>
+ * <b>This interface should never be implemented by users</b>
+ * </p>
+ */
+public interface BoundedConnection extends Connection {
+    /**
+     * The {@link WatermarkListener} is notified when the queue of a {@link BoundedConnection} passes its watermarks.
+     *
+     * <p>
+     * <b>This interface should be implemented by users</b>
+     * </p>
+     */
+    interface WatermarkListener {
+        /**
+         * Called on the sending thread when the number of queued messages has reached the high watermark.
+         *
+         * @param connection
+         *            The connection
+         * @param depth
+         *            The number of queued messages
+         */
+        void highWatermarkReached(BoundedConnection connection, int depth);
+
+        /**
+         * Called on the thread of the receiver when the number of queued messages has dropped to the low watermark,
+         * after the high watermark had been reached. When the queue has already drained while the high watermark was
+         * being reported, this is called on the sending thread right after
+         * {@link #highWatermarkReached(BoundedConnection, int)}.
+         *
+         * @param connection
+         *            The connection
+         * @param depth
+         *            The number of queued messages
+         */
+        void lowWatermarkReached(BoundedConnection connection, int depth);
+    }
+
+    /**
+     * Sends a message to the other {@link Endpoint} when it fits in the queue. This method never blocks and never
+     * throws an exception because the queue is full.
+     *
+     * @param message
+     *            The message that is to be sent.
+     * @return <code>true</code> when the message has been queued, <code>false</code> when it has been rejected because
+     *         the queue is full (the {@link OverflowPolicy} is {@link OverflowPolicy#BLOCK},
+     *         {@link OverflowPolicy#DROP_NEWEST} or {@link OverflowPolicy#FAIL}) or the connection has been
+     *         disconnected.
+     */
+    boolean trySendMessage(Object message);
+
+    /**
+     * @return The number of messages that have been sent but not yet handled.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return The maximum number of messages in the queue, or {@link Integer#MAX_VALUE} when the queue is unbounded.
+     */
+    int getQueueCapacity();
+
+    /**
+     * @return The number of messages that have been dropped or rejected because the queue was full, including the
+     *         messages that have been replaced by a newer message with the same key (see {@link Port#conflateBy()}).
+     */
+    long getDroppedCount();
+
+    /**
+     * Sets the watermarks of the queue. The listener is notified once when the high watermark is reached, and once
+     * when the queue has drained to the low watermark after that.
+     *
+     * @param low
+     *            The low watermark
+     * @param high
+     *            The high watermark, which should be larger than the low watermark
+     * @param listener
+     *            The listener, or <code>null</code> to remove the watermarks
+     */
+    void setWatermarks(int low, int high, WatermarkListener listener);
+}
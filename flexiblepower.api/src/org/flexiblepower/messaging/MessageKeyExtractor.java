@@ -0,0 +1,23 @@
+package org.flexiblepower.messaging;
+
+/**
+ * A {@link MessageKeyExtractor} determines which messages replace each other while they wait to be handled. This is
+ * useful for messages that describe a state, like the current flexibility of a device or the latest price: when a
+ * {@link MessageHandler} falls behind, only the newest message for each key is relevant.
+ *
+ * It is declared on the receiving port with {@link Port#conflateBy()}. When a message is received while a message with
+ * the same key is still queued, the queued message is replaced by the new one, at its position in the queue. Messages
+ * with other keys, or without a key, are handled in the order in which they have been sent.
+ *
+ * Implementations should have a public constructor without arguments and should be thread-safe, since one instance is
+ * used for all connections of the port.
+ */
+public interface MessageKeyExtractor {
+    /**
+     * @param message
+     *            The message that has been sent, never <code>null</code>
+     * @return The key of the message, or <code>null</code> if the message should never be replaced. Keys are compared
+     *         with {@link Object#equals(Object)}.
+     */
+    Object keyOf(Object message);
+}
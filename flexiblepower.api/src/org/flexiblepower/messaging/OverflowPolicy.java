@@ -0,0 +1,30 @@
+package org.flexiblepower.messaging;
+
+/**
+ * Specifies what happens with a message that is sent on a {@link Connection} while the queue of messages that have not
+ * yet been handled by the receiving {@link MessageHandler} is full.
+ *
+ * @see Port#queueCapacity()
+ */
+public enum OverflowPolicy {
+    /**
+     * {@link Connection#sendMessage(Object)} blocks until there is room in the queue.
+     */
+    BLOCK,
+    /**
+     * The oldest message in the queue is dropped to make room for the new message.
+     */
+    DROP_OLDEST,
+    /**
+     * The new message is dropped.
+     */
+    DROP_NEWEST,
+    /**
+     * {@link Connection#sendMessage(Object)} throws an {@link IllegalStateException}.
+     */
+    FAIL,
+    /**
+     * The new message replaces the newest message in the queue.
+     */
+    COALESCE
+}
@@ -43,4 +43,24 @@ public @interface Port {
      * are possible and should be handled by the {@link Endpoint#onConnect(Connection)} method.
      */
     Cardinality cardinality() default Cardinality.SINGLE;
+
+    /**
+     * Specifies the maximum number of messages that have been received through this port, but not yet handled by the
+     * {@link MessageHandler}. The bound applies to each {@link Connection} separately. When it is <code>0</code> (the
+     * default), the runtime decides the capacity, which may be unbounded.
+     */
+    int queueCapacity() default 0;
+
+    /**
+     * Specifies what happens with a message that is received while the queue is full. This is only used when the
+     * {@link #queueCapacity()} is specified.
+     */
+    OverflowPolicy overflowPolicy() default OverflowPolicy.BLOCK;
+
+    /**
+     * Specifies the {@link MessageKeyExtractor} of the messages that have been received through this port. A message
+     * that is still queued is replaced by a newer message with the same key, so the queue never holds more than one
+     * message per key. When it is {@link MessageKeyExtractor} itself (the default), no messages are replaced.
+     */
+    Class<? extends MessageKeyExtractor> conflateBy() default MessageKeyExtractor.class;
 }
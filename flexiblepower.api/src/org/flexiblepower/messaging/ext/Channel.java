@@ -0,0 +1,310 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.messaging.MessageKeyExtractor;
+import org.flexiblepower.messaging.OverflowPolicy;
+
+/**
+ * The queue of the messages that have been sent on a single connection and not yet handled by the receiving handler.
+ * Senders add messages with {@link #offer(Object, boolean)} and the channel is then scheduled in the {@link Mailbox} of
+ * the handler, which is the only consumer.
+ *
+ * Unbounded channels, and bounded channels that never remove a queued message, are lock-free. Channels that replace or
+ * drop queued messages ({@link OverflowPolicy#DROP_OLDEST}, {@link OverflowPolicy#COALESCE} and channels with a
+ * {@link MessageKeyExtractor}) use a lock that is only shared by the senders on the connection and the handler.
+ */
+abstract class Channel {
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /**
+     * Creates a channel with the given capacity and overflow policy.
+     *
+     * @param keyExtractor
+     *            The extractor of the keys of messages that replace each other, or <code>null</code>
+     */
+    static Channel create(ConnectionImpl connection,
+                          int capacity,
+                          OverflowPolicy policy,
+                          MessageKeyExtractor keyExtractor) {
+        if (keyExtractor != null
+            || (capacity != UNBOUNDED && (policy == OverflowPolicy.DROP_OLDEST || policy == OverflowPolicy.COALESCE))) {
+            return new LockingChannel(connection, capacity, policy, keyExtractor);
+        } else {
+            return new LockFreeChannel(connection, capacity, policy);
+        }
+    }
+
+    final ConnectionImpl connection;
+    final int capacity;
+    final OverflowPolicy policy;
+    final AtomicInteger depth = new AtomicInteger();
+    final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * <code>true</code> while the channel is in the ready queue of the mailbox or being drained.
+     */
+    final AtomicBoolean ready = new AtomicBoolean();
+    volatile Mailbox mailbox;
+    volatile boolean closed;
+
+    // Only accessed by the mailbox, true after the handler has been told about the disconnect
+    boolean finished;
+
+    Channel(ConnectionImpl connection, int capacity, OverflowPolicy policy) {
+        this.connection = connection;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a message to the queue.
+     *
+     * @param message
+     *            The message
+     * @param block
+     *            <code>true</code> if the sender may wait for room in the queue
+     * @return <code>true</code> when the message has been queued
+     */
+    abstract boolean offer(Object message, boolean block);
+
+    /**
+     * Takes the next message. Must only be called by the mailbox.
+     *
+     * @return The message, or <code>null</code> when the channel is empty
+     */
+    abstract Object poll();
+
+    abstract boolean isEmpty();
+
+    /**
+     * Stops the channel. The messages that are queued are still handled.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * A lock-free channel for the policies that never remove a queued message.
+     */
+    private static final class LockFreeChannel extends Channel {
+        private final MpscQueue<Object> queue = new MpscQueue<Object>();
+        private final Object monitor = new Object();
+        private volatile int waiters;
+
+        LockFreeChannel(ConnectionImpl connection, int capacity, OverflowPolicy policy) {
+            super(connection, capacity, policy);
+        }
+
+        @Override
+        boolean offer(Object message, boolean block) {
+            if (capacity == UNBOUNDED) {
+                depth.incrementAndGet();
+                queue.offer(message);
+                return true;
+            }
+            while (true) {
+                int d = depth.get();
+                if (d < capacity) {
+                    if (depth.compareAndSet(d, d + 1)) {
+                        queue.offer(message);
+                        return true;
+                    }
+                } else if (block && policy == OverflowPolicy.BLOCK) {
+                    if (mailbox == null) {
+                        // Not activated yet (sent from onConnect), nothing can make room before the sender returns
+                        depth.incrementAndGet();
+                        queue.offer(message);
+                        return true;
+                    } else if (!awaitRoom()) {
+                        return false;
+                    }
+                } else {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+
+        private boolean awaitRoom() {
+            synchronized (monitor) {
+                waiters++;
+                try {
+                    while (depth.get() >= capacity && !closed) {
+                        monitor.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                    return false;
+                } finally {
+                    waiters--;
+                }
+            }
+            return !closed;
+        }
+
+        @Override
+        Object poll() {
+            Object message = queue.poll();
+            if (message != null) {
+                int d = depth.decrementAndGet();
+                if (waiters > 0) {
+                    synchronized (monitor) {
+                        monitor.notifyAll();
+                    }
+                }
+                connection.dequeued(d);
+            }
+            return message;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        void close() {
+            super.close();
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A channel that replaces or drops queued messages. Keyed messages are wrapped in a {@link Slot}, so a newer
+     * message with the same key can take the place of the queued one.
+     */
+    private static final class LockingChannel extends Channel {
+        private final MessageKeyExtractor keyExtractor;
+        private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+        private final Map<Object, Slot> slots = new HashMap<Object, Slot>();
+        private int waiters;
+
+        LockingChannel(ConnectionImpl connection,
+                       int capacity,
+                       OverflowPolicy policy,
+                       MessageKeyExtractor keyExtractor) {
+            super(connection, capacity, policy);
+            this.keyExtractor = keyExtractor;
+        }
+
+        @Override
+        boolean offer(Object message, boolean block) {
+            Object key = keyExtractor == null ? null : keyExtractor.keyOf(message);
+            synchronized (this) {
+                while (true) {
+                    if (key != null) {
+                        Slot slot = slots.get(key);
+                        if (slot != null) {
+                            slot.message = message;
+                            dropped.incrementAndGet();
+                            return true;
+                        }
+                    }
+                    if (queue.size() < capacity) {
+                        depth.incrementAndGet();
+                        queue.addLast(wrap(key, message));
+                        return true;
+                    } else if (policy == OverflowPolicy.DROP_OLDEST || policy == OverflowPolicy.COALESCE) {
+                        forget(policy == OverflowPolicy.DROP_OLDEST ? queue.pollFirst() : queue.pollLast());
+                        dropped.incrementAndGet();
+                        queue.addLast(wrap(key, message));
+                        return true;
+                    } else if (!block || policy != OverflowPolicy.BLOCK) {
+                        dropped.incrementAndGet();
+                        return false;
+                    } else if (mailbox == null) {
+                        // Not activated yet (sent from onConnect), nothing can make room before the sender returns
+                        depth.incrementAndGet();
+                        queue.addLast(wrap(key, message));
+                        return true;
+                    }
+
+                    waiters++;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return false;
+                    } finally {
+                        waiters--;
+                    }
+                    if (closed) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        private Object wrap(Object key, Object message) {
+            if (key == null) {
+                return message;
+            }
+            Slot slot = new Slot(key, message);
+            slots.put(key, slot);
+            return slot;
+        }
+
+        private Object forget(Object element) {
+            if (element instanceof Slot) {
+                Slot slot = (Slot) element;
+                slots.remove(slot.key);
+                return slot.message;
+            }
+            return element;
+        }
+
+        @Override
+        Object poll() {
+            Object message;
+            int d;
+            synchronized (this) {
+                message = forget(queue.pollFirst());
+                if (message == null) {
+                    return null;
+                }
+                d = depth.decrementAndGet();
+                if (waiters > 0) {
+                    notifyAll();
+                }
+            }
+            connection.dequeued(d);
+            return message;
+        }
+
+        @Override
+        synchronized boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        void close() {
+            super.close();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A queued message that can be replaced by a newer message with the same key.
+     */
+    private static final class Slot {
+        final Object key;
+        Object message;
+
+        Slot(Object key, Object message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+}
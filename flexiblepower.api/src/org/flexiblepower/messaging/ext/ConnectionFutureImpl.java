@@ -0,0 +1,170 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.Promise;
+import org.flexiblepower.context.ext.CompletablePromise;
+import org.flexiblepower.messaging.ConnectionFuture;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * A request to connect two ports that is retried by the {@link DispatchingConnectionManager} until the connection has
+ * been made or the request is cancelled. Next to the blocking methods of {@link ConnectionFuture}, the outcome is
+ * available as a {@link Promise}.
+ */
+final class ConnectionFutureImpl implements ConnectionFuture {
+    private final DispatchingConnectionManager manager;
+    final String onePid;
+    final String onePort;
+    final String otherPid;
+    final String otherPort;
+    final String oneKey;
+    final String otherKey;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final RequestPromise promise = new RequestPromise();
+    private volatile PotentialConnection potentialConnection;
+    private volatile boolean cancelled;
+
+    ConnectionFutureImpl(DispatchingConnectionManager manager,
+                         String onePid,
+                         String onePort,
+                         String otherPid,
+                         String otherPort) {
+        this.manager = manager;
+        this.onePid = onePid;
+        this.onePort = onePort;
+        this.otherPid = otherPid;
+        this.otherPort = otherPort;
+        oneKey = onePid + ":" + onePort;
+        otherKey = otherPid + ":" + otherPort;
+    }
+
+    DispatchingConnectionManager getManager() {
+        return manager;
+    }
+
+    Promise<PotentialConnection> getPromise() {
+        return promise;
+    }
+
+    /**
+     * Called by the manager, while holding its lock, when the connection has been made.
+     */
+    void connected(final PotentialConnection connection) {
+        if (potentialConnection != null || cancelled) {
+            return;
+        }
+        potentialConnection = connection;
+        done.countDown();
+        // Complete the promise outside of the lock, since it calls its listeners
+        manager.execute(new Runnable() {
+            @Override
+            public void run() {
+                promise.complete(connection);
+            }
+        });
+    }
+
+    /**
+     * Called by the manager, while holding its lock, to cancel the request.
+     *
+     * @return <code>true</code> when the request has been cancelled, <code>false</code> when it was already connected
+     *         or cancelled
+     */
+    boolean markCancelled() {
+        if (potentialConnection != null || cancelled) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        if (manager.cancel(this)) {
+            done.countDown();
+            promise.cancelled();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return potentialConnection != null;
+    }
+
+    @Override
+    public PotentialConnection getPotentialConnection() {
+        return potentialConnection;
+    }
+
+    @Override
+    public void awaitConnection() throws InterruptedException {
+        done.await();
+        checkCancelled();
+    }
+
+    @Override
+    public void awaitConnection(Measurable<Duration> timeout) throws TimeoutException, InterruptedException {
+        if (!done.await(TimeUtil.toMillis(timeout), TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("No connection between " + onePid
+                                       + ":"
+                                       + onePort
+                                       + " and "
+                                       + otherPid
+                                       + ":"
+                                       + otherPort
+                                       + " within "
+                                       + timeout);
+        }
+        checkCancelled();
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("The connection request has been cancelled");
+        }
+    }
+
+    /**
+     * The promise of the connection, which cancels the request when it is cancelled.
+     */
+    private final class RequestPromise extends CompletablePromise<PotentialConnection> {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            ConnectionFutureImpl.this.cancel();
+            return isCancelled();
+        }
+
+        void cancelled() {
+            super.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionFuture [" + onePid
+               + ":"
+               + onePort
+               + "-"
+               + otherPid
+               + ":"
+               + otherPort
+               + ", connected="
+               + isConnected()
+               + ", cancelled="
+               + cancelled
+               + "]";
+    }
+}
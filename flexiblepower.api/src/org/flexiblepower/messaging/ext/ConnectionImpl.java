@@ -0,0 +1,157 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.BoundedConnection;
+import org.flexiblepower.messaging.OverflowPolicy;
+import org.flexiblepower.messaging.Port;
+
+/**
+ * One side of a connection. Messages that are sent on it are added to its {@link Channel}, which is drained by the
+ * mailbox of the {@link org.flexiblepower.messaging.MessageHandler} of the other side. Messages that are sent before
+ * that handler is known (e.g. from within {@link org.flexiblepower.messaging.Endpoint#onConnect}) wait in the channel
+ * until the connection is activated. Such sends never block on a full queue, since nothing can make room before the
+ * connection is activated.
+ */
+final class ConnectionImpl implements BoundedConnection {
+    private final DispatchingConnectionManager manager;
+    private final EndpointPortImpl from;
+    private final EndpointPortImpl to;
+    private final Channel channel;
+
+    // The high watermark is reported by the sender that sees it (RISING), the low watermark only after that (ABOVE)
+    private static final int BELOW = 0;
+    private static final int RISING = 1;
+    private static final int ABOVE = 2;
+
+    private volatile WatermarkListener watermarkListener;
+    private volatile int lowWatermark;
+    private volatile int highWatermark;
+    private final AtomicInteger watermarkState = new AtomicInteger(BELOW);
+
+    ConnectionImpl(DispatchingConnectionManager manager,
+                   EndpointPortImpl from,
+                   EndpointPortImpl to,
+                   int capacity,
+                   OverflowPolicy policy) {
+        this.manager = manager;
+        this.from = from;
+        this.to = to;
+        channel = Channel.create(this, capacity, policy, to.getKeyExtractor());
+    }
+
+    @Override
+    public void sendMessage(Object message) {
+        if (!send(message, true) && channel.policy == OverflowPolicy.FAIL && !channel.closed) {
+            throw new IllegalStateException("The queue of connection " + this + " is full");
+        }
+    }
+
+    @Override
+    public boolean trySendMessage(Object message) {
+        return send(message, false);
+    }
+
+    private boolean send(Object message, boolean block) {
+        if (message == null) {
+            throw new NullPointerException("message");
+        }
+        if (channel.closed || !channel.offer(message, block)) {
+            return false;
+        }
+        Mailbox mailbox = channel.mailbox;
+        if (mailbox != null) {
+            mailbox.schedule(channel);
+        }
+        manager.exchanged(from, to, message);
+
+        WatermarkListener listener = watermarkListener;
+        if (listener != null) {
+            int depth = channel.depth.get();
+            if (depth >= highWatermark && watermarkState.compareAndSet(BELOW, RISING)) {
+                listener.highWatermarkReached(this, depth);
+                watermarkState.set(ABOVE);
+                // The receiver does not report the low watermark while rising, so check whether it drained meanwhile
+                dequeued(channel.depth.get());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the channel after a message has been taken by the handler.
+     */
+    void dequeued(int depth) {
+        WatermarkListener listener = watermarkListener;
+        if (listener != null && depth <= lowWatermark && watermarkState.compareAndSet(ABOVE, BELOW)) {
+            listener.lowWatermarkReached(this, depth);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return channel.depth.get();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return channel.capacity;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return channel.dropped.get();
+    }
+
+    @Override
+    public void setWatermarks(int low, int high, WatermarkListener listener) {
+        if (listener != null && (low < 0 || high <= low)) {
+            throw new IllegalArgumentException("Invalid watermarks " + low + " and " + high);
+        }
+        lowWatermark = low;
+        highWatermark = high;
+        watermarkState.set(BELOW);
+        watermarkListener = listener;
+    }
+
+    @Override
+    public Port getPort() {
+        return from.getPortDefinition();
+    }
+
+    EndpointPortImpl getFrom() {
+        return from;
+    }
+
+    EndpointPortImpl getTo() {
+        return to;
+    }
+
+    /**
+     * Starts delivering messages to the given mailbox, including the messages that have been sent before.
+     */
+    void activate(Mailbox mailbox) {
+        channel.mailbox = mailbox;
+        if (!channel.isEmpty()) {
+            mailbox.schedule(channel);
+        }
+    }
+
+    /**
+     * Stops accepting messages and tells the handler of the other side, after the messages that are still queued.
+     */
+    void close() {
+        if (!channel.closed) {
+            channel.close();
+            Mailbox mailbox = channel.mailbox;
+            if (mailbox != null) {
+                mailbox.schedule(channel);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return from + "->" + to;
+    }
+}
@@ -0,0 +1,1098 @@
+package org.flexiblepower.messaging.ext;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.Promise;
+import org.flexiblepower.messaging.BatchMessageHandler;
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.ConnectionFuture;
+import org.flexiblepower.messaging.ConnectionManager;
+import org.flexiblepower.messaging.ConnectionManagerException;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.messaging.OverflowPolicy;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.time.TimeUtil;
+
+/**
+ * The {@link DispatchingConnectionManager} is a reference implementation of the {@link ConnectionManager}. Each
+ * connection has a lock-free queue that any number of senders can add to, and each {@link MessageHandler} has a
+ * mailbox with the connections that have pending messages, which is drained by the worker pool. A mailbox is drained
+ * by at most one worker at a time, so a handler is never called
+ * concurrently and the messages of each connection are handled in the order in which they were sent. Different
+ * handlers are served by different workers at the same time, so the throughput scales with the size of the worker
+ * pool.
+ *
+ * Handlers that implement {@link BatchMessageHandler} receive the queued messages in batches, see
+ * {@link Builder#maxBatchSize(int)} and {@link Builder#maxBatchDelay(Measurable)}.
+ *
+ * Each connection has its own queue of messages that have not yet been handled. Its capacity and
+ * {@link OverflowPolicy} are taken from the receiving {@link Port}, or from {@link Builder#queueCapacity(int,
+ * OverflowPolicy)}. The connections that are handed to the endpoints implement
+ * {@link org.flexiblepower.messaging.BoundedConnection}, so senders can use non-blocking sends and watermarks. When
+ * the receiving port declares a {@link Port#conflateBy() key extractor}, a queued message is replaced by a newer
+ * message with the same key.
+ *
+ * The way to use this is using its {@link Builder}. E.g.:
+ *
+ * <pre>
+ * DispatchingConnectionManager manager = DispatchingConnectionManager.create(workerPool).throughput(64).build();
+ * manager.addEndpoint(&quot;battery&quot;, battery);
+ * manager.addEndpoint(&quot;controller&quot;, controller);
+ * manager.autoConnect();
+ * </pre>
+ *
+ * {@link MessageListener}s are called by the worker pool, so they add little to the cost of sending a message. The
+ * listeners for each message class are resolved once from their {@link Filter}s, and the exchanged messages are handed
+ * over through a bounded ring buffer, see {@link Builder#listenerBufferSize(int)}.
+ *
+ * The structure (endpoints, ports and connections) is guarded by a single lock, since it changes rarely. Sending a
+ * message does not take that lock. The ports are indexed by the types they send and accept, so adding an endpoint only
+ * compares its ports with the ports that share a type with them. {@link #getEndpoints()} and
+ * {@link EndpointPort#getPotentialConnections()} return snapshots that are shared until the structure changes.
+ *
+ * The connections can be saved as a {@link Topology} with {@link #getTopology()} and restored with
+ * {@link #applyTopology(Topology)}, which validates all links first and then calls the endpoints in parallel.
+ *
+ * Exceptions that are thrown by handlers and listeners are counted and passed to the uncaught exception handler of the
+ * worker thread, after which the worker continues with the next message.
+ */
+public class DispatchingConnectionManager implements ConnectionManager, Closeable {
+    /**
+     * The default number of messages that a worker handles for a mailbox before it moves on to other mailboxes.
+     */
+    public static final int DEFAULT_THROUGHPUT = 64;
+
+    /**
+     * The default maximum number of messages in a batch for a {@link BatchMessageHandler}.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * The default number of exchanged messages that can wait to be delivered to the {@link MessageListener}s.
+     */
+    public static final int DEFAULT_LISTENER_BUFFER_SIZE = 1024;
+
+    /**
+     * Starts the creation of a new connection manager.
+     *
+     * @param workerPool
+     *            The executor that drains the mailboxes
+     * @return The {@link Builder} that can be used to finish up
+     */
+    public static Builder create(Executor workerPool) {
+        return new Builder(workerPool);
+    }
+
+    /**
+     * This {@link Builder} is a helper class to create a {@link DispatchingConnectionManager}. You can create an
+     * instance of this using the {@link DispatchingConnectionManager#create(Executor)} method.
+     */
+    public static class Builder {
+        private final Executor workerPool;
+        private int throughput = DEFAULT_THROUGHPUT;
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        private long maxBatchDelay;
+        private int queueCapacity = Channel.UNBOUNDED;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        private int listenerBufferSize = DEFAULT_LISTENER_BUFFER_SIZE;
+
+        Builder(Executor workerPool) {
+            if (workerPool == null) {
+                throw new NullPointerException("workerPool");
+            }
+            this.workerPool = workerPool;
+        }
+
+        /**
+         * Sets the number of messages that a worker handles for a mailbox before it moves on to other mailboxes. The
+         * default is {@link DispatchingConnectionManager#DEFAULT_THROUGHPUT}.
+         *
+         * @param throughput
+         *            The number of messages
+         * @return This builder
+         */
+        public Builder throughput(int throughput) {
+            if (throughput <= 0) {
+                throw new IllegalArgumentException("The throughput should be positive");
+            }
+            this.throughput = throughput;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of messages that are delivered to a {@link BatchMessageHandler} in a single call. The
+         * default is {@link DispatchingConnectionManager#DEFAULT_MAX_BATCH_SIZE}.
+         *
+         * @param maxBatchSize
+         *            The maximum number of messages in a batch
+         * @return This builder
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("The maximum batch size should be positive");
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets how long a batch for a {@link BatchMessageHandler} stays open for more messages when its mailbox runs
+         * empty, counted from the first message of the batch. The worker is not held meanwhile; a timer thread of the
+         * manager delivers the batch when no more messages arrive. The default is zero, which delivers the messages
+         * that are queued at that moment.
+         *
+         * @param maxBatchDelay
+         *            The maximum time to collect a batch
+         * @return This builder
+         */
+        public Builder maxBatchDelay(Measurable<Duration> maxBatchDelay) {
+            long nanos = TimeUtil.toTimeUnit(maxBatchDelay, TimeUnit.NANOSECONDS);
+            if (nanos < 0) {
+                throw new IllegalArgumentException("The maximum batch delay should not be negative");
+            }
+            this.maxBatchDelay = nanos;
+            return this;
+        }
+
+        /**
+         * Sets the capacity and overflow policy of the queue of each connection for ports that do not specify a
+         * {@link org.flexiblepower.messaging.Port#queueCapacity()}. By default the queues are unbounded.
+         *
+         * @param capacity
+         *            The maximum number of queued messages per connection
+         * @param policy
+         *            What happens with a message when the queue is full
+         * @return This builder
+         */
+        public Builder queueCapacity(int capacity, OverflowPolicy policy) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("The queue capacity should be positive");
+            }
+            if (policy == null) {
+                throw new NullPointerException("policy");
+            }
+            queueCapacity = capacity;
+            overflowPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Sets the number of exchanged messages that can wait to be delivered to the {@link MessageListener}s. When
+         * the listeners fall behind further, messages are not delivered to them, see
+         * {@link DispatchingConnectionManager#getListenerDropCount()}. The default is
+         * {@link DispatchingConnectionManager#DEFAULT_LISTENER_BUFFER_SIZE}; it is rounded up to a power of two.
+         *
+         * @param listenerBufferSize
+         *            The size of the buffer
+         * @return This builder
+         */
+        public Builder listenerBufferSize(int listenerBufferSize) {
+            if (listenerBufferSize <= 0 || listenerBufferSize > 1 << 30) {
+                throw new IllegalArgumentException("The listener buffer size should be between 1 and 2^30");
+            }
+            this.listenerBufferSize = listenerBufferSize;
+            return this;
+        }
+
+        /**
+         * @return The new connection manager
+         */
+        public DispatchingConnectionManager build() {
+            return new DispatchingConnectionManager(this);
+        }
+    }
+
+    final Object lock = new Object();
+
+    private final Executor workerPool;
+    private final int throughput;
+    private final int maxBatchSize;
+    private final long maxBatchDelay;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ListenerIndex listeners = new ListenerIndex();
+    private final ListenerDispatcher listenerDispatcher;
+    private final AtomicLong failures = new AtomicLong();
+    private final Object batchTimerLock = new Object();
+    // Guarded by batchTimerLock, started when the first open batch has to wait
+    private ScheduledExecutorService batchTimer;
+
+    // Guarded by lock
+    private final SortedMap<String, ManagedEndpointImpl> endpoints = new TreeMap<String, ManagedEndpointImpl>();
+    private final PortTypeIndex portIndex = new PortTypeIndex();
+    private final Map<MessageHandler, Mailbox> mailboxes = new IdentityHashMap<MessageHandler, Mailbox>();
+    // The pending connection requests, by the key (pid:port) of each of their ports
+    private final Map<String, List<ConnectionFutureImpl>> connectionRequests = new HashMap<String, List<ConnectionFutureImpl>>();
+    // The ports that may be connected by the next autoConnect, see autoConnect()
+    private final Set<EndpointPortImpl> autoConnectCandidates = new LinkedHashSet<EndpointPortImpl>();
+    private final Set<EndpointPortImpl> refusedAutoConnects = new LinkedHashSet<EndpointPortImpl>();
+    // Set to null when the endpoints change, rebuilt on demand
+    private volatile SortedMap<String, ManagedEndpointImpl> endpointsSnapshot;
+
+    DispatchingConnectionManager(Builder builder) {
+        workerPool = builder.workerPool;
+        throughput = builder.throughput;
+        maxBatchSize = builder.maxBatchSize;
+        maxBatchDelay = builder.maxBatchDelay;
+        queueCapacity = builder.queueCapacity;
+        overflowPolicy = builder.overflowPolicy;
+        listenerDispatcher = new ListenerDispatcher(this, workerPool, throughput, builder.listenerBufferSize);
+    }
+
+    /**
+     * Adds an endpoint. Its ports are read from its {@link org.flexiblepower.messaging.Port} annotations and the
+     * potential connections with the ports of all other endpoints are determined. Pending connection requests for this
+     * endpoint are connected.
+     *
+     * @param pid
+     *            The persistent identifier of the endpoint
+     * @param endpoint
+     *            The endpoint
+     * @return The {@link ManagedEndpoint} of the endpoint
+     * @throws IllegalArgumentException
+     *             when there already is an endpoint with the same pid, or when the key extractor of a port can not
+     *             be created
+     */
+    public ManagedEndpoint addEndpoint(String pid, Endpoint endpoint) {
+        if (pid == null || endpoint == null) {
+            throw new NullPointerException();
+        }
+        synchronized (lock) {
+            if (endpoints.containsKey(pid)) {
+                throw new IllegalArgumentException("An endpoint with pid " + pid + " has already been added");
+            }
+            ManagedEndpointImpl managed = new ManagedEndpointImpl(this, pid, endpoint);
+            for (EndpointPortImpl port : managed.getPorts().values()) {
+                for (EndpointPortImpl otherPort : portIndex.findMatches(port)) {
+                    addPotentialConnection(new PotentialConnectionImpl(this, port, otherPort));
+                }
+            }
+            for (EndpointPortImpl port : managed.getPorts().values()) {
+                portIndex.add(port);
+            }
+            endpoints.put(pid, managed);
+            endpointsSnapshot = null;
+            for (EndpointPortImpl port : managed.getPorts().values()) {
+                retryConnectionRequests(port);
+            }
+            return managed;
+        }
+    }
+
+    /**
+     * Removes an endpoint. All its connections are disconnected.
+     *
+     * @param pid
+     *            The persistent identifier of the endpoint
+     * @return <code>true</code> when the endpoint has been removed, <code>false</code> when it was not known
+     */
+    public boolean removeEndpoint(String pid) {
+        synchronized (lock) {
+            ManagedEndpointImpl managed = endpoints.remove(pid);
+            if (managed == null) {
+                return false;
+            }
+            endpointsSnapshot = null;
+            for (EndpointPortImpl port : managed.getPorts().values()) {
+                portIndex.remove(port);
+                for (PotentialConnectionImpl connection : new ArrayList<PotentialConnectionImpl>(port.potentialConnections.values())) {
+                    if (connection.reservation != null) {
+                        unreserve(connection);
+                    }
+                    disconnect(connection);
+                    removePotentialConnection(connection);
+                }
+                autoConnectCandidates.remove(port);
+                refusedAutoConnects.remove(port);
+            }
+            return true;
+        }
+    }
+
+    private void addPotentialConnection(PotentialConnectionImpl connection) {
+        EndpointPortImpl one = connection.getEitherEnd();
+        EndpointPortImpl other = connection.getOtherEnd(one);
+        one.potentialConnections.put(connection.getId(), connection);
+        one.potentialConnectionsByPort.put(other, connection);
+        one.potentialConnectionsSnapshot = null;
+        other.potentialConnections.put(connection.getId(), connection);
+        other.potentialConnectionsByPort.put(one, connection);
+        other.potentialConnectionsSnapshot = null;
+        connectableChanged(connection, 1);
+    }
+
+    private void removePotentialConnection(PotentialConnectionImpl connection) {
+        EndpointPortImpl one = connection.getEitherEnd();
+        EndpointPortImpl other = connection.getOtherEnd(one);
+        one.potentialConnections.remove(connection.getId());
+        one.potentialConnectionsByPort.remove(other);
+        one.potentialConnectionsSnapshot = null;
+        other.potentialConnections.remove(connection.getId());
+        other.potentialConnectionsByPort.remove(one);
+        other.potentialConnectionsSnapshot = null;
+        connectableChanged(connection, -1);
+    }
+
+    /**
+     * Adds a listener that receives all exchanged messages that match its {@link Filter}. The listeners are called by
+     * the worker pool, not by the sender, one message at a time.
+     *
+     * @param listener
+     *            The listener
+     */
+    public void addMessageListener(MessageListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener
+     *            The listener that should no longer receive messages
+     */
+    public void removeMessageListener(MessageListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The number of exchanged messages that have not been delivered to the {@link MessageListener}s, because
+     *         they had fallen too far behind.
+     */
+    public long getListenerDropCount() {
+        return listenerDispatcher.getDroppedCount();
+    }
+
+    /**
+     * @return The number of exceptions that have been thrown by handlers and listeners.
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public ManagedEndpoint getEndpoint(String pid) {
+        synchronized (lock) {
+            return endpoints.get(pid);
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the endpoints. The snapshot is shared until the endpoints change, so calling this
+     * is cheap.
+     */
+    @Override
+    public SortedMap<String, ManagedEndpointImpl> getEndpoints() {
+        SortedMap<String, ManagedEndpointImpl> snapshot = endpointsSnapshot;
+        if (snapshot == null) {
+            synchronized (lock) {
+                snapshot = endpointsSnapshot;
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableSortedMap(new TreeMap<String, ManagedEndpointImpl>(endpoints));
+                    endpointsSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public PotentialConnection connectEndpointPorts(String onePid, String onePort, String otherPid, String otherPort) throws ConnectionManagerException {
+        synchronized (lock) {
+            EndpointPortImpl one = findPort(onePid, onePort);
+            EndpointPortImpl other = findPort(otherPid, otherPort);
+            PotentialConnectionImpl connection = one.potentialConnectionsByPort.get(other);
+            if (connection == null) {
+                throw new ConnectionManagerException("The ports " + one + " and " + other + " do not match");
+            }
+            if (connection.oneToOther == null) {
+                if (!connection.isConnectable()) {
+                    throw new ConnectionManagerException("The connection " + connection
+                                                         + " can not be made, one of the ports is already connected");
+                }
+                connect(connection);
+                if (connection.oneToOther == null) {
+                    throw new ConnectionManagerException("The connection " + connection + " was refused by an endpoint");
+                }
+            }
+            return connection;
+        }
+    }
+
+    private EndpointPortImpl findPort(String pid, String name) throws ConnectionManagerException {
+        ManagedEndpointImpl endpoint = endpoints.get(pid);
+        if (endpoint == null) {
+            throw new ConnectionManagerException("There is no endpoint with pid " + pid);
+        }
+        EndpointPortImpl port = endpoint.getPort(name);
+        if (port == null) {
+            throw new ConnectionManagerException("The endpoint " + pid + " has no port " + name);
+        }
+        return port;
+    }
+
+    /**
+     * A link of a topology that is being connected by {@link DispatchingConnectionManager#applyTopology(Topology)}.
+     */
+    private static final class PendingLink {
+        final Topology.Link link;
+        final PotentialConnectionImpl connection;
+        final EndpointPortImpl one;
+        final EndpointPortImpl other;
+        ConnectionImpl oneToOther;
+        ConnectionImpl otherToOne;
+        // Written by the thread that calls the endpoint, read after all calls have finished
+        MessageHandler oneHandler;
+        MessageHandler otherHandler;
+
+        PendingLink(Topology.Link link, PotentialConnectionImpl connection, EndpointPortImpl one, EndpointPortImpl other) {
+            this.link = link;
+            this.connection = connection;
+            this.one = one;
+            this.other = other;
+        }
+    }
+
+    /**
+     * Connects all links of a topology. All links are validated first, and nothing is connected when one of them is
+     * invalid. Links that are already connected are left alone, so the topology of {@link #getTopology()} can be applied
+     * again after a restart.
+     *
+     * The endpoints are called in parallel by the worker pool and the calling thread, but each endpoint is only called
+     * by one thread at a time. A link is connected when both endpoints have accepted it; when one of them returns
+     * <code>null</code> from {@link Endpoint#onConnect(org.flexiblepower.messaging.Connection)}, the other one is told
+     * that it has been disconnected. The ports of the links are reserved while the endpoints are called, so other
+     * connections can not take them.
+     *
+     * @param topology
+     *            The links that should be connected
+     * @return The links that have been refused by an endpoint
+     * @throws ConnectionManagerException
+     *             when a link refers to an unknown endpoint or port, when the ports of a link do not match, or when a
+     *             port with {@link Cardinality#SINGLE} would get more than one connection
+     */
+    public Topology applyTopology(Topology topology) throws ConnectionManagerException {
+        List<PendingLink> pending = new ArrayList<PendingLink>();
+        synchronized (lock) {
+            List<String> problems = new ArrayList<String>();
+            Map<EndpointPortImpl, Integer> newConnections = new HashMap<EndpointPortImpl, Integer>();
+            for (Topology.Link link : topology.getLinks()) {
+                EndpointPortImpl one;
+                EndpointPortImpl other;
+                try {
+                    one = findPort(link.getOnePid(), link.getOnePort());
+                    other = findPort(link.getOtherPid(), link.getOtherPort());
+                } catch (ConnectionManagerException e) {
+                    problems.add(e.getMessage());
+                    continue;
+                }
+                PotentialConnectionImpl connection = one.potentialConnectionsByPort.get(other);
+                if (connection == null) {
+                    problems.add("The ports " + one + " and " + other + " do not match");
+                } else if (!connection.isInUse()) {
+                    pending.add(new PendingLink(link, connection, one, other));
+                    countConnection(newConnections, one);
+                    countConnection(newConnections, other);
+                }
+            }
+            for (Entry<EndpointPortImpl, Integer> entry : newConnections.entrySet()) {
+                EndpointPortImpl port = entry.getKey();
+                if (port.getCardinality() == Cardinality.SINGLE && port.connectionCount + entry.getValue() > 1) {
+                    problems.add("The port " + port + " would get more than one connection");
+                }
+            }
+            if (!problems.isEmpty()) {
+                throw new ConnectionManagerException("The topology can not be applied: " + problems);
+            }
+
+            for (PendingLink link : pending) {
+                connectableChanged(link.connection, -1);
+                link.connection.reservation = link;
+                addConnection(link.one, 1);
+                addConnection(link.other, 1);
+                link.oneToOther = createConnection(link.one, link.other);
+                link.otherToOne = createConnection(link.other, link.one);
+            }
+        }
+
+        callEndpoints(pending);
+
+        Topology.Builder refused = Topology.create();
+        synchronized (lock) {
+            List<EndpointPortImpl> released = new ArrayList<EndpointPortImpl>();
+            for (PendingLink link : pending) {
+                PotentialConnectionImpl connection = link.connection;
+                boolean reserved = connection.reservation == link;
+                if (reserved && link.oneHandler != null && link.otherHandler != null) {
+                    connection.reservation = null;
+                    connection.oneToOther = link.oneToOther;
+                    connection.otherToOne = link.otherToOne;
+                    link.oneToOther.activate(acquire(link.otherHandler));
+                    link.otherToOne.activate(acquire(link.oneHandler));
+                    completeConnectionRequests(connection);
+                    continue;
+                }
+
+                // Refused by an endpoint, or the reservation has been undone by removing an endpoint
+                link.oneToOther.close();
+                link.otherToOne.close();
+                if (reserved) {
+                    unreserve(connection);
+                    released.add(link.one);
+                    released.add(link.other);
+                }
+                for (MessageHandler handler : new MessageHandler[] { link.oneHandler, link.otherHandler }) {
+                    if (handler != null) {
+                        try {
+                            handler.disconnected();
+                        } catch (RuntimeException e) {
+                            reportFailure(e);
+                        }
+                    }
+                }
+                refused.link(link.link.getOnePid(),
+                             link.link.getOnePort(),
+                             link.link.getOtherPid(),
+                             link.link.getOtherPort());
+            }
+            for (EndpointPortImpl port : released) {
+                retryConnectionRequests(port);
+            }
+        }
+        return refused.build();
+    }
+
+    private static void countConnection(Map<EndpointPortImpl, Integer> counts, EndpointPortImpl port) {
+        Integer count = counts.get(port);
+        counts.put(port, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Undoes the reservation of a potential connection by {@link #applyTopology(Topology)}.
+     */
+    private void unreserve(PotentialConnectionImpl connection) {
+        EndpointPortImpl one = connection.getEitherEnd();
+        EndpointPortImpl other = connection.getOtherEnd(one);
+        addConnection(one, -1);
+        addConnection(other, -1);
+        connection.reservation = null;
+        connectableChanged(connection, 1);
+    }
+
+    /**
+     * Calls {@link Endpoint#onConnect(org.flexiblepower.messaging.Connection)} of both ends of the links, without
+     * holding the lock. The calls are grouped by endpoint and the groups are run by the worker pool and the calling
+     * thread, which takes the groups that no worker has started yet, so this also completes when all workers are busy.
+     */
+    private void callEndpoints(List<PendingLink> links) {
+        Map<ManagedEndpointImpl, List<PendingLink>> byEndpoint = new LinkedHashMap<ManagedEndpointImpl, List<PendingLink>>();
+        for (PendingLink link : links) {
+            for (EndpointPortImpl port : new EndpointPortImpl[] { link.one, link.other }) {
+                List<PendingLink> list = byEndpoint.get(port.getEndpoint());
+                if (list == null) {
+                    list = new ArrayList<PendingLink>();
+                    byEndpoint.put(port.getEndpoint(), list);
+                }
+                list.add(link);
+            }
+        }
+        final List<Entry<ManagedEndpointImpl, List<PendingLink>>> groups = new ArrayList<Entry<ManagedEndpointImpl, List<PendingLink>>>(byEndpoint.entrySet());
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(groups.size());
+        Runnable runner = new Runnable() {
+            @Override
+            public void run() {
+                int index;
+                while ((index = next.getAndIncrement()) < groups.size()) {
+                    try {
+                        callEndpoint(groups.get(index).getKey(), groups.get(index).getValue());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        // When called from an endpoint while holding the lock, the workers could not get it when they call the manager
+        if (!Thread.holdsLock(lock)) {
+            int helpers = Math.min(groups.size(), Runtime.getRuntime().availableProcessors()) - 1;
+            try {
+                for (int i = 0; i < helpers; i++) {
+                    workerPool.execute(runner);
+                }
+            } catch (RejectedExecutionException e) {
+                // The calling thread does the rest
+            }
+        }
+        runner.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void callEndpoint(ManagedEndpointImpl endpoint, List<PendingLink> links) {
+        for (PendingLink link : links) {
+            try {
+                if (link.one.getEndpoint() == endpoint) {
+                    link.oneHandler = endpoint.getEndpointInstance().onConnect(link.oneToOther);
+                } else {
+                    link.otherHandler = endpoint.getEndpointInstance().onConnect(link.otherToOne);
+                }
+            } catch (RuntimeException e) {
+                reportFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the connections that have been made as a {@link Topology}, which can be stored and applied again with
+     * {@link #applyTopology(Topology)}.
+     *
+     * @return The current connections
+     */
+    public Topology getTopology() {
+        Topology.Builder builder = Topology.create();
+        synchronized (lock) {
+            for (ManagedEndpointImpl endpoint : endpoints.values()) {
+                for (EndpointPortImpl port : endpoint.getPorts().values()) {
+                    for (PotentialConnectionImpl connection : port.potentialConnections.values()) {
+                        if (connection.oneToOther != null && connection.getEitherEnd() == port) {
+                            EndpointPortImpl other = connection.getOtherEnd(port);
+                            builder.link(endpoint.getPid(), port.getName(), other.getEndpoint().getPid(), other.getName());
+                        }
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Requests a connection that is made as soon as both ports are available and free. The pending requests are indexed
+     * by their ports, so only the requests of a port are retried when an endpoint with that port is added or when a
+     * connection of that port is disconnected.
+     *
+     * @see #toPromise(ConnectionFuture)
+     */
+    @Override
+    public ConnectionFuture asyncConnectEndpointPorts(String onePid, String onePort, String otherPid, String otherPort) {
+        ConnectionFutureImpl request = new ConnectionFutureImpl(this, onePid, onePort, otherPid, otherPort);
+        synchronized (lock) {
+            if (!tryConnect(request)) {
+                addConnectionRequest(request.oneKey, request);
+                if (!request.otherKey.equals(request.oneKey)) {
+                    addConnectionRequest(request.otherKey, request);
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Returns a promise of the connection of a request, which can be combined with other promises without blocking a
+     * thread. The promise is completed by the worker pool, not while the structure is locked. Cancelling the promise
+     * cancels the request.
+     *
+     * @param future
+     *            A request that has been returned by {@link #asyncConnectEndpointPorts(String, String, String, String)}
+     *            of this manager
+     * @return The promise of the connection
+     * @throws IllegalArgumentException
+     *             when the request has not been made to this manager
+     */
+    public Promise<PotentialConnection> toPromise(ConnectionFuture future) {
+        if (!(future instanceof ConnectionFutureImpl) || ((ConnectionFutureImpl) future).getManager() != this) {
+            throw new IllegalArgumentException("The request " + future + " has not been made to this manager");
+        }
+        return ((ConnectionFutureImpl) future).getPromise();
+    }
+
+    private void addConnectionRequest(String key, ConnectionFutureImpl request) {
+        List<ConnectionFutureImpl> requests = connectionRequests.get(key);
+        if (requests == null) {
+            requests = new ArrayList<ConnectionFutureImpl>(1);
+            connectionRequests.put(key, requests);
+        }
+        requests.add(request);
+    }
+
+    private void removeConnectionRequest(ConnectionFutureImpl request) {
+        for (String key : new String[] { request.oneKey, request.otherKey }) {
+            List<ConnectionFutureImpl> requests = connectionRequests.get(key);
+            if (requests != null && requests.remove(request) && requests.isEmpty()) {
+                connectionRequests.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Cancels a request, unless it has been connected already.
+     *
+     * @return <code>true</code> when the request has been cancelled
+     */
+    boolean cancel(ConnectionFutureImpl request) {
+        synchronized (lock) {
+            if (!request.markCancelled()) {
+                return false;
+            }
+            removeConnectionRequest(request);
+            return true;
+        }
+    }
+
+    private boolean tryConnect(ConnectionFutureImpl request) {
+        ManagedEndpointImpl one = endpoints.get(request.onePid);
+        ManagedEndpointImpl other = endpoints.get(request.otherPid);
+        if (one == null || other == null || one.getPort(request.onePort) == null) {
+            return false;
+        }
+        PotentialConnectionImpl connection = one.getPort(request.onePort).potentialConnectionsByPort.get(other.getPort(request.otherPort));
+        if (connection == null) {
+            return false;
+        }
+        connect(connection);
+        if (connection.oneToOther == null) {
+            return false;
+        }
+        request.connected(connection);
+        return true;
+    }
+
+    /**
+     * Retries the pending requests of a port, after it has been added or one of its connections has been disconnected.
+     */
+    private void retryConnectionRequests(EndpointPortImpl port) {
+        List<ConnectionFutureImpl> requests = connectionRequests.get(port.toString());
+        if (requests == null) {
+            return;
+        }
+        // Connecting calls the endpoints, which may add new requests
+        for (ConnectionFutureImpl request : requests.toArray(new ConnectionFutureImpl[requests.size()])) {
+            if (tryConnect(request)) {
+                removeConnectionRequest(request);
+            }
+        }
+    }
+
+    /**
+     * Completes the pending requests for a connection that has been made in another way.
+     */
+    private void completeConnectionRequests(PotentialConnectionImpl connection) {
+        EndpointPortImpl one = connection.getEitherEnd();
+        List<ConnectionFutureImpl> requests = connectionRequests.get(one.toString());
+        if (requests == null) {
+            return;
+        }
+        String otherKey = connection.getOtherEnd(one).toString();
+        for (ConnectionFutureImpl request : requests.toArray(new ConnectionFutureImpl[requests.size()])) {
+            if (request.oneKey.equals(otherKey) || request.otherKey.equals(otherKey)) {
+                request.connected(connection);
+                removeConnectionRequest(request);
+            }
+        }
+    }
+
+    /**
+     * Runs a short task on the worker pool, or on the current thread when the worker pool does not accept it.
+     */
+    void execute(Runnable task) {
+        try {
+            workerPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Connects the ports that have a single option, as described by {@link ConnectionManager#autoConnect()}. Instead of
+     * checking all ports, only the ports of which the number of connectable potential connections has become one since
+     * the previous call are checked, together with the ports of which the connection has been refused by an endpoint.
+     * The cost of a call is therefore proportional to what has changed.
+     */
+    @Override
+    public void autoConnect() {
+        synchronized (lock) {
+            autoConnectCandidates.addAll(refusedAutoConnects);
+            refusedAutoConnects.clear();
+            while (!autoConnectCandidates.isEmpty()) {
+                Iterator<EndpointPortImpl> iterator = autoConnectCandidates.iterator();
+                EndpointPortImpl port = iterator.next();
+                iterator.remove();
+                if (port.getCardinality() != Cardinality.SINGLE || port.connectionCount > 0
+                    || port.connectableCount != 1) {
+                    continue;
+                }
+                PotentialConnectionImpl only = onlyConnectable(port);
+                EndpointPortImpl other = only.getOtherEnd(port);
+                if (other.getCardinality() == Cardinality.MULTIPLE || other.connectableCount == 1) {
+                    connect(only);
+                    if (only.oneToOther == null) {
+                        refusedAutoConnects.add(port);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the number of connectable potential connections of a port, see {@link EndpointPortImpl#connectableCount}.
+     */
+    private void addConnectable(EndpointPortImpl port, int delta) {
+        port.connectableCount += delta;
+        if (port.connectableCount == 1 && port.getCardinality() == Cardinality.SINGLE) {
+            autoConnectCandidates.add(port);
+        }
+    }
+
+    /**
+     * Updates the counts of both ends after a potential connection has been added, removed, connected or disconnected.
+     */
+    private void connectableChanged(PotentialConnectionImpl connection, int delta) {
+        EndpointPortImpl one = connection.getEitherEnd();
+        EndpointPortImpl other = connection.getOtherEnd(one);
+        if (other.isFree()) {
+            addConnectable(one, delta);
+        }
+        if (one.isFree()) {
+            addConnectable(other, delta);
+        }
+    }
+
+    private void addConnection(EndpointPortImpl port, int delta) {
+        boolean wasFree = port.isFree();
+        port.connectionCount += delta;
+        if (wasFree != port.isFree()) {
+            // The unconnected potential connections of the port have become (un)connectable for the other ends
+            int change = wasFree ? -1 : 1;
+            for (PotentialConnectionImpl connection : port.potentialConnections.values()) {
+                if (!connection.isInUse()) {
+                    addConnectable(connection.getOtherEnd(port), change);
+                }
+            }
+            if (port.connectableCount == 1 && port.isFree()) {
+                autoConnectCandidates.add(port);
+            }
+        }
+    }
+
+    /**
+     * @return The only connectable potential connection of the port, or <code>null</code> if there are none or more
+     */
+    private static PotentialConnectionImpl onlyConnectable(EndpointPortImpl port) {
+        PotentialConnectionImpl result = null;
+        for (PotentialConnectionImpl connection : port.potentialConnections.values()) {
+            if (connection.isConnectable()) {
+                if (result != null) {
+                    return null;
+                }
+                result = connection;
+            }
+        }
+        return result;
+    }
+
+    void connect(PotentialConnectionImpl connection) {
+        synchronized (lock) {
+            if (!connection.isConnectable()) {
+                return;
+            }
+            EndpointPortImpl one = connection.getEitherEnd();
+            EndpointPortImpl other = connection.getOtherEnd(one);
+            ConnectionImpl oneToOther = createConnection(one, other);
+            ConnectionImpl otherToOne = createConnection(other, one);
+
+            MessageHandler oneHandler = null;
+            MessageHandler otherHandler = null;
+            try {
+                oneHandler = one.getEndpoint().getEndpointInstance().onConnect(oneToOther);
+                if (oneHandler != null) {
+                    otherHandler = other.getEndpoint().getEndpointInstance().onConnect(otherToOne);
+                }
+            } catch (RuntimeException e) {
+                reportFailure(e);
+            }
+            if (otherHandler == null) {
+                // Refused by one of the endpoints, messages sent from onConnect are never delivered
+                oneToOther.close();
+                otherToOne.close();
+                if (oneHandler != null) {
+                    try {
+                        oneHandler.disconnected();
+                    } catch (RuntimeException e) {
+                        reportFailure(e);
+                    }
+                }
+                return;
+            }
+
+            connectableChanged(connection, -1);
+            connection.oneToOther = oneToOther;
+            connection.otherToOne = otherToOne;
+            addConnection(one, 1);
+            addConnection(other, 1);
+            oneToOther.activate(acquire(otherHandler));
+            otherToOne.activate(acquire(oneHandler));
+            completeConnectionRequests(connection);
+        }
+    }
+
+    /**
+     * Creates a connection with the queue that is specified by the receiving port.
+     */
+    private ConnectionImpl createConnection(EndpointPortImpl from, EndpointPortImpl to) {
+        Port port = to.getPortDefinition();
+        if (port.queueCapacity() > 0) {
+            return new ConnectionImpl(this, from, to, port.queueCapacity(), port.overflowPolicy());
+        } else {
+            return new ConnectionImpl(this, from, to, queueCapacity, overflowPolicy);
+        }
+    }
+
+    void disconnect(PotentialConnectionImpl connection) {
+        synchronized (lock) {
+            if (connection.oneToOther == null) {
+                return;
+            }
+            connection.oneToOther.close();
+            connection.otherToOne.close();
+            EndpointPortImpl one = connection.getEitherEnd();
+            EndpointPortImpl other = connection.getOtherEnd(one);
+            addConnection(one, -1);
+            addConnection(other, -1);
+            connection.oneToOther = null;
+            connection.otherToOne = null;
+            connectableChanged(connection, 1);
+            retryConnectionRequests(one);
+            retryConnectionRequests(other);
+        }
+    }
+
+    private Mailbox acquire(MessageHandler handler) {
+        Mailbox mailbox = mailboxes.get(handler);
+        if (mailbox == null) {
+            mailbox = new Mailbox(this, handler, workerPool, throughput, maxBatchSize, maxBatchDelay);
+            mailboxes.put(handler, mailbox);
+        }
+        mailbox.references++;
+        return mailbox;
+    }
+
+    /**
+     * Called by a mailbox after a handler has been told that one of its connections is disconnected.
+     */
+    void release(Mailbox mailbox) {
+        synchronized (lock) {
+            if (--mailbox.references == 0 && mailboxes.get(mailbox.getHandler()) == mailbox) {
+                mailboxes.remove(mailbox.getHandler());
+            }
+        }
+    }
+
+    /**
+     * Called on the sending thread for each message that has been queued.
+     */
+    void exchanged(EndpointPortImpl from, EndpointPortImpl to, Object message) {
+        MessageListener[] matching = listeners.listenersFor(message.getClass());
+        if (matching.length > 0) {
+            listenerDispatcher.publish(from, to, message, matching);
+        }
+    }
+
+    void reportFailure(RuntimeException e) {
+        failures.incrementAndGet();
+        Thread thread = Thread.currentThread();
+        Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+        if (handler != null) {
+            handler.uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Disconnects all connections and removes all endpoints. Messages that are still queued are handled, followed by
+     * the calls to {@link MessageHandler#disconnected()}.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            for (String pid : new ArrayList<String>(endpoints.keySet())) {
+                removeEndpoint(pid);
+            }
+            connectionRequests.clear();
+        }
+        synchronized (batchTimerLock) {
+            if (batchTimer != null) {
+                // The batches that are still open are delivered when they are due
+                batchTimer.shutdown();
+                batchTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the task when an open batch of a mailbox is due.
+     *
+     * @return <code>false</code> when the task could not be scheduled
+     */
+    boolean scheduleBatchFlush(Runnable task, long delayNanos) {
+        synchronized (batchTimerLock) {
+            if (batchTimer == null) {
+                batchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DispatchingConnectionManager batch timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            try {
+                batchTimer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "DispatchingConnectionManager [endpoints=" + endpoints.size() + ", mailboxes=" + mailboxes.size() + "]";
+        }
+    }
+}
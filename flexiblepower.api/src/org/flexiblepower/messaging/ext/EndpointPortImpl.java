@@ -0,0 +1,155 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.MessageKeyExtractor;
+import org.flexiblepower.messaging.Port;
+
+/**
+ * The {@link EndpointPort} of a {@link ManagedEndpointImpl}. The potential connections are maintained by the
+ * {@link DispatchingConnectionManager} and guarded by its lock.
+ */
+final class EndpointPortImpl implements EndpointPort {
+    private final ManagedEndpointImpl endpoint;
+    private final Port port;
+    private final MessageKeyExtractor keyExtractor;
+
+    // Guarded by the manager
+    final SortedMap<String, PotentialConnectionImpl> potentialConnections = new TreeMap<String, PotentialConnectionImpl>();
+    final Map<EndpointPortImpl, PotentialConnectionImpl> potentialConnectionsByPort = new HashMap<EndpointPortImpl, PotentialConnectionImpl>();
+    int connectionCount;
+    /**
+     * The number of potential connections of this port that are not connected and of which the other end is free. The
+     * potential connections of a free port with a count of one are its only option. Guarded by the manager.
+     */
+    int connectableCount;
+    // Set to null when the potential connections change, rebuilt on demand
+    volatile SortedMap<String, PotentialConnectionImpl> potentialConnectionsSnapshot;
+
+    EndpointPortImpl(ManagedEndpointImpl endpoint, Port port) {
+        this.endpoint = endpoint;
+        this.port = port;
+        keyExtractor = createKeyExtractor(port);
+    }
+
+    private static MessageKeyExtractor createKeyExtractor(Port port) {
+        Class<? extends MessageKeyExtractor> type = port.conflateBy();
+        if (type == MessageKeyExtractor.class) {
+            return null;
+        }
+        try {
+            return type.newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalArgumentException("Could not create the key extractor of port " + port.name(), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Could not create the key extractor of port " + port.name(), e);
+        }
+    }
+
+    /**
+     * Checks if two ports can be connected, which is when each type that one port sends is accepted by the other port.
+     * Ports without any types are only declarations and can not be connected.
+     *
+     * @return <code>true</code> when the ports match
+     */
+    static boolean matches(Port one, Port other) {
+        if (one.sends().length + one.accepts().length == 0 || other.sends().length + other.accepts().length == 0) {
+            return false;
+        }
+        return isAccepted(one.sends(), other.accepts()) && isAccepted(other.sends(), one.accepts());
+    }
+
+    private static boolean isAccepted(Class<?>[] sends, Class<?>[] accepts) {
+        for (Class<?> sent : sends) {
+            boolean accepted = false;
+            for (Class<?> accept : accepts) {
+                if (accept.isAssignableFrom(sent)) {
+                    accepted = true;
+                    break;
+                }
+            }
+            if (!accepted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> when a new connection can be made on this port
+     */
+    boolean isFree() {
+        return port.cardinality() == Cardinality.MULTIPLE || connectionCount == 0;
+    }
+
+    Port getPortDefinition() {
+        return port;
+    }
+
+    /**
+     * @return The extractor of the keys of messages that are received through this port, or <code>null</code>
+     */
+    MessageKeyExtractor getKeyExtractor() {
+        return keyExtractor;
+    }
+
+    @Override
+    public ManagedEndpointImpl getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public String getName() {
+        return port.name();
+    }
+
+    @Override
+    public Cardinality getCardinality() {
+        return port.cardinality();
+    }
+
+    @Override
+    public PotentialConnection getPotentialConnection(String id) {
+        synchronized (endpoint.getManager().lock) {
+            return potentialConnections.get(id);
+        }
+    }
+
+    @Override
+    public PotentialConnection getPotentialConnection(EndpointPort other) {
+        synchronized (endpoint.getManager().lock) {
+            return potentialConnectionsByPort.get(other);
+        }
+    }
+
+    /**
+     * Returns an immutable snapshot of the potential connections, which is shared until they change.
+     */
+    @Override
+    public SortedMap<String, PotentialConnectionImpl> getPotentialConnections() {
+        SortedMap<String, PotentialConnectionImpl> snapshot = potentialConnectionsSnapshot;
+        if (snapshot == null) {
+            synchronized (endpoint.getManager().lock) {
+                snapshot = potentialConnectionsSnapshot;
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableSortedMap(
+                            new TreeMap<String, PotentialConnectionImpl>(potentialConnections));
+                    potentialConnectionsSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return endpoint.getPid() + ":" + port.name();
+    }
+}
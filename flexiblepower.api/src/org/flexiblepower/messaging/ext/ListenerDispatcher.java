@@ -0,0 +1,153 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.MessageListener;
+
+/**
+ * Delivers exchanged messages to the {@link MessageListener}s off the path of the sender. The senders publish the
+ * messages in a bounded ring buffer of preallocated slots, which is drained by at most one worker at a time, so a
+ * listener is never called concurrently and sees the messages of a connection in the order in which they were sent.
+ *
+ * The ring buffer is a lock-free multi-producer queue in which each slot has a sequence number that tells whether it is
+ * free, or filled for the consumer. When the buffer is full, the message is not delivered to the listeners and
+ * counted as dropped; a listener never slows down the senders.
+ */
+final class ListenerDispatcher implements Runnable {
+    private static final int IDLE = 0, SCHEDULED = 1;
+
+    private static final class Slot {
+        volatile long sequence;
+        EndpointPort from;
+        EndpointPort to;
+        Object message;
+        MessageListener[] listeners;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private final DispatchingConnectionManager manager;
+    private final Executor workerPool;
+    private final int throughput;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    // Only accessed by the draining worker
+    private long head;
+
+    /**
+     * @param capacity
+     *            The number of slots in the ring buffer, rounded up to a power of two
+     */
+    ListenerDispatcher(DispatchingConnectionManager manager, Executor workerPool, int throughput, int capacity) {
+        this.manager = manager;
+        this.workerPool = workerPool;
+        this.throughput = throughput;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Publishes a message for the given listeners. Called by the sender.
+     */
+    void publish(EndpointPort from, EndpointPort to, Object message, MessageListener[] listeners) {
+        long position = tail.get();
+        while (true) {
+            Slot slot = slots[(int) position & mask];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.from = from;
+                    slot.to = to;
+                    slot.message = message;
+                    slot.listeners = listeners;
+                    slot.sequence = position + 1;
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (state.get() == IDLE && state.compareAndSet(IDLE, SCHEDULED)) {
+            try {
+                workerPool.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The messages stay in the buffer until the next message is published
+                state.set(IDLE);
+                manager.reportFailure(e);
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        return slots[(int) head & mask].sequence != head + 1;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (int budget = throughput; budget > 0; budget--) {
+                Slot slot = slots[(int) head & mask];
+                if (slot.sequence != head + 1) {
+                    break;
+                }
+                EndpointPort from = slot.from;
+                EndpointPort to = slot.to;
+                Object message = slot.message;
+                MessageListener[] listeners = slot.listeners;
+                slot.from = null;
+                slot.to = null;
+                slot.message = null;
+                slot.listeners = null;
+                slot.sequence = head + slots.length;
+                head++;
+
+                for (MessageListener listener : listeners) {
+                    try {
+                        listener.handleMessage(from, to, message);
+                    } catch (RuntimeException e) {
+                        manager.reportFailure(e);
+                    }
+                }
+            }
+        } finally {
+            state.set(IDLE);
+            if (!isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * @return The number of messages that have not been delivered to the listeners because the buffer was full
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerDispatcher [capacity=" + slots.length + ", dropped=" + dropped.get() + "]";
+    }
+}
@@ -0,0 +1,114 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageListener;
+
+/**
+ * The index from the class of a message to the {@link MessageListener}s whose {@link Filter} matches it. The filters
+ * are read once when a listener is added, and the listeners for a class are resolved once and then cached in a
+ * {@link ClassValue}, so looking up the listeners of a message does not scan the filters.
+ *
+ * The registrations and the cache are replaced as a whole when a listener is added or removed, so lookups never take a
+ * lock. The cache does not keep the message classes alive.
+ */
+final class ListenerIndex {
+    static final MessageListener[] NONE = new MessageListener[0];
+
+    /**
+     * A listener with its filter classes. A listener without a filter has no classes.
+     */
+    private static final class Registration {
+        final MessageListener listener;
+        final Class<?>[] classes;
+
+        Registration(MessageListener listener) {
+            this.listener = listener;
+            Filter filter = listener.getClass().getAnnotation(Filter.class);
+            classes = filter == null ? new Class<?>[0] : filter.value().clone();
+        }
+
+        boolean accepts(Class<?> type) {
+            if (classes.length == 0) {
+                return true;
+            }
+            for (Class<?> clazz : classes) {
+                if (clazz.isAssignableFrom(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An immutable set of registrations, which is also the cache of the listeners per message class that belongs to it.
+     */
+    private static final class Snapshot extends ClassValue<MessageListener[]> {
+        final Registration[] registrations;
+
+        Snapshot(Registration[] registrations) {
+            this.registrations = registrations;
+        }
+
+        @Override
+        protected MessageListener[] computeValue(Class<?> type) {
+            List<MessageListener> result = new ArrayList<MessageListener>();
+            for (Registration registration : registrations) {
+                if (registration.accepts(type)) {
+                    result.add(registration.listener);
+                }
+            }
+            return result.isEmpty() ? NONE : result.toArray(new MessageListener[result.size()]);
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new Registration[0]);
+
+    synchronized void add(MessageListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        Registration[] current = snapshot.registrations;
+        Registration[] registrations = new Registration[current.length + 1];
+        System.arraycopy(current, 0, registrations, 0, current.length);
+        registrations[current.length] = new Registration(listener);
+        snapshot = new Snapshot(registrations);
+    }
+
+    synchronized void remove(MessageListener listener) {
+        List<Registration> registrations = new ArrayList<Registration>();
+        boolean removed = false;
+        for (Registration registration : snapshot.registrations) {
+            if (!removed && registration.listener.equals(listener)) {
+                removed = true;
+            } else {
+                registrations.add(registration);
+            }
+        }
+        if (!removed) {
+            return;
+        }
+        snapshot = new Snapshot(registrations.toArray(new Registration[registrations.size()]));
+    }
+
+    boolean isEmpty() {
+        return snapshot.registrations.length == 0;
+    }
+
+    /**
+     * @param type
+     *            The class of a message
+     * @return The listeners that should receive messages of this class, in the order in which they have been added.
+     *         The array must not be modified.
+     */
+    MessageListener[] listenersFor(Class<?> type) {
+        Snapshot current = snapshot;
+        if (current.registrations.length == 0) {
+            return NONE;
+        }
+        return current.get(type);
+    }
+}
@@ -0,0 +1,238 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.BatchMessageHandler;
+import org.flexiblepower.messaging.MessageHandler;
+
+/**
+ * The {@link Mailbox} serves a single {@link MessageHandler}. Each connection to the handler has its own
+ * {@link Channel}, which is added to the ready queue of the mailbox (a lock-free multi-producer single-consumer queue)
+ * when the first message arrives in the empty channel. At most one worker drains the mailbox at a time, which gives
+ * serial execution of the handler and keeps the order of the messages of each connection.
+ *
+ * The mailbox schedules itself on the worker pool when a channel becomes ready. A worker handles at most
+ * <code>throughput</code> messages before it schedules the mailbox again, so busy mailboxes share the worker pool. A
+ * channel that still has messages after its turn goes to the back of the ready queue, so busy connections share the
+ * handler.
+ *
+ * A {@link BatchMessageHandler} receives the queued messages in batches of at most <code>maxBatchSize</code>. When the
+ * mailbox runs empty while a batch is being collected, the batch stays open for up to <code>maxBatchDelay</code>
+ * nanoseconds (since the first message of the batch). The worker does not wait for that; the mailbox is scheduled
+ * again by the next message or by the batch timer of the manager, which delivers the batch when the delay has passed.
+ */
+final class Mailbox implements Runnable {
+    private static final int IDLE = 0, SCHEDULED = 1;
+
+    private final DispatchingConnectionManager manager;
+    private final MessageHandler handler;
+    private final Executor workerPool;
+    private final int throughput;
+    private final BatchMessageHandler batchHandler;
+    private final int maxBatchSize;
+    private final long maxBatchDelay;
+    private final MpscQueue<Channel> readyChannels = new MpscQueue<Channel>();
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    // Set by the batch timer, so a worker that is just finishing schedules the mailbox again
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flushRequested.set(true);
+            schedule();
+        }
+    };
+
+    // Only accessed by the draining worker
+    private final List<Object> batch;
+    private final List<Object> batchView;
+    private long batchDeadline;
+    // The deadline for which the batch timer has been started, as long as it has not fired
+    private boolean flushScheduled;
+    private long flushDeadline;
+
+    // Guarded by the manager
+    int references;
+
+    Mailbox(DispatchingConnectionManager manager,
+            MessageHandler handler,
+            Executor workerPool,
+            int throughput,
+            int maxBatchSize,
+            long maxBatchDelay) {
+        this.manager = manager;
+        this.handler = handler;
+        this.workerPool = workerPool;
+        this.throughput = throughput;
+        batchHandler = handler instanceof BatchMessageHandler ? (BatchMessageHandler) handler : null;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelay = maxBatchDelay;
+        batch = batchHandler == null ? null : new ArrayList<Object>(Math.min(maxBatchSize, 1024));
+        batchView = batchHandler == null ? null : Collections.unmodifiableList(batch);
+    }
+
+    MessageHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Makes sure that the channel will be drained. Called after a message has been added to the channel, or after it
+     * has been closed.
+     */
+    void schedule(Channel channel) {
+        if (!channel.ready.get() && channel.ready.compareAndSet(false, true)) {
+            readyChannels.offer(channel);
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (state.get() == IDLE && state.compareAndSet(IDLE, SCHEDULED)) {
+            try {
+                workerPool.execute(this);
+            } catch (RuntimeException e) {
+                state.set(IDLE);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            drain();
+        } finally {
+            state.set(IDLE);
+            if (!readyChannels.isEmpty() || flushRequested.get()) {
+                schedule();
+            }
+        }
+    }
+
+    private void drain() {
+        if (flushRequested.getAndSet(false)) {
+            flushScheduled = false;
+        }
+        // A worker handles at least one full batch
+        int budget = batch == null ? throughput : Math.max(throughput, maxBatchSize);
+        while (true) {
+            Channel channel = readyChannels.poll();
+            if (channel == null) {
+                if (batch == null || batch.isEmpty()) {
+                    return;
+                }
+                if (batchDeadline - System.nanoTime() > 0 && flushLater()) {
+                    // Leave the batch open, without holding the worker
+                    return;
+                }
+                deliverBatch();
+                return;
+            }
+
+            Object message;
+            while (budget > 0 && (message = channel.poll()) != null) {
+                budget--;
+                if (batch == null) {
+                    deliver(message);
+                } else {
+                    if (batch.isEmpty()) {
+                        batchDeadline = System.nanoTime() + maxBatchDelay;
+                    }
+                    batch.add(message);
+                    if (batch.size() >= maxBatchSize) {
+                        deliverBatch();
+                    }
+                }
+            }
+
+            if (budget == 0 && !channel.isEmpty()) {
+                // Continue with this channel after the others
+                readyChannels.offer(channel);
+                if (batch != null) {
+                    deliverBatch();
+                }
+                return;
+            }
+            idle(channel);
+            if (budget == 0) {
+                if (batch != null) {
+                    deliverBatch();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes sure that the mailbox is scheduled again when the open batch is due.
+     *
+     * @return <code>false</code> when the batch timer is not available, in which case the batch should be delivered
+     */
+    private boolean flushLater() {
+        if (flushScheduled && flushDeadline == batchDeadline) {
+            return true;
+        }
+        if (manager.scheduleBatchFlush(flush, batchDeadline - System.nanoTime())) {
+            flushScheduled = true;
+            flushDeadline = batchDeadline;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when a channel has been drained. Delivers the disconnect when the channel has been closed, or marks the
+     * channel as not ready so the next message schedules it again.
+     */
+    private void idle(Channel channel) {
+        if (channel.closed && !channel.finished) {
+            if (batch != null) {
+                deliverBatch();
+            }
+            channel.finished = true;
+            try {
+                handler.disconnected();
+            } catch (RuntimeException e) {
+                manager.reportFailure(e);
+            } finally {
+                manager.release(this);
+            }
+            // The channel stays marked as ready, so it is never scheduled again
+            return;
+        }
+        channel.ready.set(false);
+        if ((!channel.isEmpty() || channel.closed) && channel.ready.compareAndSet(false, true)) {
+            readyChannels.offer(channel);
+        }
+    }
+
+    private void deliver(Object message) {
+        try {
+            handler.handleMessage(message);
+        } catch (RuntimeException e) {
+            manager.reportFailure(e);
+        }
+    }
+
+    private void deliverBatch() {
+        if (!batch.isEmpty()) {
+            try {
+                batchHandler.handleMessages(batchView);
+            } catch (RuntimeException e) {
+                manager.reportFailure(e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Mailbox [handler=" + handler + ", idle=" + (state.get() == IDLE) + "]";
+    }
+}
@@ -0,0 +1,103 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.flexiblepower.messaging.ConnectionManager.ManagedEndpoint;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+
+/**
+ * The {@link ManagedEndpoint} of an {@link Endpoint} that has been added to a {@link DispatchingConnectionManager}. The
+ * ports are read once from the {@link Port} and {@link Ports} annotations of the class of the endpoint, its super
+ * classes and its interfaces. When a port with the same name is defined more than once, the definition that is
+ * closest to the class of the endpoint is used.
+ */
+final class ManagedEndpointImpl implements ManagedEndpoint {
+    private final DispatchingConnectionManager manager;
+    private final String pid;
+    private final Endpoint endpoint;
+    private final SortedMap<String, EndpointPortImpl> ports;
+
+    ManagedEndpointImpl(DispatchingConnectionManager manager, String pid, Endpoint endpoint) {
+        this.manager = manager;
+        this.pid = pid;
+        this.endpoint = endpoint;
+        SortedMap<String, EndpointPortImpl> map = new TreeMap<String, EndpointPortImpl>();
+        for (Port port : portsOf(endpoint.getClass()).values()) {
+            map.put(port.name(), new EndpointPortImpl(this, port));
+        }
+        ports = Collections.unmodifiableSortedMap(map);
+    }
+
+    /**
+     * Reads the port definitions of a class.
+     *
+     * @param type
+     *            The class of the endpoint
+     * @return The definitions, keyed by the name of the port
+     */
+    static SortedMap<String, Port> portsOf(Class<?> type) {
+        SortedMap<String, Port> result = new TreeMap<String, Port>();
+        Deque<Class<?>> todo = new ArrayDeque<Class<?>>();
+        todo.add(type);
+        while (!todo.isEmpty()) {
+            Class<?> clazz = todo.poll();
+            Port port = clazz.getAnnotation(Port.class);
+            if (port != null) {
+                addPort(result, port);
+            }
+            Ports group = clazz.getAnnotation(Ports.class);
+            if (group != null) {
+                for (Port p : group.value()) {
+                    addPort(result, p);
+                }
+            }
+            if (clazz.getSuperclass() != null) {
+                todo.add(clazz.getSuperclass());
+            }
+            Collections.addAll(todo, clazz.getInterfaces());
+        }
+        return result;
+    }
+
+    private static void addPort(SortedMap<String, Port> ports, Port port) {
+        Port existing = ports.get(port.name());
+        // A declaration without types (e.g. on an interface) does not override an implementation
+        if (existing == null || (existing.sends().length == 0 && existing.accepts().length == 0)) {
+            ports.put(port.name(), port);
+        }
+    }
+
+    DispatchingConnectionManager getManager() {
+        return manager;
+    }
+
+    Endpoint getEndpointInstance() {
+        return endpoint;
+    }
+
+    @Override
+    public String getPid() {
+        return pid;
+    }
+
+    @Override
+    public EndpointPortImpl getPort(String name) {
+        return ports.get(name);
+    }
+
+    @Override
+    public SortedMap<String, EndpointPortImpl> getPorts() {
+        return ports;
+    }
+
+    @Override
+    public String toString() {
+        return pid;
+    }
+}
@@ -0,0 +1,81 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An unbounded lock-free multi-producer single-consumer queue. Any number of threads may call {@link #offer(Object)}
+ * at the same time, while {@link #poll()} may only be called by one thread at a time. Adding an element takes a
+ * single atomic swap and never fails or retries.
+ *
+ * @param <E>
+ *            The type of the elements
+ */
+final class MpscQueue<E> {
+    private static final class Node<E> {
+        volatile Node<E> next;
+        E value;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater.newUpdater(Node.class,
+                                                                                                               Node.class,
+                                                                                                               "next");
+
+    private final AtomicReference<Node<E>> tail;
+
+    // Only accessed by the consumer
+    private Node<E> head;
+
+    MpscQueue() {
+        head = new Node<E>(null);
+        tail = new AtomicReference<Node<E>>(head);
+    }
+
+    /**
+     * Adds an element at the end of the queue.
+     *
+     * @param value
+     *            The element, not <code>null</code>
+     */
+    void offer(E value) {
+        Node<E> node = new Node<E>(value);
+        Node<E> previous = tail.getAndSet(node);
+        NEXT.lazySet(previous, node);
+    }
+
+    /**
+     * Removes the element at the start of the queue. Must only be called by the consumer.
+     *
+     * @return The element, or <code>null</code> when the queue is empty
+     */
+    E poll() {
+        Node<E> h = head;
+        Node<E> next = h.next;
+        if (next == null) {
+            if (tail.get() == h) {
+                return null;
+            }
+            // A producer has swapped the tail, but not yet linked its node
+            while ((next = h.next) == null) {
+                Thread.yield();
+            }
+        }
+        head = next;
+        E value = next.value;
+        // The node is the new head, don't keep the element alive
+        next.value = null;
+        return value;
+    }
+
+    /**
+     * @return <code>true</code> when there are no elements in the queue, or when an element is being added.
+     */
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
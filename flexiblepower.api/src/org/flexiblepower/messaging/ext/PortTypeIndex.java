@@ -0,0 +1,166 @@
+package org.flexiblepower.messaging.ext;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.flexiblepower.messaging.Port;
+
+/**
+ * An index of the ports of all endpoints by message type, used to find the ports that match a new port without
+ * comparing it to every other port. Two ports match when each type that one sends is accepted by the other (see
+ * {@link EndpointPortImpl#matches(Port, Port)}), so the index keeps:
+ *
+ * <ul>
+ * <li>the ports by each type they accept, to find the ports that accept what a port sends, and</li>
+ * <li>the ports by each super type of each type they send, to find the ports that send something a port accepts.</li>
+ * </ul>
+ *
+ * The candidates that are found this way are checked with {@link EndpointPortImpl#matches(Port, Port)}, so the work
+ * for a port is proportional to the number of ports that share a type with it, not to the total number of ports.
+ *
+ * Guarded by the lock of the {@link DispatchingConnectionManager}.
+ */
+final class PortTypeIndex {
+    private final Map<Class<?>, Set<EndpointPortImpl>> byAcceptedType = new HashMap<Class<?>, Set<EndpointPortImpl>>();
+    private final Map<Class<?>, Set<EndpointPortImpl>> bySentSuperType = new HashMap<Class<?>, Set<EndpointPortImpl>>();
+    private final Set<EndpointPortImpl> notSending = new HashSet<EndpointPortImpl>();
+
+    void add(EndpointPortImpl port) {
+        Port definition = port.getPortDefinition();
+        for (Class<?> type : definition.accepts()) {
+            put(byAcceptedType, type, port);
+        }
+        for (Class<?> type : definition.sends()) {
+            for (Class<?> superType : superTypesOf(type)) {
+                put(bySentSuperType, superType, port);
+            }
+        }
+        if (definition.sends().length == 0 && definition.accepts().length > 0) {
+            notSending.add(port);
+        }
+    }
+
+    void remove(EndpointPortImpl port) {
+        Port definition = port.getPortDefinition();
+        for (Class<?> type : definition.accepts()) {
+            remove(byAcceptedType, type, port);
+        }
+        for (Class<?> type : definition.sends()) {
+            for (Class<?> superType : superTypesOf(type)) {
+                remove(bySentSuperType, superType, port);
+            }
+        }
+        notSending.remove(port);
+    }
+
+    /**
+     * Finds the ports of other endpoints that match the given port.
+     *
+     * @param port
+     *            The port, which does not have to be in the index
+     * @return The matching ports
+     */
+    List<EndpointPortImpl> findMatches(EndpointPortImpl port) {
+        Port definition = port.getPortDefinition();
+        Collection<EndpointPortImpl> candidates;
+        if (definition.sends().length > 0) {
+            // Every match accepts the first type that this port sends
+            candidates = acceptingPorts(definition.sends()[0]);
+        } else if (definition.accepts().length > 0) {
+            // Every match sends nothing, or only types that this port accepts
+            candidates = new LinkedHashSet<EndpointPortImpl>(notSending);
+            for (Class<?> type : definition.accepts()) {
+                Set<EndpointPortImpl> ports = bySentSuperType.get(type);
+                if (ports != null) {
+                    candidates.addAll(ports);
+                }
+            }
+        } else {
+            return Collections.emptyList();
+        }
+
+        List<EndpointPortImpl> result = new ArrayList<EndpointPortImpl>();
+        for (EndpointPortImpl candidate : candidates) {
+            if (candidate.getEndpoint() != port.getEndpoint()
+                && EndpointPortImpl.matches(definition, candidate.getPortDefinition())) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    private Collection<EndpointPortImpl> acceptingPorts(Class<?> type) {
+        Collection<EndpointPortImpl> result = null;
+        boolean copied = false;
+        for (Class<?> superType : superTypesOf(type)) {
+            Set<EndpointPortImpl> ports = byAcceptedType.get(superType);
+            if (ports == null) {
+                continue;
+            } else if (result == null) {
+                result = ports;
+            } else {
+                // Never modify the sets of the index
+                if (!copied) {
+                    result = new LinkedHashSet<EndpointPortImpl>(result);
+                    copied = true;
+                }
+                result.addAll(ports);
+            }
+        }
+        return result == null ? Collections.<EndpointPortImpl> emptySet() : result;
+    }
+
+    /**
+     * @return The type itself, all its super classes and all its interfaces
+     */
+    static Set<Class<?>> superTypesOf(Class<?> type) {
+        Set<Class<?>> result = new LinkedHashSet<Class<?>>();
+        Deque<Class<?>> todo = new ArrayDeque<Class<?>>();
+        todo.add(type);
+        while (!todo.isEmpty()) {
+            Class<?> clazz = todo.poll();
+            if (result.add(clazz)) {
+                if (clazz.getSuperclass() != null) {
+                    todo.add(clazz.getSuperclass());
+                }
+                Collections.addAll(todo, clazz.getInterfaces());
+            }
+        }
+        if (type.isInterface()) {
+            // Interfaces are assignable to Object too
+            result.add(Object.class);
+        } else if (type.isArray() && !type.getComponentType().isPrimitive()) {
+            // Arrays are assignable to the arrays of the super types of their component
+            for (Class<?> superType : superTypesOf(type.getComponentType())) {
+                result.add(Array.newInstance(superType, 0).getClass());
+            }
+        }
+        return result;
+    }
+
+    private static void put(Map<Class<?>, Set<EndpointPortImpl>> index, Class<?> type, EndpointPortImpl port) {
+        Set<EndpointPortImpl> ports = index.get(type);
+        if (ports == null) {
+            ports = new LinkedHashSet<EndpointPortImpl>();
+            index.put(type, ports);
+        }
+        ports.add(port);
+    }
+
+    private static void remove(Map<Class<?>, Set<EndpointPortImpl>> index, Class<?> type, EndpointPortImpl port) {
+        Set<EndpointPortImpl> ports = index.get(type);
+        if (ports != null && ports.remove(port) && ports.isEmpty()) {
+            index.remove(type);
+        }
+    }
+}
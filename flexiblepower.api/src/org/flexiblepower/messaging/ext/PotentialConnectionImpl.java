@@ -0,0 +1,89 @@
+package org.flexiblepower.messaging.ext;
+
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+
+/**
+ * The {@link PotentialConnection} between two matching {@link EndpointPortImpl}s. The state is guarded by the lock of
+ * the {@link DispatchingConnectionManager}.
+ */
+final class PotentialConnectionImpl implements PotentialConnection {
+    private final DispatchingConnectionManager manager;
+    private final String id;
+    private final EndpointPortImpl one;
+    private final EndpointPortImpl other;
+
+    // Guarded by the manager, both are set while connected
+    ConnectionImpl oneToOther;
+    ConnectionImpl otherToOne;
+    // Guarded by the manager, set while the endpoints are being connected by applyTopology
+    Object reservation;
+
+    PotentialConnectionImpl(DispatchingConnectionManager manager, EndpointPortImpl a, EndpointPortImpl b) {
+        this.manager = manager;
+        // Order the ends, so the identifier is the same in both directions
+        if (a.toString().compareTo(b.toString()) <= 0) {
+            one = a;
+            other = b;
+        } else {
+            one = b;
+            other = a;
+        }
+        id = idOf(one, other);
+    }
+
+    static String idOf(EndpointPortImpl a, EndpointPortImpl b) {
+        String x = a.toString(), y = b.toString();
+        return x.compareTo(y) <= 0 ? x + "-" + y : y + "-" + x;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    @Override
+    public EndpointPortImpl getEitherEnd() {
+        return one;
+    }
+
+    @Override
+    public EndpointPortImpl getOtherEnd(EndpointPort either) {
+        return either == one ? other : one;
+    }
+
+    @Override
+    public boolean isConnected() {
+        synchronized (manager.lock) {
+            return oneToOther != null;
+        }
+    }
+
+    @Override
+    public void connect() {
+        manager.connect(this);
+    }
+
+    @Override
+    public void disconnect() {
+        manager.disconnect(this);
+    }
+
+    @Override
+    public boolean isConnectable() {
+        synchronized (manager.lock) {
+            return !isInUse() && one.isFree() && other.isFree();
+        }
+    }
+
+    /**
+     * @return <code>true</code> when connected or reserved. Must be called while holding the lock of the manager.
+     */
+    boolean isInUse() {
+        return oneToOther != null || reservation != null;
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
@@ -0,0 +1,334 @@
+package org.flexiblepower.messaging.ext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A {@link Topology} is a set of connections between ports, identified by the pids of the endpoints and the names of
+ * the ports. It is used to connect many ports at once with
+ * {@link DispatchingConnectionManager#applyTopology(Topology)}, and to store the connections of a running system with
+ * {@link DispatchingConnectionManager#getTopology()}, so they can be made again after a restart without depending on
+ * {@link DispatchingConnectionManager#autoConnect()}.
+ *
+ * A topology can be written as text with {@link #writeTo(Writer)} and read with {@link #readFrom(Reader)}. The format
+ * has one link per line, with the pid and port of both ends separated by tabs. Empty lines and lines that start with
+ * <code>#</code> are ignored. A backslash, tab, line break or leading <code>#</code> in a pid or port name is escaped
+ * with a backslash (<code>\\</code>, <code>\t</code>, <code>\n</code>, <code>\r</code> and <code>\#</code>), so
+ * every pid and port name can be stored.
+ *
+ * Instances of this class are immutable. Use {@link #create()} to build one, e.g.:
+ *
+ * <pre>
+ * Topology topology = Topology.create().link(&quot;battery&quot;, &quot;controller&quot;, &quot;controller&quot;, &quot;devices&quot;).build();
+ * </pre>
+ */
+public final class Topology {
+    private static final String HEADER = "# flexiblepower topology 1";
+
+    /**
+     * A connection between two ports. The ends are ordered, so a link is equal to the link in the other direction.
+     */
+    public static final class Link {
+        private final String onePid;
+        private final String onePort;
+        private final String otherPid;
+        private final String otherPort;
+
+        Link(String aPid, String aPort, String bPid, String bPort) {
+            if (aPid == null || aPort == null || bPid == null || bPort == null) {
+                throw new NullPointerException();
+            }
+            int order = aPid.compareTo(bPid);
+            if (order < 0 || (order == 0 && aPort.compareTo(bPort) <= 0)) {
+                onePid = aPid;
+                onePort = aPort;
+                otherPid = bPid;
+                otherPort = bPort;
+            } else {
+                onePid = bPid;
+                onePort = bPort;
+                otherPid = aPid;
+                otherPort = aPort;
+            }
+        }
+
+        /**
+         * @return The pid of the endpoint of the first end
+         */
+        public String getOnePid() {
+            return onePid;
+        }
+
+        /**
+         * @return The name of the port of the first end
+         */
+        public String getOnePort() {
+            return onePort;
+        }
+
+        /**
+         * @return The pid of the endpoint of the other end
+         */
+        public String getOtherPid() {
+            return otherPid;
+        }
+
+        /**
+         * @return The name of the port of the other end
+         */
+        public String getOtherPort() {
+            return otherPort;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Link)) {
+                return false;
+            }
+            Link other = (Link) obj;
+            return onePid.equals(other.onePid) && onePort.equals(other.onePort)
+                   && otherPid.equals(other.otherPid)
+                   && otherPort.equals(other.otherPort);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((onePid.hashCode() * 31 + onePort.hashCode()) * 31 + otherPid.hashCode()) * 31
+                   + otherPort.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return onePid + ":" + onePort + "-" + otherPid + ":" + otherPort;
+        }
+    }
+
+    /**
+     * This {@link Builder} is a helper class to create a {@link Topology}. You can create an instance of this using the
+     * {@link Topology#create()} method.
+     */
+    public static final class Builder {
+        private final Set<Link> links = new LinkedHashSet<Link>();
+
+        Builder() {
+        }
+
+        /**
+         * Adds a link. Adding the same link twice, in either direction, has no effect.
+         *
+         * @param onePid
+         *            The pid of the first endpoint
+         * @param onePort
+         *            The name of the port of the first endpoint
+         * @param otherPid
+         *            The pid of the other endpoint
+         * @param otherPort
+         *            The name of the port of the other endpoint
+         * @return This builder
+         */
+        public Builder link(String onePid, String onePort, String otherPid, String otherPort) {
+            links.add(new Link(onePid, onePort, otherPid, otherPort));
+            return this;
+        }
+
+        /**
+         * Adds all links of another topology.
+         *
+         * @param topology
+         *            The topology
+         * @return This builder
+         */
+        public Builder links(Topology topology) {
+            links.addAll(topology.links);
+            return this;
+        }
+
+        /**
+         * @return The new topology
+         */
+        public Topology build() {
+            return new Topology(Collections.unmodifiableSet(new LinkedHashSet<Link>(links)));
+        }
+    }
+
+    /**
+     * Starts the creation of a new topology.
+     *
+     * @return The {@link Builder} that can be used to add the links
+     */
+    public static Builder create() {
+        return new Builder();
+    }
+
+    private final Set<Link> links;
+
+    private Topology(Set<Link> links) {
+        this.links = links;
+    }
+
+    /**
+     * @return The links, in the order in which they have been added
+     */
+    public Set<Link> getLinks() {
+        return links;
+    }
+
+    /**
+     * @return The number of links
+     */
+    public int size() {
+        return links.size();
+    }
+
+    /**
+     * @return <code>true</code> when there are no links
+     */
+    public boolean isEmpty() {
+        return links.isEmpty();
+    }
+
+    /**
+     * Writes the links as text, one link per line.
+     *
+     * @param writer
+     *            The writer, which is not closed
+     * @throws IOException
+     *             when writing fails
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Link link : links) {
+            writeEscaped(writer, link.onePid);
+            writer.write('\t');
+            writeEscaped(writer, link.onePort);
+            writer.write('\t');
+            writeEscaped(writer, link.otherPid);
+            writer.write('\t');
+            writeEscaped(writer, link.otherPort);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private static void writeEscaped(Writer writer, String name) throws IOException {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '#':
+                // A leading # would make the line of the link a comment
+                writer.write(i == 0 ? "\\#" : "#");
+                break;
+            default:
+                writer.write(c);
+            }
+        }
+    }
+
+    /**
+     * @return The name without its escapes, or <code>null</code> when it contains an invalid escape
+     */
+    private static String unescape(String escaped) {
+        if (escaped.indexOf('\\') < 0) {
+            return escaped;
+        }
+        StringBuilder name = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c != '\\') {
+                name.append(c);
+            } else if (++i == escaped.length()) {
+                return null;
+            } else {
+                switch (escaped.charAt(i)) {
+                case '\\':
+                    name.append('\\');
+                    break;
+                case 't':
+                    name.append('\t');
+                    break;
+                case 'n':
+                    name.append('\n');
+                    break;
+                case 'r':
+                    name.append('\r');
+                    break;
+                case '#':
+                    name.append('#');
+                    break;
+                default:
+                    return null;
+                }
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Reads a topology that has been written with {@link #writeTo(Writer)}.
+     *
+     * @param reader
+     *            The reader, which is not closed
+     * @return The topology
+     * @throws IOException
+     *             when reading fails or when a line is not a valid link
+     */
+    public static Topology readFrom(Reader reader) throws IOException {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        Builder builder = create();
+        int number = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\t", -1);
+            if (parts.length == 4) {
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = unescape(parts[i]);
+                }
+            }
+            if (parts.length != 4 || parts[0] == null || parts[1] == null || parts[2] == null || parts[3] == null) {
+                throw new IOException("Line " + number + " of the topology is not a valid link: " + line);
+            }
+            builder.link(parts[0], parts[1], parts[2], parts[3]);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Topology && links.equals(((Topology) obj).links);
+    }
+
+    @Override
+    public int hashCode() {
+        return links.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Topology " + links;
+    }
+}
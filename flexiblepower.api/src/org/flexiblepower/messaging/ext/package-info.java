@@ -0,0 +1,8 @@
+/**
+ * The extended messaging package contains a reference implementation of the {@link
+ * org.flexiblepower.messaging.ConnectionManager} that dispatches messages through lock-free mailboxes on a worker pool.
+ */
+@Version("1.0.0.${qualifier}")
+package org.flexiblepower.messaging.ext;
+
+import aQute.bnd.annotation.Version;
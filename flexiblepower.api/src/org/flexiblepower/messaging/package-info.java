@@ -1,7 +1,7 @@
 /**
  * The wiring package provides the interfaces for 2-way messaging between components.
  */
-@Version("1.2.0.${qualifier}")
+@Version("1.3.0.${qualifier}")
 package org.flexiblepower.messaging;
 
 import aQute.bnd.annotation.Version;
@@ -4,16 +4,24 @@ import static javax.measure.unit.SI.MILLI;
 import static javax.measure.unit.SI.SECOND;
 
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import javax.measure.Measurable;
 import javax.measure.Measure;
+import javax.measure.converter.UnitConverter;
 import javax.measure.quantity.Duration;
+import javax.measure.unit.NonSI;
 import javax.measure.unit.SI;
 import javax.measure.unit.Unit;
 
 /**
  * This is a utility class for calculations between <code>Date</code> objects and
  * <code>Measurable&lt;Duration&gt;</code> objects.
+ *
+ * Next to the <code>Date</code> based methods, there are overloads that work on epoch milliseconds as a primitive
+ * <code>long</code> and methods to convert from and to a {@link TimeUnit}. These do not allocate any objects when the
+ * duration is a {@link Measure} in milliseconds or seconds, which makes them suitable for scheduling code that does
+ * time arithmetic in a loop.
  */
 public final class TimeUtil {
     /**
@@ -25,6 +33,11 @@ public final class TimeUtil {
      */
     public static final Measurable<Duration> ZERO = Measure.zero(SI.SECOND);
 
+    private static final Unit<Duration> NANOS = SI.NANO(SECOND);
+    private static final Unit<Duration> MICROS = SI.MICRO(SECOND);
+
+    private static final UnitConverter SECOND_TO_MS = SECOND.getConverterTo(MS);
+
     private TimeUtil() {
     }
 
@@ -41,8 +54,22 @@ public final class TimeUtil {
      *             when any of the parameters is <code>null</code>
      */
     public static Date add(Date startDate, Measurable<Duration> duration) {
-        long ms = duration.longValue(MS);
-        return new Date(startDate.getTime() + ms);
+        return new Date(add(startDate.getTime(), duration));
+    }
+
+    /**
+     * Adds a duration to a time in epoch milliseconds.
+     *
+     * @param startTime
+     *            The starting time in milliseconds since the epoch
+     * @param duration
+     *            The duration to add
+     * @return The time in milliseconds since the epoch that is <code>duration</code> after <code>startTime</code>.
+     * @throws NullPointerException
+     *             when <code>duration</code> is <code>null</code>
+     */
+    public static long add(long startTime, Measurable<Duration> duration) {
+        return startTime + toMillis(duration);
     }
 
     /**
@@ -58,8 +85,22 @@ public final class TimeUtil {
      *             when any of the parameters is <code>null</code>
      */
     public static Date subtract(Date startDate, Measurable<Duration> duration) {
-        long ms = duration.longValue(MS);
-        return new Date(startDate.getTime() - ms);
+        return new Date(subtract(startDate.getTime(), duration));
+    }
+
+    /**
+     * Subtracts a duration from a time in epoch milliseconds.
+     *
+     * @param startTime
+     *            The starting time in milliseconds since the epoch
+     * @param duration
+     *            The duration to subtract
+     * @return The time in milliseconds since the epoch that is <code>duration</code> before <code>startTime</code>.
+     * @throws NullPointerException
+     *             when <code>duration</code> is <code>null</code>
+     */
+    public static long subtract(long startTime, Measurable<Duration> duration) {
+        return startTime - toMillis(duration);
     }
 
     /**
@@ -74,8 +115,114 @@ public final class TimeUtil {
      *             when any of the parameters is <code>null</code>
      */
     public static Measurable<Duration> difference(Date startDate, Date endDate) {
-        long end = endDate.getTime();
-        long start = startDate.getTime();
-        return Measure.valueOf(end - start, MS);
+        return difference(startDate.getTime(), endDate.getTime());
+    }
+
+    /**
+     * Calculates the difference between 2 times in epoch milliseconds. This is a convenience method that allocates a
+     * new {@link Measure} on every call; code that only needs the number of milliseconds, such as a timing loop,
+     * should use <code>endTime - startTime</code> instead.
+     *
+     * @param startTime
+     *            The starting time in milliseconds since the epoch
+     * @param endTime
+     *            The ending time in milliseconds since the epoch
+     * @return A new {@link Measurable} object that represents the difference between the 2 times.
+     */
+    public static Measurable<Duration> difference(long startTime, long endTime) {
+        return Measure.valueOf(endTime - startTime, MS);
+    }
+
+    /**
+     * Returns the length of a duration in milliseconds. This is equivalent to <code>duration.longValue(MS)</code>,
+     * but does not look up a converter when the duration is a {@link Measure} in milliseconds or seconds.
+     *
+     * @param duration
+     *            The duration
+     * @return The length of <code>duration</code> in milliseconds, rounded to the nearest millisecond.
+     * @throws NullPointerException
+     *             when <code>duration</code> is <code>null</code>
+     * @throws ArithmeticException
+     *             when the duration can not be represented as a <code>long</code> number of milliseconds
+     */
+    public static long toMillis(Measurable<Duration> duration) {
+        if (duration instanceof Measure) {
+            Unit<Duration> unit = ((Measure<?, Duration>) duration).getUnit();
+            if ((unit == MS) || (unit.equals(MS))) {
+                return duration.longValue(unit);
+            } else if ((unit == SECOND) || (unit.equals(SECOND))) {
+                double ms = SECOND_TO_MS.convert(duration.doubleValue(unit));
+                if (Double.isNaN(ms) || (ms < Long.MIN_VALUE) || (ms > Long.MAX_VALUE)) {
+                    throw new ArithmeticException(duration + " cannot be represented as long milliseconds");
+                }
+                return Math.round(ms);
+            }
+        }
+        return duration.longValue(MS);
+    }
+
+    /**
+     * Returns the length of a duration as a number of the specified {@link TimeUnit}.
+     *
+     * @param duration
+     *            The duration
+     * @param timeUnit
+     *            The time unit of the result
+     * @return The length of <code>duration</code> in <code>timeUnit</code>, rounded to the nearest whole unit.
+     * @throws NullPointerException
+     *             when any of the parameters is <code>null</code>
+     * @throws ArithmeticException
+     *             when the duration can not be represented as a <code>long</code> in <code>timeUnit</code>
+     */
+    public static long toTimeUnit(Measurable<Duration> duration, TimeUnit timeUnit) {
+        if (timeUnit == TimeUnit.MILLISECONDS) {
+            return toMillis(duration);
+        }
+        return duration.longValue(unitOf(timeUnit));
+    }
+
+    /**
+     * Returns the duration of a number of the specified {@link TimeUnit}.
+     *
+     * @param duration
+     *            The length of the duration
+     * @param timeUnit
+     *            The time unit of <code>duration</code>
+     * @return A new {@link Measurable} object that represents the duration.
+     * @throws NullPointerException
+     *             when <code>timeUnit</code> is <code>null</code>
+     */
+    public static Measurable<Duration> fromTimeUnit(long duration, TimeUnit timeUnit) {
+        return Measure.valueOf(duration, unitOf(timeUnit));
+    }
+
+    /**
+     * Returns the unit that corresponds to a {@link TimeUnit}.
+     *
+     * @param timeUnit
+     *            The time unit
+     * @return The unit of duration that has the same length as one <code>timeUnit</code>.
+     * @throws NullPointerException
+     *             when <code>timeUnit</code> is <code>null</code>
+     */
+    public static Unit<Duration> unitOf(TimeUnit timeUnit) {
+        switch (timeUnit) {
+        case NANOSECONDS:
+            return NANOS;
+        case MICROSECONDS:
+            return MICROS;
+        case MILLISECONDS:
+            return MS;
+        case SECONDS:
+            return SECOND;
+        case MINUTES:
+            return NonSI.MINUTE;
+        case HOURS:
+            return NonSI.HOUR;
+        case DAYS:
+            return NonSI.DAY;
+        default:
+            throw new IllegalArgumentException("Unknown time unit " + timeUnit);
+        }
     }
 }
@@ -1,7 +1,7 @@
 /**
  * The time package provides the useful {@link org.flexiblepower.time.TimeUtil} utility class for time calculations.
  */
-@Version("1.0.0.${qualifier}")
+@Version("1.1.0.${qualifier}")
 package org.flexiblepower.time;
 
 import aQute.bnd.annotation.Version;
@@ -0,0 +1,37 @@
+package javax.measure.converter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.junit.Test;
+
+public class UnitConverterTest {
+    @Test
+    public void testInverseIsCached() {
+        UnitConverter[] converters = { new RationalConverter(1000, 1),
+                                       new RationalConverter(-3, 7),
+                                       new MultiplyConverter(2.5),
+                                       new AddConverter(273.15),
+                                       new LogConverter(10),
+                                       NonSI.FAHRENHEIT.getConverterTo(SI.KELVIN),
+                                       UnitConverter.IDENTITY };
+        for (UnitConverter converter : converters) {
+            assertSame(converter.inverse(), converter.inverse());
+            assertSame(converter, converter.inverse().inverse());
+        }
+    }
+
+    @Test
+    public void testConverterPair() {
+        ConverterPair pair = SI.KILO(SI.WATT).getConverterPairTo(SI.WATT);
+        assertEquals(1500, pair.forward().convert(1.5), 0);
+        assertEquals(1.5, pair.backward().convert(1500), 0);
+        assertSame(pair.backward(), pair.forward().inverse());
+        assertSame(pair.forward(), pair.reverse().backward());
+        assertSame(pair, pair.reverse().reverse());
+        assertEquals(SI.WATT.getConverterPairTo(SI.KILO(SI.WATT)), pair.reverse());
+    }
+}
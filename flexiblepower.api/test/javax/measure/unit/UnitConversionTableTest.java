@@ -0,0 +1,122 @@
+package javax.measure.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import javax.measure.DecimalMeasure;
+import javax.measure.Measure;
+import javax.measure.converter.ConversionException;
+import javax.measure.converter.MultiplyConverter;
+import javax.measure.converter.RationalConverter;
+import javax.measure.converter.UnitConverter;
+import javax.measure.quantity.Energy;
+import javax.measure.quantity.Quantity;
+
+import org.junit.Test;
+
+public class UnitConversionTableTest {
+    private static final double[] VALUES = { 0, 1, -1, 0.001, 1.5, 123456.789, 1e12 };
+
+    /**
+     * Converts a decimal value between 2 units that are compatible, but of which the quantity is not known at compile
+     * time, such as a price per energy.
+     */
+    private static <Q extends Quantity> BigDecimal convert(BigDecimal value, Unit<Q> from, Unit<?> to) {
+        assertTrue(from + " -> " + to, from.isCompatible(to));
+        @SuppressWarnings("unchecked")
+        Unit<Q> target = (Unit<Q>) to;
+        return DecimalMeasure.valueOf(value, from).to(target).getValue();
+    }
+
+    /**
+     * Returns the value of a measure in a unit of which the quantity is only known at run time, as a caller that uses
+     * raw types would do.
+     */
+    private static <Q extends Quantity> double doubleValue(Measure<?, Q> measure, Unit<?> unit) {
+        @SuppressWarnings("unchecked")
+        Unit<Q> target = (Unit<Q>) unit;
+        return measure.doubleValue(target);
+    }
+
+    @Test
+    public void testDefaultTableMatchesGenericPath() {
+        UnitConversionTable table = UnitConversionTable.getDefault();
+        for (Unit<?> from : table.getUnits()) {
+            for (Unit<?> to : table.getUnits()) {
+                UnitConverter cvtr = table.getConverter(from, to);
+                if (!from.isCompatible(to)) {
+                    assertNull(from + " -> " + to, cvtr);
+                    continue;
+                }
+                assertNotNull(from + " -> " + to, cvtr);
+                UnitConverter generic = from.getConverterTo(to);
+                for (double value : VALUES) {
+                    double expected = generic.convert(value);
+                    assertEquals(from + " -> " + to, expected, cvtr.convert(value), Math.abs(expected) * 1e-15);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLookupByEquality() {
+        UnitConversionTable table = UnitConversionTable.getDefault();
+        UnitConverter cvtr = table.getConverter(SI.KILO(SI.WATT), SI.WATT);
+        assertSame(cvtr, table.getConverter(SI.KILO(SI.WATT), SI.WATT));
+        assertEquals(new RationalConverter(1000, 1), cvtr);
+        assertSame(UnitConverter.IDENTITY, table.getConverter(NonSI.KWH, NonSI.KWH));
+        assertNull(table.getConverter(NonSI.KWH, SI.GIGA(SI.JOULE)));
+        assertNull(table.getConverter(SI.METRE, SI.JOULE));
+    }
+
+    @Test
+    public void testMeasures() {
+        assertEquals(5400000, Measure.valueOf(1.5, NonSI.KWH).doubleValue(SI.JOULE), 0);
+        DecimalMeasure<Energy> energy = DecimalMeasure.valueOf(new BigDecimal("1.5"), NonSI.KWH);
+        assertEquals(new BigDecimal("0.0015"), energy.to(NonSI.KWH.times(1000)).getValue());
+
+        Unit<?> eurPerMwh = NonSI.EUR.divide(NonSI.KWH.times(1000));
+        Unit<?> ctPerKwh = NonSI.EUROCENT.divide(NonSI.KWH);
+        assertEquals(new BigDecimal("250"), convert(new BigDecimal("25"), ctPerKwh, eurPerMwh));
+    }
+
+    @Test
+    public void testExactWhereGenericOverflows() {
+        Unit<Energy> from = SI.JOULE.times(3000000019L).divide(7);
+        Unit<Energy> to = SI.JOULE.divide(7L * 2999999929L);
+        assertTrue(from.getConverterTo(to) instanceof MultiplyConverter);
+
+        UnitConversionTable table = new UnitConversionTable(from, to);
+        BigInteger expected = BigInteger.valueOf(3000000019L).multiply(BigInteger.valueOf(2999999929L));
+        RationalConverter cvtr = (RationalConverter) table.getConverter(from, to);
+        assertEquals(expected.longValue(), cvtr.getDividend());
+        assertEquals(1, cvtr.getDivisor());
+
+        UnitConversionTable previous = UnitConversionTable.getDefault();
+        UnitConversionTable.setDefault(table);
+        try {
+            assertEquals(new BigDecimal(expected), DecimalMeasure.valueOf(BigDecimal.ONE, from).to(to).getValue());
+        } finally {
+            UnitConversionTable.setDefault(previous);
+        }
+        assertFalse(new BigDecimal(expected).equals(DecimalMeasure.valueOf(BigDecimal.ONE, from).to(to).getValue()));
+    }
+
+    @Test
+    public void testIncompatibleUnitsStillThrow() {
+        try {
+            doubleValue(Measure.valueOf(1, NonSI.KWH), SI.WATT);
+            fail("Expected a ConversionException");
+        } catch (ConversionException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package javax.measure.unit;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+/**
+ * Measures the class initialization time of {@link SI}, {@link NonSI} and {@link UnitFormat} and the heap that is
+ * retained by the unit tables afterwards. Each run loads the unit classes in a fresh class loader, so the static
+ * initializers are executed again every time.
+ *
+ * This is not a unit test; run it as a plain Java application:
+ *
+ * <pre>
+ * java -cp bin:bin_test javax.measure.unit.UnitInitializationBenchmark [runs]
+ * </pre>
+ */
+public final class UnitInitializationBenchmark {
+    private static final int DEFAULT_RUNS = 50;
+    private static final int WARMUP_RUNS = 10;
+    private static final int RETAINED_COPIES = 20;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final int BYTES_PER_KB = 1024;
+
+    private UnitInitializationBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RUNS;
+        URL location = Unit.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run(new URLClassLoader(new URL[] { location }, parent), null, i);
+        }
+
+        long[][] samples = new long[4][runs];
+        for (int i = 0; i < runs; i++) {
+            run(new URLClassLoader(new URL[] { location }, parent), samples, i);
+        }
+
+        // Keep a number of initialized copies alive at the same time to get a stable estimate of the retained heap
+        URLClassLoader[] loaders = new URLClassLoader[RETAINED_COPIES];
+        long usedBefore = usedMemory();
+        for (int i = 0; i < loaders.length; i++) {
+            loaders[i] = new URLClassLoader(new URL[] { location }, parent);
+            initialize(loaders[i]);
+        }
+        long retained = (usedMemory() - usedBefore) / loaders.length;
+        for (URLClassLoader loader : loaders) {
+            loader.close();
+        }
+
+        System.out.println("Unit class initialization over " + runs + " runs (median)");
+        report("SI            ", samples[0]);
+        report("NonSI         ", samples[1]);
+        report("UnitFormat    ", samples[2]);
+        report("first kW/kWh  ", samples[3]);
+        System.out.println("retained heap  : " + (retained / BYTES_PER_KB) + " kB per initialized copy");
+    }
+
+    private static void run(URLClassLoader loader, long[][] samples, int index) throws Exception {
+        long start = System.nanoTime();
+        Class.forName("javax.measure.unit.SI", true, loader);
+        long si = System.nanoTime();
+        Class.forName("javax.measure.unit.NonSI", true, loader);
+        long nonSi = System.nanoTime();
+        Class.forName("javax.measure.unit.UnitFormat", true, loader);
+        long format = System.nanoTime();
+        Method valueOf = Class.forName("javax.measure.unit.Unit", true, loader).getMethod("valueOf", CharSequence.class);
+        valueOf.invoke(null, "kW").toString();
+        valueOf.invoke(null, "kWh").toString();
+        long firstUse = System.nanoTime();
+
+        if (samples != null) {
+            samples[0][index] = si - start;
+            samples[1][index] = nonSi - si;
+            samples[2][index] = format - nonSi;
+            samples[3][index] = firstUse - format;
+        }
+        loader.close();
+    }
+
+    private static void initialize(ClassLoader loader) throws Exception {
+        Class.forName("javax.measure.unit.SI", true, loader);
+        Class.forName("javax.measure.unit.NonSI", true, loader);
+        Class.forName("javax.measure.unit.UnitFormat", true, loader);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s : %.3f ms%n", name, sorted[sorted.length / 2] / NANOS_PER_MILLI);
+    }
+}
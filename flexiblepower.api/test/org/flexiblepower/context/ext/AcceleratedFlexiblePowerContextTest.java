@@ -0,0 +1,126 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AcceleratedFlexiblePowerContextTest {
+    private static final long START = 1400000000000L;
+
+    private ExecutorService workerPool;
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        workerPool.shutdownNow();
+    }
+
+    @Test
+    public void testClockRunsFaster() throws Exception {
+        AcceleratedFlexiblePowerContext context = new AcceleratedFlexiblePowerContext(workerPool, START, 3600);
+        try {
+            long realStart = System.nanoTime();
+            Future<Long> future = context.schedule(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return System.nanoTime();
+                }
+            }, Measure.valueOf(1, NonSI.HOUR));
+            long realMillis = TimeUnit.NANOSECONDS.toMillis(future.get(5, TimeUnit.SECONDS) - realStart);
+            assertTrue("An hour took " + realMillis + " ms", realMillis >= 900 && realMillis < 3000);
+            assertTrue(context.currentTimeMillis() >= START + 3600000);
+        } finally {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testSpeedChangeKeepsOrder() throws Exception {
+        AcceleratedFlexiblePowerContext context = new AcceleratedFlexiblePowerContext(workerPool, START, 1);
+        try {
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch done = new CountDownLatch(3);
+            for (final int minutes : new int[] { 30, 10, 20 }) {
+                context.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add(minutes);
+                        done.countDown();
+                    }
+                }, Measure.valueOf(minutes, NonSI.MINUTE));
+            }
+            assertEquals(3, context.getPendingTaskCount());
+
+            // 30 minutes would take half an hour at the original speed
+            context.setSpeedFactor(18000);
+            assertEquals(18000, context.getSpeedFactor(), 0);
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(10, order.get(0).intValue());
+            assertEquals(20, order.get(1).intValue());
+            assertEquals(30, order.get(2).intValue());
+        } finally {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testReportsLag() throws Exception {
+        AcceleratedFlexiblePowerContext context = new AcceleratedFlexiblePowerContext(workerPool,
+                                                                                      START,
+                                                                                      100000,
+                                                                                      Measure.valueOf(5,
+                                                                                                      SI.SECOND.divide(1000)));
+        final CountDownLatch behind = new CountDownLatch(1);
+        context.addLagListener(new AcceleratedFlexiblePowerContext.LagListener() {
+            @Override
+            public void fallingBehind(AcceleratedFlexiblePowerContext source, long lagMillis) {
+                behind.countDown();
+            }
+
+            @Override
+            public void caughtUp(AcceleratedFlexiblePowerContext source) {
+            }
+        });
+        try {
+            // Every execution takes 20 ms real time, while the period is 1 ms real time
+            context.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, Measure.valueOf(0, SI.SECOND), Measure.valueOf(100, SI.SECOND));
+            assertTrue(behind.await(5, TimeUnit.SECONDS));
+            assertFalse(context.isKeepingUp());
+            assertTrue(context.getLateTaskCount() > 0);
+            assertTrue(context.getMaxLagMillis() > 500000);
+        } finally {
+            context.close();
+        }
+    }
+}
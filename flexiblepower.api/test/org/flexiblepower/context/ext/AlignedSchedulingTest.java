@@ -0,0 +1,123 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.time.TimeUtil;
+import org.junit.Test;
+
+public class AlignedSchedulingTest {
+    private static final long HOUR = 3600000L;
+    private static final long PTU = 900000L;
+    // 2014-05-13 16:53:20 UTC, not on a boundary
+    private static final long START = 1400000000000L;
+
+    @Test
+    public void testNextBoundary() {
+        assertEquals(1400000400000L, AlignedScheduling.nextBoundary(START, PTU, 0));
+        assertEquals(1400000400000L + PTU, AlignedScheduling.nextBoundary(1400000400000L, PTU, 0));
+        assertEquals(1400000700000L, AlignedScheduling.nextBoundary(START, HOUR, 300000));
+        assertEquals(0, AlignedScheduling.nextBoundary(-1, PTU, 0));
+    }
+
+    @Test
+    public void testJitterIsDeterministic() {
+        Set<Long> jitters = new HashSet<Long>();
+        for (int i = 0; i < 100; i++) {
+            long jitter = AlignedScheduling.jitterOf("component-" + i, 60000);
+            assertTrue(jitter >= 0 && jitter < 60000);
+            assertEquals(jitter, AlignedScheduling.jitterOf("component-" + i, 60000));
+            jitters.add(jitter);
+        }
+        assertTrue(jitters.size() > 90);
+        assertEquals(0, AlignedScheduling.jitterOf(null, 60000));
+    }
+
+    @Test
+    public void testRunsOnBoundariesWithoutDrift() {
+        final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        final List<Long> times = new ArrayList<Long>();
+        ScheduledFuture<?> future = AlignedScheduling.scheduleAligned(context, new Runnable() {
+            @Override
+            public void run() {
+                times.add(context.currentTimeMillis());
+                // Take 7 seconds of simulated time, which must not shift the next execution
+                context.runFor(Measure.valueOf(7, SI.SECOND));
+            }
+        }, Measure.valueOf(15, NonSI.MINUTE));
+        assertEquals(400000, future.getDelay(TimeUnit.MILLISECONDS));
+
+        context.runFor(Measure.valueOf(1, NonSI.HOUR));
+        assertEquals(4, times.size());
+        for (long time : times) {
+            assertEquals(0, time % PTU);
+        }
+
+        future.cancel(false);
+        context.runFor(Measure.valueOf(1, NonSI.HOUR));
+        assertEquals(4, times.size());
+    }
+
+    @Test
+    public void testJitterAndSkippedBoundaries() {
+        final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        final List<Long> times = new ArrayList<Long>();
+        final long jitter = AlignedScheduling.jitterOf("meter-1", 60000);
+        AlignedScheduling.scheduleAligned(context, new Runnable() {
+            @Override
+            public void run() {
+                long now = context.currentTimeMillis();
+                times.add(now);
+                if (times.size() == 1) {
+                    // Overrun the next boundary
+                    context.runUntil(now + PTU + 1000);
+                }
+            }
+        }, Measure.valueOf(15, NonSI.MINUTE), TimeUtil.ZERO, Measure.valueOf(1, NonSI.MINUTE), "meter-1");
+
+        context.runFor(Measure.valueOf(1, NonSI.HOUR));
+        assertEquals(3, times.size());
+        assertEquals(PTU * 2, times.get(1) - times.get(0));
+        for (long time : times) {
+            assertEquals(jitter, time % PTU);
+        }
+    }
+
+    @Test
+    public void testTimerBeforeTheWallClockRunsOncePerPeriod() {
+        final SimulatedFlexiblePowerContext simulation = new SimulatedFlexiblePowerContext(START);
+        final long[] wallClockOffset = { 0 };
+        final DelegatingContext context = new DelegatingContext(simulation) {
+            @Override
+            public long currentTimeMillis() {
+                return simulation.currentTimeMillis() + wallClockOffset[0];
+            }
+        };
+        final List<Long> times = new ArrayList<Long>();
+        AlignedScheduling.scheduleAligned(context, new Runnable() {
+            @Override
+            public void run() {
+                times.add(simulation.currentTimeMillis());
+            }
+        }, Measure.valueOf(15, NonSI.MINUTE));
+        // The timer fires on the boundary, but the wall clock has since been set back by a millisecond
+        wallClockOffset[0] = -1;
+
+        simulation.runFor(Measure.valueOf(1, NonSI.HOUR));
+        assertEquals(4, times.size());
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue(times.get(i) - times.get(i - 1) >= PTU);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.context.ext.Bulkheads.Lane;
+import org.flexiblepower.context.ext.Bulkheads.RejectionPolicy;
+import org.junit.Test;
+
+public class BulkheadsTest {
+    private static final long START = 1400000000000L;
+
+    /**
+     * Executor that only runs its tasks when the test asks for it.
+     */
+    private static class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        boolean runOne() {
+            Runnable task = tasks.poll();
+            if (task == null) {
+                return false;
+            }
+            task.run();
+            return true;
+        }
+
+        int size() {
+            return tasks.size();
+        }
+    }
+
+    private static Runnable record(final List<String> log, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testWeightedFairShare() {
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(new SimulatedFlexiblePowerContext(START), pool, 1);
+        Lane control = bulkheads.lane("control").weight(3).build();
+        Lane driver = bulkheads.lane("driver").build();
+
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        for (int i = 0; i < 40; i++) {
+            driver.submit(record(log, "driver"));
+            control.submit(record(log, "control"));
+        }
+        for (int i = 0; i < 40; i++) {
+            assertTrue(pool.runOne());
+        }
+        // The first driver task got the free slot before the control lane had any tasks
+        int controlRuns = Collections.frequency(log, "control");
+        assertTrue("Control ran " + controlRuns + " times", controlRuns >= 29 && controlRuns <= 30);
+        assertEquals(40 - controlRuns, Collections.frequency(log, "driver"));
+        assertEquals(controlRuns, control.getCompletedCount());
+        assertEquals(40 - controlRuns, control.getQueuedCount() + control.getRunningCount());
+        assertEquals(40, control.getQueueWait().getCount() + control.getQueuedCount());
+    }
+
+    @Test
+    public void testMaxConcurrencyAndQueueBound() {
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(new SimulatedFlexiblePowerContext(START), pool, 4);
+        Lane lane = bulkheads.lane("driver").maxConcurrency(1).queueCapacity(2).build();
+        Lane other = bulkheads.lane("other").build();
+
+        List<String> log = new ArrayList<String>();
+        lane.submit(record(log, "1"));
+        lane.submit(record(log, "2"));
+        lane.submit(record(log, "3"));
+        try {
+            lane.submit(record(log, "4"));
+            fail("Expected the queue to be full");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, lane.getRunningCount());
+        assertEquals(2, lane.getQueuedCount());
+        assertEquals(1, lane.getRejectedCount());
+
+        // The full lane does not block the other lanes
+        other.submit(record(log, "other"));
+        assertEquals(2, pool.size());
+
+        while (pool.runOne()) {
+            // run all
+        }
+        assertEquals(4, log.size());
+        assertEquals(3, lane.getCompletedCount());
+        assertEquals(0, lane.getRunningCount());
+        assertEquals(2, lane.getPeakQueuedCount());
+    }
+
+    @Test
+    public void testDiscardOldestAndCallerRuns() throws Exception {
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(new SimulatedFlexiblePowerContext(START), pool, 1);
+        Lane discarding = bulkheads.lane("discarding").queueCapacity(1)
+                                   .rejectionPolicy(RejectionPolicy.DISCARD_OLDEST)
+                                   .build();
+        Lane callerRuns = bulkheads.lane("callerRuns").queueCapacity(0).rejectionPolicy(RejectionPolicy.CALLER_RUNS)
+                                   .build();
+
+        List<String> log = new ArrayList<String>();
+        discarding.submit(record(log, "running"));
+        Future<?> oldest = discarding.submit(record(log, "oldest"));
+        Future<?> newest = discarding.submit(record(log, "newest"));
+        assertTrue(oldest.isCancelled());
+        assertEquals(1, discarding.getQueuedCount());
+
+        Future<String> inline = callerRuns.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return "inline";
+            }
+        });
+        assertTrue(inline.isDone());
+        assertEquals("inline", inline.get());
+        assertEquals(1, callerRuns.getCompletedCount());
+        assertEquals(1, callerRuns.getRunTime().getCount());
+
+        while (pool.runOne()) {
+            // run all
+        }
+        assertTrue(newest.isDone());
+        assertEquals(2, log.size());
+        assertEquals("newest", log.get(1));
+    }
+
+    @Test
+    public void testScheduledTasksEnterTheLaneWhenDue() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(context, pool, 1);
+        Lane lane = bulkheads.lane("control").build();
+
+        final AtomicInteger runs = new AtomicInteger();
+        Future<?> future = lane.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, Measure.valueOf(1, SI.SECOND), Measure.valueOf(1, SI.SECOND));
+
+        context.runFor(Measure.valueOf(500, SI.SECOND.divide(1000)));
+        assertEquals(0, pool.size());
+
+        // The first execution stays pending in the pool, so the next 2 periods are overruns
+        context.runFor(Measure.valueOf(3, SI.SECOND));
+        assertEquals(1, pool.size());
+        assertEquals(2, lane.getOverrunCount());
+        assertTrue(pool.runOne());
+        assertEquals(1, runs.get());
+
+        context.runFor(Measure.valueOf(1, SI.SECOND));
+        assertTrue(pool.runOne());
+        assertEquals(2, runs.get());
+
+        future.cancel(false);
+        context.runFor(Measure.valueOf(5, SI.SECOND));
+        assertEquals(0, pool.size());
+        assertEquals(2, lane.getCompletedCount());
+    }
+
+    @Test
+    public void testFixedDelayTasksSurviveDiscardedReleases() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(context, pool, 1);
+        Lane lane = bulkheads.lane("control").queueCapacity(1).rejectionPolicy(RejectionPolicy.DISCARD).build();
+
+        final AtomicInteger runs = new AtomicInteger();
+        Future<?> future = lane.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, Measure.valueOf(1, SI.SECOND), Measure.valueOf(1, SI.SECOND));
+
+        // Fill the lane, so the first release is discarded
+        List<String> log = new ArrayList<String>();
+        lane.submit(record(log, "running"));
+        lane.submit(record(log, "queued"));
+        context.runFor(Measure.valueOf(1500, SI.SECOND.divide(1000)));
+        assertEquals(1, lane.getRejectedCount());
+        assertFalse(future.isDone());
+        while (pool.runOne()) {
+            // run all
+        }
+        assertEquals(0, runs.get());
+
+        // The next release comes one delay after the discarded one
+        context.runFor(Measure.valueOf(1, SI.SECOND));
+        assertEquals(1, pool.size());
+
+        // No releases while the execution is pending, the next one is one delay after it finished
+        context.runFor(Measure.valueOf(3, SI.SECOND));
+        assertEquals(0, lane.getOverrunCount());
+        assertTrue(pool.runOne());
+        assertEquals(1, runs.get());
+        assertEquals(0, pool.size());
+        context.runFor(Measure.valueOf(1, SI.SECOND));
+        assertTrue(pool.runOne());
+        assertEquals(2, runs.get());
+
+        future.cancel(false);
+        context.runFor(Measure.valueOf(5, SI.SECOND));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testDiscardOldestOnlySkipsPeriodicExecutions() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(context, pool, 1);
+        Lane lane = bulkheads.lane("control").queueCapacity(1).rejectionPolicy(RejectionPolicy.DISCARD_OLDEST)
+                             .build();
+
+        final AtomicInteger runs = new AtomicInteger();
+        List<String> log = new ArrayList<String>();
+        lane.submit(record(log, "running"));
+        Future<?> periodic = lane.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, Measure.valueOf(1, SI.SECOND), Measure.valueOf(1, SI.SECOND));
+        context.runFor(Measure.valueOf(1500, SI.SECOND.divide(1000)));
+        assertEquals(1, lane.getQueuedCount());
+
+        // The queued execution is dropped, the task itself keeps its schedule
+        lane.submit(record(log, "newest"));
+        assertFalse(periodic.isDone());
+        while (pool.runOne()) {
+            // run all
+        }
+        assertEquals(0, runs.get());
+        context.runFor(Measure.valueOf(1, SI.SECOND));
+        assertTrue(pool.runOne());
+        assertEquals(1, runs.get());
+        periodic.cancel(false);
+
+        // Without a queue there is nothing older to drop once the lane is busy
+        Lane unqueued = bulkheads.lane("unqueued").maxConcurrency(1).queueCapacity(0)
+                                 .rejectionPolicy(RejectionPolicy.DISCARD_OLDEST)
+                                 .build();
+        Future<?> running = unqueued.submit(record(log, "unqueued"));
+        Future<?> discarded = unqueued.submit(record(log, "discarded"));
+        assertFalse(running.isDone());
+        assertTrue(discarded.isCancelled());
+        assertEquals(0, unqueued.getQueuedCount());
+        assertEquals(1, unqueued.getSubmittedCount());
+        assertTrue(pool.runOne());
+        assertTrue(running.isDone());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testZeroCapacityRunsWhenASlotIsFree() throws Exception {
+        ManualExecutor pool = new ManualExecutor();
+        Bulkheads bulkheads = new Bulkheads(new SimulatedFlexiblePowerContext(START), pool, 2);
+        Lane lane = bulkheads.lane("direct").queueCapacity(0).build();
+
+        List<String> log = new ArrayList<String>();
+        lane.submit(record(log, "1"));
+        lane.submit(record(log, "2"));
+        assertEquals(2, lane.getRunningCount());
+        assertEquals(0, lane.getPeakQueuedCount());
+        try {
+            lane.submit(record(log, "3"));
+            fail("Expected the lane to be full");
+        } catch (RejectedExecutionException e) {
+            // expected, both slots are taken
+        }
+
+        while (pool.runOne()) {
+            // run all
+        }
+        lane.submit(record(log, "4"));
+        assertTrue(pool.runOne());
+        assertEquals(3, log.size());
+        assertEquals(3, lane.getCompletedCount());
+        assertEquals(1, lane.getRejectedCount());
+    }
+}
@@ -0,0 +1,111 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measurable;
+import javax.measure.Measure;
+import javax.measure.quantity.Duration;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.time.TimeUtil;
+import org.junit.Test;
+
+public class CoalescingSchedulerTest {
+    private static final long START = 1400000000000L;
+
+    @Test
+    public void testPeriodicTasksAreCoalesced() {
+        final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        CoalescingScheduler scheduler = new CoalescingScheduler(context, false);
+        final AtomicInteger outOfWindow = new AtomicInteger();
+        final AtomicInteger executions = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            final long offset = i;
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private long nominal = START + offset;
+
+                @Override
+                public void run() {
+                    long now = context.currentTimeMillis();
+                    if (now < nominal || now > nominal + 1000) {
+                        outOfWindow.incrementAndGet();
+                    }
+                    nominal += 15000;
+                    executions.incrementAndGet();
+                }
+            }, Measure.valueOf(offset, TimeUtil.MS), Measure.valueOf(15, SI.SECOND), Measure.valueOf(1, SI.SECOND));
+        }
+
+        context.runFor(Measure.valueOf(1, NonSI.HOUR));
+        assertEquals(0, outOfWindow.get());
+        assertEquals(240000, executions.get());
+        assertEquals(executions.get(), scheduler.getExecutionCount());
+        assertTrue("Coalescing ratio is " + scheduler.getCoalescingRatio(), scheduler.getCoalescingRatio() > 100);
+    }
+
+    @Test
+    public void testCancel() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        CoalescingScheduler scheduler = new CoalescingScheduler(context, true);
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        ScheduledFuture<?> cancelled = scheduler.schedule(task, Measure.valueOf(10, SI.SECOND), TimeUtil.ZERO);
+        scheduler.schedule(task, Measure.valueOf(5, SI.SECOND), Measure.valueOf(10, SI.SECOND));
+        assertTrue(cancelled.cancel(false));
+        context.runFor(Measure.valueOf(1, NonSI.MINUTE));
+        assertEquals(1, runs.get());
+        assertEquals(0, scheduler.getScheduledTaskCount());
+    }
+
+    @Test
+    public void testTaskAddedWhileWakingUp() {
+        final SimulatedFlexiblePowerContext simulation = new SimulatedFlexiblePowerContext(START);
+        final long[] wallClockOffset = { 0 };
+        final AtomicInteger contextWakeups = new AtomicInteger();
+        final CoalescingScheduler[] scheduler = new CoalescingScheduler[1];
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        DelegatingContext context = new DelegatingContext(simulation) {
+            @Override
+            public long currentTimeMillis() {
+                return simulation.currentTimeMillis() + wallClockOffset[0];
+            }
+
+            @Override
+            public ScheduledFuture<?> schedule(final Runnable command, Measurable<Duration> delay) {
+                return super.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (contextWakeups.incrementAndGet() == 1) {
+                            // Another thread adds a task that is due just before the wakeup that is firing
+                            wallClockOffset[0] = -1;
+                            scheduler[0].schedule(task, TimeUtil.ZERO, TimeUtil.ZERO);
+                            wallClockOffset[0] = 0;
+                        }
+                        command.run();
+                    }
+                }, delay);
+            }
+        };
+        scheduler[0] = new CoalescingScheduler(context, false);
+        scheduler[0].schedule(task, Measure.valueOf(10, SI.SECOND), TimeUtil.ZERO);
+
+        simulation.runFor(Measure.valueOf(1, NonSI.MINUTE));
+        assertEquals(1, contextWakeups.get());
+        assertEquals(1, scheduler[0].getWakeupCount());
+        assertEquals(2, scheduler[0].getExecutionCount());
+    }
+}
@@ -0,0 +1,73 @@
+package org.flexiblepower.context.ext;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measurable;
+import javax.measure.quantity.Duration;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.flexiblepower.context.FlexiblePowerContext;
+
+/**
+ * A context that passes all calls to another context. It does not implement {@link FlexiblePowerClock}, even when the
+ * other context does, and tests can override single methods, such as the wall clock.
+ */
+class DelegatingContext implements FlexiblePowerContext {
+    private final FlexiblePowerContext context;
+
+    DelegatingContext(FlexiblePowerContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return context.currentTimeMillis();
+    }
+
+    @Override
+    public Date currentTime() {
+        return context.currentTime();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return context.submit(task);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return context.submit(task, result);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return context.submit(task);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, Measurable<Duration> delay) {
+        return context.schedule(command, delay);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, Measurable<Duration> delay) {
+        return context.schedule(callable, delay);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  Measurable<Duration> initialDelay,
+                                                  Measurable<Duration> period) {
+        return context.scheduleAtFixedRate(command, initialDelay, period);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     Measurable<Duration> initialDelay,
+                                                     Measurable<Duration> delay) {
+        return context.scheduleWithFixedDelay(command, initialDelay, delay);
+    }
+}
@@ -0,0 +1,93 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.junit.Test;
+
+public class InstrumentedFlexiblePowerContextTest {
+    private static final long START = 1400000000000L;
+
+    private static class PollTask implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+
+    private static class FailingTask implements Runnable {
+        @Override
+        public void run() {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Test
+    public void testSnapshotsPerComponent() {
+        SimulatedFlexiblePowerContext simulation = new SimulatedFlexiblePowerContext(START);
+        InstrumentedFlexiblePowerContext context = new InstrumentedFlexiblePowerContext(simulation);
+        InstrumentedFlexiblePowerContext driver = context.forComponent("driver");
+        InstrumentedFlexiblePowerContext controller = context.forComponent("controller");
+
+        driver.scheduleAtFixedRate(new PollTask(), Measure.valueOf(0, SI.SECOND), Measure.valueOf(15, SI.SECOND));
+        controller.submit(new FailingTask());
+        controller.schedule(new PollTask(), Measure.valueOf(1, SI.SECOND));
+
+        final List<Integer> exports = new ArrayList<Integer>();
+        context.exportEvery(Measure.valueOf(10, NonSI.MINUTE), new InstrumentedFlexiblePowerContext.Exporter() {
+            @Override
+            public void export(long timestamp, List<InstrumentedFlexiblePowerContext.Snapshot> snapshots) {
+                exports.add(snapshots.size());
+            }
+        });
+        simulation.runFor(Measure.valueOf(1, NonSI.HOUR));
+
+        List<InstrumentedFlexiblePowerContext.Snapshot> snapshots = context.getSnapshots();
+        assertEquals(3, snapshots.size());
+        assertEquals(6, exports.size());
+        for (InstrumentedFlexiblePowerContext.Snapshot snapshot : snapshots) {
+            if (snapshot.getComponent().equals("driver")) {
+                assertEquals(PollTask.class.getName(), snapshot.getTaskClass());
+                assertEquals(241, snapshot.getExecutions());
+                assertEquals(1, snapshot.getQueueDelay().getCount());
+                assertEquals(240, snapshot.getDrift().getCount());
+                assertEquals(0, snapshot.getDrift().getMax());
+            } else if (snapshot.getTaskClass().equals(FailingTask.class.getName())) {
+                assertEquals("controller", snapshot.getComponent());
+                assertEquals(1, snapshot.getFailures());
+            } else {
+                assertEquals(1, snapshot.getExecutions());
+                assertEquals(0, snapshot.getFailures());
+            }
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMax());
+        assertEquals(500500, snapshot.getMean(), 0);
+        long median = snapshot.getValueAtPercentile(50);
+        assertTrue("Median is " + median, median >= 500000 && median <= 500000 * 1.125);
+        assertEquals(1000000, snapshot.getValueAtPercentile(100));
+
+        Histogram other = new Histogram();
+        other.record(2000000);
+        Histogram.Snapshot merged = snapshot.merge(other.snapshot());
+        assertEquals(1001, merged.getCount());
+        assertEquals(2000000, merged.getMax());
+        assertEquals(2000000, merged.getValueAtPercentile(100));
+        assertEquals(1000, snapshot.getCount());
+    }
+}
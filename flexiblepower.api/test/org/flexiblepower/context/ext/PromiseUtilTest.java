@@ -0,0 +1,123 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.context.Promise;
+import org.junit.Test;
+
+public class PromiseUtilTest {
+    private static final long START = 1400000000000L;
+
+    private final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+
+    private Promise<Integer> read(final int value, long delaySeconds) {
+        return PromiseUtil.schedule(context, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return value;
+            }
+        }, Measure.valueOf(delaySeconds, SI.SECOND));
+    }
+
+    @Test
+    public void testComposition() throws Exception {
+        Promise<String> result = read(21, 1).thenCompose(new Promise.Function<Integer, Promise<Integer>>() {
+            @Override
+            public Promise<Integer> apply(Integer value) {
+                return read(value * 2, 2);
+            }
+        }).thenApply(new Promise.Function<Integer, String>() {
+            @Override
+            public String apply(Integer value) {
+                return value + " W";
+            }
+        });
+
+        assertFalse(result.isDone());
+        context.runUntilEmpty();
+        assertEquals("42 W", result.get());
+        assertEquals(START + 3000, context.currentTimeMillis());
+    }
+
+    @Test
+    public void testTimeoutUnderSimulatedTime() throws Exception {
+        Promise<Integer> slow = PromiseUtil.withTimeout(context, read(1, 60), Measure.valueOf(10, SI.SECOND));
+        Promise<Integer> fast = PromiseUtil.withTimeout(context, read(2, 5), Measure.valueOf(10, SI.SECOND));
+        Promise<Integer> fallback = PromiseUtil.completeOnTimeout(context, read(3, 60), -1, Measure.valueOf(10,
+                                                                                                            SI.SECOND));
+        context.runFor(Measure.valueOf(10, SI.SECOND));
+
+        assertTrue(slow.isCompletedExceptionally());
+        assertEquals(2, fast.get().intValue());
+        assertEquals(-1, fallback.get().intValue());
+        Integer recovered = slow.exceptionally(new Promise.Function<Throwable, Integer>() {
+            @Override
+            public Integer apply(Throwable failure) {
+                return failure instanceof TimeoutException ? 0 : -1;
+            }
+        }).get();
+        assertEquals(0, recovered.intValue());
+        // The timers of the completed promises have been cancelled
+        context.runFor(Measure.valueOf(60, SI.SECOND));
+        assertEquals(0, context.getPendingTaskCount());
+    }
+
+    @Test
+    public void testCancelCancelsTask() {
+        Promise<Integer> promise = read(1, 5);
+        assertEquals(1, context.getPendingTaskCount());
+        assertTrue(promise.cancel(false));
+        assertTrue(promise.isCancelled());
+        assertEquals(0, context.getPendingTaskCount());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopOthers() {
+        final List<Throwable> reported = new ArrayList<Throwable>();
+        Thread thread = Thread.currentThread();
+        Thread.UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                reported.add(e);
+            }
+        });
+        try {
+            final List<Integer> results = new ArrayList<Integer>();
+            Promise.Listener<Integer> failing = new Promise.Listener<Integer>() {
+                @Override
+                public void completed(Integer value, Throwable failure) {
+                    throw new IllegalStateException("listener");
+                }
+            };
+            Promise.Listener<Integer> recording = new Promise.Listener<Integer>() {
+                @Override
+                public void completed(Integer value, Throwable failure) {
+                    results.add(value);
+                }
+            };
+            CompletablePromise<Integer> promise = new CompletablePromise<Integer>();
+            promise.whenComplete(failing).whenComplete(recording);
+            assertTrue(promise.complete(1));
+            assertEquals(1, results.size());
+            assertEquals(1, reported.size());
+
+            // Also when the promise has already completed
+            promise.whenComplete(failing).whenComplete(recording);
+            assertEquals(2, results.size());
+            assertEquals(2, reported.size());
+        } finally {
+            thread.setUncaughtExceptionHandler(previous);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.junit.Test;
+
+public class SimulatedFlexiblePowerContextTest {
+    private static final long START = 1400000000000L;
+
+    @Test
+    public void testClockJumpsToNextTask() throws Exception {
+        final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        ScheduledFuture<Long> future = context.schedule(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return context.currentTimeMillis();
+            }
+        }, Measure.valueOf(1, NonSI.HOUR));
+
+        assertEquals(START, context.currentTimeMillis());
+        assertFalse(future.isDone());
+        assertEquals(1, context.runUntilEmpty());
+        assertEquals(START + 3600000, future.get().longValue());
+        assertEquals(START + 3600000, context.currentTimeMillis());
+    }
+
+    @Test
+    public void testPeriodicTasks() {
+        final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        final List<Long> times = new ArrayList<Long>();
+        ScheduledFuture<?> future = context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                times.add(context.currentTimeMillis() - START);
+            }
+        }, Measure.valueOf(0, SI.SECOND), Measure.valueOf(15, NonSI.MINUTE));
+
+        assertEquals(5, context.runFor(Measure.valueOf(1, NonSI.HOUR)));
+        assertEquals(START + 3600000, context.currentTimeMillis());
+        assertEquals(5, times.size());
+        assertEquals(2700000, times.get(3).longValue());
+
+        assertTrue(future.cancel(false));
+        assertEquals(0, context.getPendingTaskCount());
+        assertEquals(0, context.runFor(Measure.valueOf(1, NonSI.HOUR)));
+    }
+
+    @Test
+    public void testClock() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        assertEquals(0, context.nanoTime());
+        context.runFor(Measure.valueOf(1.5, SI.SECOND));
+        assertEquals(1500000000L, context.nanoTime());
+        assertEquals(START + 1500, context.coarseTimeMillis());
+        assertEquals(context.currentTimeMillis(), context.coarseTimeMillis());
+    }
+
+    @Test
+    public void testCancelledTasksAreSkipped() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        final List<Integer> log = new ArrayList<Integer>();
+        List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+        for (int i = 1; i <= 1000; i++) {
+            final int second = i;
+            futures.add(context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    log.add(second);
+                }
+            }, Measure.valueOf(i, SI.SECOND)));
+        }
+        // Cancel all but every hundredth task, which also purges the cancelled tasks on the way
+        for (int i = 0; i < 1000; i++) {
+            if ((i + 1) % 100 != 0) {
+                assertTrue(futures.get(i).cancel(false));
+            }
+        }
+        assertEquals(10, context.getPendingTaskCount());
+        assertEquals(START + 100000, context.getNextTaskTime());
+
+        // The clock does not stop at the times of cancelled tasks
+        assertTrue(context.runNext());
+        assertEquals(START + 100000, context.currentTimeMillis());
+        assertEquals(10, context.runUntilEmpty() + 1);
+        assertEquals(10, log.size());
+        assertEquals(10, context.getExecutedTaskCount());
+        assertEquals(0, context.getPendingTaskCount());
+
+        // A few cancelled tasks stay in the queue until they are due
+        ScheduledFuture<?> cancelled = context.schedule(new Runnable() {
+            @Override
+            public void run() {
+                log.add(-1);
+            }
+        }, Measure.valueOf(1, SI.SECOND));
+        assertTrue(cancelled.cancel(false));
+        assertFalse(cancelled.cancel(false));
+        assertEquals(0, context.getPendingTaskCount());
+        assertEquals(Long.MAX_VALUE, context.getNextTaskTime());
+        assertEquals(0, context.runFor(Measure.valueOf(1, SI.SECOND)));
+        assertEquals(10, log.size());
+    }
+
+    @Test
+    public void testDeterministicOrder() {
+        assertEquals(simulate(), simulate());
+    }
+
+    private static List<String> simulate() {
+        final SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        final List<String> log = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            final int device = i;
+            context.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    log.add(device + "@" + (context.currentTimeMillis() - START));
+                    if (log.size() % 7 == 0) {
+                        context.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                log.add("extra@" + (context.currentTimeMillis() - START));
+                            }
+                        });
+                    }
+                }
+            }, Measure.valueOf(device % 3, SI.SECOND), Measure.valueOf(1 + device % 4, SI.SECOND));
+        }
+        context.runFor(Measure.valueOf(1, NonSI.MINUTE));
+        return log;
+    }
+}
@@ -0,0 +1,89 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.context.FlexiblePowerClock;
+import org.junit.Test;
+
+public class StopwatchTest {
+    private static final long START = 1400000000000L;
+
+    @Test
+    public void testStopwatchFollowsSimulatedTime() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        Stopwatch stopwatch = new Stopwatch(ContextClocks.clockOf(context));
+        assertSame(context, ContextClocks.clockOf(context));
+
+        stopwatch.start();
+        context.runFor(Measure.valueOf(3, SI.SECOND));
+        assertTrue(stopwatch.isRunning());
+        assertEquals(3000, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        assertEquals(TimeUnit.SECONDS.toNanos(3), stopwatch.stop());
+
+        context.runFor(Measure.valueOf(10, SI.SECOND));
+        stopwatch.start();
+        context.runFor(Measure.valueOf(2, SI.SECOND));
+        assertEquals(TimeUnit.SECONDS.toNanos(5), stopwatch.stop());
+        assertFalse(stopwatch.isRunning());
+
+        assertEquals(0, stopwatch.reset().elapsedNanos());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopWithoutStart() {
+        new Stopwatch(new SimulatedFlexiblePowerContext(START)).stop();
+    }
+
+    @Test
+    public void testSampleTimer() {
+        SimulatedFlexiblePowerContext context = new SimulatedFlexiblePowerContext(START);
+        SampleTimer timer = new SampleTimer(context);
+        for (int i = 1; i <= 4; i++) {
+            long sample = timer.start();
+            context.runFor(Measure.valueOf(i, SI.SECOND));
+            assertEquals(TimeUnit.SECONDS.toNanos(i), timer.stop(sample));
+        }
+        Histogram.Snapshot snapshot = timer.snapshot();
+        assertEquals(4, snapshot.getCount());
+        assertEquals(TimeUnit.SECONDS.toNanos(4), snapshot.getMax());
+    }
+
+    @Test
+    public void testClockOfPlainContext() {
+        final SimulatedFlexiblePowerContext simulation = new SimulatedFlexiblePowerContext(START);
+        FlexiblePowerClock clock = ContextClocks.clockOf(new DelegatingContext(simulation));
+        long start = clock.nanoTime();
+        simulation.runFor(Measure.valueOf(1, SI.SECOND));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), clock.nanoTime() - start);
+        assertEquals(START + 1000, clock.coarseTimeMillis());
+    }
+
+    @Test
+    public void testClockOfPlainContextDoesNotGoBack() {
+        final SimulatedFlexiblePowerContext simulation = new SimulatedFlexiblePowerContext(START);
+        final long[] wallClock = { START };
+        FlexiblePowerClock clock = ContextClocks.clockOf(new DelegatingContext(simulation) {
+            @Override
+            public long currentTimeMillis() {
+                return wallClock[0];
+            }
+        });
+        wallClock[0] += 5000;
+        long before = clock.nanoTime();
+        assertEquals(TimeUnit.SECONDS.toNanos(5), before);
+
+        // The wall clock is set back, the monotonic clock holds until it has caught up
+        wallClock[0] -= 2000;
+        assertEquals(before, clock.nanoTime());
+        wallClock[0] += 3000;
+        assertEquals(TimeUnit.SECONDS.toNanos(6), clock.nanoTime());
+    }
+}
@@ -0,0 +1,69 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+
+import org.flexiblepower.time.TimeUtil;
+import org.junit.Test;
+
+public class SystemClockTest {
+    private static final long RESOLUTION = 10;
+    // Allowance for the ticker thread not being scheduled exactly on time on a busy machine
+    private static final long SCHEDULING_SLACK = 40;
+
+    @Test
+    public void testCoarseTimeLagsAtMostTheResolution() throws Exception {
+        SystemClock clock = new SystemClock(Measure.valueOf(RESOLUTION, TimeUtil.MS));
+        try {
+            // The bound holds once the ticker thread has started
+            long first = clock.coarseTimeMillis();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (clock.coarseTimeMillis() == first) {
+                assertTrue("The coarse time was not updated", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+
+            long previous = clock.coarseTimeMillis();
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+            while (System.nanoTime() < end) {
+                long coarse = clock.coarseTimeMillis();
+                long exact = clock.currentTimeMillis();
+                assertTrue("The coarse time went back", coarse >= previous);
+                assertTrue("The coarse time is ahead", coarse <= exact);
+                assertTrue("The coarse time lags " + (exact - coarse) + " ms",
+                           exact - coarse <= RESOLUTION + SCHEDULING_SLACK);
+                previous = coarse;
+                Thread.sleep(1);
+            }
+        } finally {
+            clock.close();
+        }
+
+        // After the close the coarse time follows the exact time
+        long before = System.currentTimeMillis();
+        assertTrue(clock.coarseTimeMillis() >= before);
+    }
+
+    @Test
+    public void testNanoTimeIsMonotonic() {
+        SystemClock clock = new SystemClock();
+        try {
+            long previous = clock.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                long now = clock.nanoTime();
+                assertTrue(now >= previous);
+                previous = now;
+            }
+        } finally {
+            clock.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResolutionShouldBePositive() {
+        new SystemClock(Measure.valueOf(0, TimeUtil.MS));
+    }
+}
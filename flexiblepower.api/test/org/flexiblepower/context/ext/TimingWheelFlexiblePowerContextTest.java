@@ -0,0 +1,164 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+
+import org.flexiblepower.time.TimeUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelFlexiblePowerContextTest {
+    private ExecutorService workerPool;
+    private TimingWheelFlexiblePowerContext context;
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(4);
+        // A small wheel with a span of 64 ms, so the tests also cover the cascading and the tasks beyond the span
+        context = new TimingWheelFlexiblePowerContext(workerPool, Measure.valueOf(1, TimeUtil.MS), 8, 2);
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+        workerPool.shutdownNow();
+    }
+
+    @Test
+    public void testTasksDoNotRunEarly() throws Exception {
+        long[] delays = { 0, 1, 5, 7, 8, 9, 30, 63, 64, 65, 150 };
+        List<ScheduledFuture<Long>> futures = new ArrayList<ScheduledFuture<Long>>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            futures.add(context.schedule(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+            }, Measure.valueOf(delays[i], TimeUtil.MS)));
+        }
+        for (int i = 0; i < delays.length; i++) {
+            long ranAfter = futures.get(i).get(1, TimeUnit.SECONDS);
+            assertTrue("Task with delay " + delays[i] + " ran after " + ranAfter, ranAfter >= delays[i]);
+        }
+        assertEquals(0, context.getScheduledTaskCount());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        ScheduledFuture<?> cancelled = context.schedule(task, Measure.valueOf(20, TimeUtil.MS));
+        ScheduledFuture<?> kept = context.schedule(task, Measure.valueOf(40, TimeUtil.MS));
+        assertTrue(cancelled.cancel(false));
+        kept.get(1, TimeUnit.SECONDS);
+        assertEquals(1, runs.get());
+        try {
+            cancelled.get();
+            fail("Expected a CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFixedRate() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(10);
+        ScheduledFuture<?> future = context.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, Measure.valueOf(0, TimeUtil.MS), Measure.valueOf(3, TimeUtil.MS));
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(future.cancel(false));
+    }
+
+    @Test
+    public void testRejectsAfterClose() {
+        context.close();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        try {
+            context.submit(task);
+            fail("Expected a RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        try {
+            context.schedule(task, Measure.valueOf(1, TimeUtil.MS));
+            fail("Expected a RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseWhileScheduling() throws Exception {
+        // The race between the close and the scheduling threads only shows once in a while
+        for (int i = 0; i < 300; i++) {
+            closeWhileScheduling(new TimingWheelFlexiblePowerContext(workerPool, Measure.valueOf(1, TimeUtil.MS), 8, 2));
+        }
+    }
+
+    private static void closeWhileScheduling(final TimingWheelFlexiblePowerContext context) throws Exception {
+        final List<ScheduledFuture<?>> accepted = new CopyOnWriteArrayList<ScheduledFuture<?>>();
+        final CountDownLatch started = new CountDownLatch(6);
+        Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while (true) {
+                            accepted.add(context.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                }
+                            }, Measure.valueOf(1000, TimeUtil.MS)));
+                        }
+                    } catch (RejectedExecutionException e) {
+                        // The context has been closed
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        Thread.sleep(2);
+        context.close();
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+        // Each task that has been accepted is cancelled by the close, none is left behind in the queue
+        for (ScheduledFuture<?> future : accepted) {
+            assertTrue(future.isCancelled());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.flexiblepower.context.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+
+import org.flexiblepower.time.TimeUtil;
+import org.junit.Test;
+
+public class VirtualThreadExecutorTest {
+    @Test
+    public void testBlockingTasksRunConcurrently() throws Exception {
+        VirtualThreadExecutor workers = VirtualThreadExecutor.create(false);
+        TimingWheelFlexiblePowerContext context = new TimingWheelFlexiblePowerContext(workers);
+        try {
+            final int tasks = 200;
+            final CountDownLatch started = new CountDownLatch(tasks);
+            final CountDownLatch release = new CountDownLatch(1);
+            for (int i = 0; i < tasks; i++) {
+                context.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(tasks, workers.getActiveTaskCount());
+            release.countDown();
+
+            ScheduledFuture<?> future = context.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, Measure.valueOf(5, TimeUtil.MS));
+            future.get(5, TimeUnit.SECONDS);
+            assertTrue(workers.getPeakActiveTaskCount() >= tasks);
+            assertTrue(workers.isVirtual() ? workers.getCarrierParallelism() > 0
+                                          : workers.getCarrierParallelism() == -1);
+        } finally {
+            context.close();
+            workers.close();
+        }
+    }
+
+    @Test
+    public void testFallbackIsShutDownOnClose() throws Exception {
+        ExecutorService fallback = Executors.newSingleThreadExecutor();
+        VirtualThreadExecutor workers = new VirtualThreadExecutor(fallback, false);
+        final CountDownLatch ran = new CountDownLatch(1);
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(fallback.isShutdown());
+
+        workers.close();
+        assertTrue(fallback.isShutdown());
+    }
+}
@@ -0,0 +1,185 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.ext.ConnectionManagerFixture.Accepting;
+
+/**
+ * Measures {@link DispatchingConnectionManager#autoConnect()} on synthetic topologies while endpoints come and go. The
+ * topology has four groups of devices that each connect to the aggregator of their group, and ten percent of devices
+ * that match two aggregators and therefore are never connected automatically. Each churn round replaces a random
+ * device and calls autoConnect. For comparison, the time of a scan over all ports (like a non-incremental autoConnect
+ * does) is reported as well.
+ *
+ * This is not a unit test; run it as a plain Java application:
+ *
+ * <pre>
+ * java -cp bin:bin_test org.flexiblepower.messaging.ext.AutoConnectBenchmark [sizes...]
+ * </pre>
+ */
+public final class AutoConnectBenchmark {
+    private static final int[] DEFAULT_SIZES = { 1000, 10000, 100000 };
+    private static final int CHURN_ROUNDS = 2000;
+    private static final int SCAN_ROUNDS = 20;
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    private AutoConnectBenchmark() {
+    }
+
+    @Port(name = "p", sends = Integer.class, accepts = String.class)
+    static class Device0 extends Accepting {
+    }
+
+    @Port(name = "p", sends = String.class, accepts = Integer.class, cardinality = Cardinality.MULTIPLE)
+    static class Aggregator0 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Long.class, accepts = Character.class)
+    static class Device1 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Character.class, accepts = Long.class, cardinality = Cardinality.MULTIPLE)
+    static class Aggregator1 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Short.class, accepts = Boolean.class)
+    static class Device2 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Boolean.class, accepts = Short.class, cardinality = Cardinality.MULTIPLE)
+    static class Aggregator2 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Byte.class, accepts = Float.class)
+    static class Device3 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Float.class, accepts = Byte.class, cardinality = Cardinality.MULTIPLE)
+    static class Aggregator3 extends Accepting {
+    }
+
+    @Port(name = "p", sends = Double.class, accepts = StringBuilder.class)
+    static class AmbiguousDevice extends Accepting {
+    }
+
+    @Port(name = "p", sends = StringBuilder.class, accepts = Double.class, cardinality = Cardinality.MULTIPLE)
+    static class AmbiguousAggregator extends Accepting {
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("endpoints    register   first autoConnect   churn round (median / p99)   full scan");
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        DispatchingConnectionManager manager = DispatchingConnectionManager.create(ConnectionManagerFixture.DIRECT)
+                                                                           .build();
+        Random random = new Random(size);
+
+        long start = System.nanoTime();
+        manager.addEndpoint("agg0", new Aggregator0());
+        manager.addEndpoint("agg1", new Aggregator1());
+        manager.addEndpoint("agg2", new Aggregator2());
+        manager.addEndpoint("agg3", new Aggregator3());
+        manager.addEndpoint("ambiguous0", new AmbiguousAggregator());
+        manager.addEndpoint("ambiguous1", new AmbiguousAggregator());
+        List<String> devices = new ArrayList<String>();
+        for (int i = 0; i < size; i++) {
+            String pid = "device" + i;
+            manager.addEndpoint(pid, newDevice(random));
+            devices.add(pid);
+        }
+        long registered = System.nanoTime();
+        manager.autoConnect();
+        long connected = System.nanoTime();
+
+        long[] rounds = new long[CHURN_ROUNDS];
+        for (int i = 0; i < CHURN_ROUNDS; i++) {
+            int index = random.nextInt(devices.size());
+            String pid = "device" + (size + i);
+            long roundStart = System.nanoTime();
+            manager.removeEndpoint(devices.get(index));
+            manager.addEndpoint(pid, newDevice(random));
+            manager.autoConnect();
+            rounds[i] = System.nanoTime() - roundStart;
+            devices.set(index, pid);
+        }
+        Arrays.sort(rounds);
+
+        long scanStart = System.nanoTime();
+        for (int i = 0; i < SCAN_ROUNDS; i++) {
+            fullScan(manager);
+        }
+        long scan = (System.nanoTime() - scanStart) / SCAN_ROUNDS;
+
+        System.out.printf("%9d %9.1f ms %14.1f ms %15.1f us / %6.1f us %9.2f ms%n",
+                          size,
+                          (registered - start) / NANOS_PER_MILLI,
+                          (connected - registered) / NANOS_PER_MILLI,
+                          rounds[rounds.length / 2] / NANOS_PER_MICRO,
+                          rounds[rounds.length * 99 / 100] / NANOS_PER_MICRO,
+                          scan / NANOS_PER_MILLI);
+        manager.close();
+    }
+
+    private static Endpoint newDevice(Random random) {
+        switch (random.nextInt(10)) {
+        case 0:
+            return new AmbiguousDevice();
+        case 1:
+        case 2:
+            return new Device0();
+        case 3:
+        case 4:
+            return new Device1();
+        case 5:
+        case 6:
+            return new Device2();
+        default:
+            return new Device3();
+        }
+    }
+
+    /**
+     * Looks for the only option of every unconnected single port, which is what a non-incremental autoConnect does on
+     * each call.
+     */
+    private static int fullScan(DispatchingConnectionManager manager) {
+        int found = 0;
+        synchronized (manager.lock) {
+            for (ManagedEndpointImpl endpoint : manager.getEndpoints().values()) {
+                for (EndpointPortImpl port : endpoint.getPorts().values()) {
+                    if (port.getCardinality() != Cardinality.SINGLE || port.connectionCount > 0) {
+                        continue;
+                    }
+                    int connectable = 0;
+                    for (PotentialConnectionImpl connection : port.potentialConnections.values()) {
+                        if (connection.isConnectable()) {
+                            connectable++;
+                        }
+                    }
+                    if (connectable == 1) {
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+}
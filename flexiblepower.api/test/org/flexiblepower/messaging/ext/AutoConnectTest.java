@@ -0,0 +1,177 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.junit.Test;
+
+public class AutoConnectTest extends ConnectionManagerFixture {
+    @Port(name = "p", sends = Integer.class, accepts = String.class)
+    static class Device extends Accepting {
+    }
+
+    @Port(name = "p", sends = String.class, accepts = Integer.class, cardinality = Cardinality.MULTIPLE)
+    static class Aggregator extends Accepting {
+    }
+
+    @Port(name = "p", sends = Long.class, accepts = Double.class)
+    static class Left extends Accepting {
+    }
+
+    @Port(name = "p", sends = Double.class, accepts = Long.class)
+    static class Right extends Accepting {
+    }
+
+    @Port(name = "p", sends = Integer.class, accepts = String.class)
+    static class Refusing extends Accepting {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return null;
+        }
+    }
+
+    @Override
+    Executor executor() {
+        return DIRECT;
+    }
+
+    private EndpointPortImpl port(String pid) {
+        return (EndpointPortImpl) manager.getEndpoint(pid).getPort("p");
+    }
+
+    private static int countConnectable(EndpointPortImpl port) {
+        int count = 0;
+        for (PotentialConnectionImpl connection : port.potentialConnections.values()) {
+            if (!connection.isConnected() && connection.getOtherEnd(port).isFree()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assertCounts() {
+        for (ManagedEndpointImpl endpoint : manager.getEndpoints().values()) {
+            for (EndpointPortImpl port : endpoint.getPorts().values()) {
+                assertEquals(port.toString(), countConnectable(port), port.connectableCount);
+            }
+        }
+    }
+
+    /**
+     * Checks that no port is left that would be connected by checking all ports.
+     */
+    private void assertNothingToConnect() {
+        for (ManagedEndpointImpl endpoint : manager.getEndpoints().values()) {
+            EndpointPortImpl port = endpoint.getPort("p");
+            if (port.getCardinality() != Cardinality.SINGLE || !port.isFree()
+                || endpoint.getEndpointInstance() instanceof Refusing
+                || countConnectable(port) != 1) {
+                continue;
+            }
+            for (PotentialConnectionImpl connection : port.potentialConnections.values()) {
+                if (connection.isConnectable()) {
+                    EndpointPortImpl other = connection.getOtherEnd(port);
+                    assertFalse(port.toString(),
+                                other.getCardinality() == Cardinality.MULTIPLE || countConnectable(other) == 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyOption() {
+        manager.addEndpoint("d1", new Device());
+        manager.addEndpoint("d2", new Device());
+        manager.addEndpoint("agg1", new Aggregator());
+        manager.autoConnect();
+        assertEquals(1, port("d1").connectionCount);
+        assertEquals(1, port("d2").connectionCount);
+
+        // A second aggregator makes the choice ambiguous for new devices
+        manager.addEndpoint("agg2", new Aggregator());
+        manager.addEndpoint("d3", new Device());
+        manager.autoConnect();
+        assertEquals(0, port("d3").connectionCount);
+        assertEquals(2, port("d3").connectableCount);
+
+        manager.removeEndpoint("agg1");
+        assertEquals(0, port("d1").connectionCount);
+        manager.autoConnect();
+        assertEquals(1, port("d1").connectionCount);
+        assertEquals(1, port("d3").connectionCount);
+        assertCounts();
+    }
+
+    @Test
+    public void testSingleToSingle() {
+        manager.addEndpoint("l1", new Left());
+        manager.addEndpoint("r1", new Right());
+        manager.addEndpoint("r2", new Right());
+        manager.addEndpoint("l2", new Left());
+        manager.autoConnect();
+        assertEquals(0, port("l1").connectionCount);
+
+        // Both lefts only have r1 left, but r1 still has two options
+        manager.removeEndpoint("r2");
+        manager.autoConnect();
+        assertEquals(0, port("r1").connectionCount);
+
+        manager.removeEndpoint("l2");
+        manager.autoConnect();
+        assertTrue(port("l1").potentialConnectionsByPort.get(port("r1")).isConnected());
+        assertCounts();
+    }
+
+    @Test
+    public void testRefusedIsRetried() {
+        manager.addEndpoint("x", new Refusing());
+        manager.addEndpoint("agg", new Aggregator());
+        manager.autoConnect();
+        manager.autoConnect();
+        assertEquals(0, port("x").connectionCount);
+        assertEquals(1, port("x").connectableCount);
+    }
+
+    @Test
+    public void testRandomTopology() {
+        Random random = new Random(42);
+        List<String> pids = new ArrayList<String>();
+        for (int step = 0; step < 2000; step++) {
+            int action = random.nextInt(10);
+            if (action < 4 || pids.isEmpty()) {
+                String pid = "e" + step;
+                Endpoint[] endpoints = { new Device(), new Aggregator(), new Left(), new Right(), new Refusing() };
+                manager.addEndpoint(pid, endpoints[random.nextInt(random.nextInt(8) == 0 ? 2 : endpoints.length)]);
+                pids.add(pid);
+            } else if (action < 6) {
+                manager.removeEndpoint(pids.remove(random.nextInt(pids.size())));
+            } else if (action < 8) {
+                EndpointPortImpl port = port(pids.get(random.nextInt(pids.size())));
+                List<PotentialConnectionImpl> connections = new ArrayList<PotentialConnectionImpl>(port.potentialConnections.values());
+                if (!connections.isEmpty()) {
+                    PotentialConnectionImpl connection = connections.get(random.nextInt(connections.size()));
+                    if (connection.isConnected()) {
+                        connection.disconnect();
+                    } else {
+                        connection.connect();
+                    }
+                }
+            } else {
+                manager.autoConnect();
+                assertNothingToConnect();
+            }
+            assertCounts();
+        }
+    }
+}
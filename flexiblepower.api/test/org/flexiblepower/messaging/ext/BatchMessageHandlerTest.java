@@ -0,0 +1,193 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.messaging.BatchMessageHandler;
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.junit.After;
+import org.junit.Test;
+
+public class BatchMessageHandlerTest {
+    @Port(name = "updates", accepts = Integer.class, cardinality = Cardinality.MULTIPLE)
+    static class Aggregator implements Endpoint, BatchMessageHandler {
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Object> messages = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch firstBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile CountDownLatch expected = new CountDownLatch(0);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return this;
+        }
+
+        @Override
+        public void handleMessages(List<Object> batch) {
+            batchSizes.add(batch.size());
+            messages.addAll(batch);
+            firstBatch.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                expected.countDown();
+            }
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+            handleMessages(Collections.singletonList(message));
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    @Port(name = "updates", sends = Integer.class)
+    static class Device implements Endpoint, MessageHandler {
+        volatile Connection connection;
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = connection;
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    @Port(name = "updates", accepts = Integer.class)
+    static class Receiver implements Endpoint, MessageHandler {
+        final CountDownLatch received = new CountDownLatch(1);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+            received.countDown();
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    private ExecutorService workerPool = Executors.newFixedThreadPool(2);
+    private DispatchingConnectionManager manager;
+
+    @After
+    public void tearDown() {
+        manager.close();
+        workerPool.shutdownNow();
+    }
+
+    private Device connect(Aggregator aggregator) {
+        Device device = new Device();
+        manager.addEndpoint("aggregator", aggregator);
+        manager.addEndpoint("device", device);
+        manager.autoConnect();
+        return device;
+    }
+
+    @Test
+    public void testQueuedMessagesAreBatched() throws Exception {
+        manager = DispatchingConnectionManager.create(workerPool).maxBatchSize(100).build();
+        Aggregator aggregator = new Aggregator();
+        Device device = connect(aggregator);
+        aggregator.expected = new CountDownLatch(1000);
+
+        device.connection.sendMessage(0);
+        assertTrue(aggregator.firstBatch.await(5, TimeUnit.SECONDS));
+        // The handler is busy, so the next messages queue up
+        for (int i = 1; i < 1000; i++) {
+            device.connection.sendMessage(i);
+        }
+        aggregator.release.countDown();
+        assertTrue(aggregator.expected.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, aggregator.batchSizes.get(0).intValue());
+        assertEquals(100, aggregator.batchSizes.get(1).intValue());
+        assertEquals(11, aggregator.batchSizes.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, aggregator.messages.get(i));
+        }
+    }
+
+    @Test
+    public void testMessagesWithinDelayAreBatched() throws Exception {
+        manager = DispatchingConnectionManager.create(workerPool)
+                                              .maxBatchDelay(Measure.valueOf(2, SI.SECOND))
+                                              .build();
+        Aggregator aggregator = new Aggregator();
+        aggregator.release.countDown();
+        Device device = connect(aggregator);
+        aggregator.expected = new CountDownLatch(5);
+
+        for (int i = 0; i < 5; i++) {
+            device.connection.sendMessage(i);
+            Thread.sleep(10);
+        }
+        assertTrue(aggregator.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(5), aggregator.batchSizes);
+    }
+
+    @Test
+    public void testOpenBatchDoesNotHoldWorker() throws Exception {
+        workerPool.shutdown();
+        workerPool = Executors.newSingleThreadExecutor();
+        manager = DispatchingConnectionManager.create(workerPool)
+                                              .maxBatchDelay(Measure.valueOf(1, SI.SECOND))
+                                              .build();
+        Aggregator aggregator = new Aggregator();
+        aggregator.release.countDown();
+        aggregator.expected = new CountDownLatch(1);
+        Receiver receiver = new Receiver();
+        Device toAggregator = new Device();
+        Device toReceiver = new Device();
+        manager.addEndpoint("aggregator", aggregator);
+        manager.addEndpoint("receiver", receiver);
+        manager.addEndpoint("device1", toAggregator);
+        manager.addEndpoint("device2", toReceiver);
+        manager.connectEndpointPorts("device1", "updates", "aggregator", "updates");
+        manager.connectEndpointPorts("device2", "updates", "receiver", "updates");
+
+        toAggregator.connection.sendMessage(1);
+        Thread.sleep(50);
+        // The only worker is not waiting for the open batch, so it handles the other message
+        toReceiver.connection.sendMessage(2);
+        assertTrue(receiver.received.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, aggregator.expected.getCount());
+
+        // The batch timer delivers the batch
+        assertTrue(aggregator.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(1), aggregator.batchSizes);
+    }
+}
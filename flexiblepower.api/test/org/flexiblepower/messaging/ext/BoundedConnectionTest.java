@@ -0,0 +1,317 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.BoundedConnection;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.OverflowPolicy;
+import org.flexiblepower.messaging.Port;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedConnectionTest {
+    /**
+     * A receiver that blocks on the first message until it is released.
+     */
+    abstract static class SlowReceiver implements Endpoint, MessageHandler {
+        final List<Object> messages = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile CountDownLatch expected = new CountDownLatch(0);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            messages.add(message);
+            expected.countDown();
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    @Port(name = "in", accepts = String.class, queueCapacity = 2, overflowPolicy = OverflowPolicy.FAIL)
+    static class FailReceiver extends SlowReceiver {
+    }
+
+    @Port(name = "in", accepts = String.class, queueCapacity = 2, overflowPolicy = OverflowPolicy.DROP_OLDEST)
+    static class DropOldestReceiver extends SlowReceiver {
+    }
+
+    @Port(name = "in", accepts = String.class, queueCapacity = 2, overflowPolicy = OverflowPolicy.DROP_NEWEST)
+    static class DropNewestReceiver extends SlowReceiver {
+    }
+
+    @Port(name = "in", accepts = String.class, queueCapacity = 2, overflowPolicy = OverflowPolicy.COALESCE)
+    static class CoalesceReceiver extends SlowReceiver {
+    }
+
+    @Port(name = "in", accepts = String.class, queueCapacity = 2)
+    static class BlockReceiver extends SlowReceiver {
+    }
+
+    @Port(name = "in", accepts = String.class)
+    static class DefaultReceiver extends SlowReceiver {
+    }
+
+    @Port(name = "in", accepts = String.class, queueCapacity = 1000)
+    static class CountingReceiver implements Endpoint, MessageHandler {
+        final AtomicInteger received = new AtomicInteger();
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+            received.incrementAndGet();
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    @Port(name = "out", sends = String.class)
+    static class Sender implements Endpoint, MessageHandler {
+        volatile BoundedConnection connection;
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = (BoundedConnection) connection;
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    private ExecutorService workerPool;
+    private DispatchingConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(2);
+        manager = DispatchingConnectionManager.create(workerPool).queueCapacity(3, OverflowPolicy.DROP_NEWEST).build();
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        workerPool.shutdownNow();
+    }
+
+    /**
+     * Connects a sender to the receiver and sends the first message, which keeps the receiver busy.
+     */
+    private BoundedConnection connect(SlowReceiver receiver, int expected) throws InterruptedException {
+        Sender sender = new Sender();
+        manager.addEndpoint("sender", sender);
+        manager.addEndpoint("receiver", receiver);
+        manager.autoConnect();
+        receiver.expected = new CountDownLatch(expected);
+        sender.connection.sendMessage("m0");
+        assertTrue(receiver.started.await(5, TimeUnit.SECONDS));
+        return sender.connection;
+    }
+
+    private void send(BoundedConnection connection, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            connection.sendMessage("m" + i);
+        }
+    }
+
+    private static void assertReceived(SlowReceiver receiver, String... messages) throws InterruptedException {
+        receiver.release.countDown();
+        assertTrue(receiver.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList((Object[]) messages), receiver.messages);
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        FailReceiver receiver = new FailReceiver();
+        BoundedConnection connection = connect(receiver, 3);
+        send(connection, 1, 2);
+        assertEquals(2, connection.getQueueDepth());
+        assertEquals(2, connection.getQueueCapacity());
+        assertFalse(connection.trySendMessage("m3"));
+        try {
+            connection.sendMessage("m3");
+            fail("Expected the queue to be full");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(2, connection.getDroppedCount());
+        assertReceived(receiver, "m0", "m1", "m2");
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        DropOldestReceiver receiver = new DropOldestReceiver();
+        BoundedConnection connection = connect(receiver, 3);
+        send(connection, 1, 5);
+        assertEquals(3, connection.getDroppedCount());
+        assertReceived(receiver, "m0", "m4", "m5");
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        DropNewestReceiver receiver = new DropNewestReceiver();
+        BoundedConnection connection = connect(receiver, 3);
+        send(connection, 1, 5);
+        assertFalse(connection.trySendMessage("m6"));
+        assertReceived(receiver, "m0", "m1", "m2");
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        CoalesceReceiver receiver = new CoalesceReceiver();
+        BoundedConnection connection = connect(receiver, 3);
+        send(connection, 1, 5);
+        assertTrue(connection.trySendMessage("m6"));
+        assertReceived(receiver, "m0", "m1", "m6");
+    }
+
+    @Test
+    public void testDefaultFromBuilder() throws Exception {
+        DefaultReceiver receiver = new DefaultReceiver();
+        BoundedConnection connection = connect(receiver, 4);
+        send(connection, 1, 5);
+        assertEquals(3, connection.getQueueCapacity());
+        assertReceived(receiver, "m0", "m1", "m2", "m3");
+    }
+
+    @Test
+    public void testBlockAndWatermarks() throws Exception {
+        BlockReceiver receiver = new BlockReceiver();
+        final BoundedConnection connection = connect(receiver, 5);
+        final AtomicInteger high = new AtomicInteger();
+        final CountDownLatch low = new CountDownLatch(1);
+        connection.setWatermarks(0, 2, new BoundedConnection.WatermarkListener() {
+            @Override
+            public void highWatermarkReached(BoundedConnection source, int depth) {
+                high.incrementAndGet();
+            }
+
+            @Override
+            public void lowWatermarkReached(BoundedConnection source, int depth) {
+                low.countDown();
+            }
+        });
+        send(connection, 1, 2);
+        assertEquals(1, high.get());
+        assertFalse(connection.trySendMessage("m3"));
+
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                send(connection, 3, 4);
+            }
+        };
+        sender.start();
+        Thread.sleep(50);
+        assertTrue("The sender should be blocked", sender.isAlive());
+
+        assertReceived(receiver, "m0", "m1", "m2", "m3", "m4");
+        sender.join(5000);
+        assertTrue(low.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSenderPausingAtWatermarks() throws Exception {
+        Sender sender = new Sender();
+        CountingReceiver receiver = new CountingReceiver();
+        manager.addEndpoint("sender", sender);
+        manager.addEndpoint("receiver", receiver);
+        manager.autoConnect();
+        final AtomicInteger paused = new AtomicInteger();
+        sender.connection.setWatermarks(1, 4, new BoundedConnection.WatermarkListener() {
+            @Override
+            public void highWatermarkReached(BoundedConnection source, int depth) {
+                paused.incrementAndGet();
+            }
+
+            @Override
+            public void lowWatermarkReached(BoundedConnection source, int depth) {
+                paused.decrementAndGet();
+            }
+        });
+
+        // Every pause at the high watermark must be followed by the low watermark, or the sender stalls
+        int messages = 100000;
+        long deadline = System.currentTimeMillis() + 10000;
+        for (int i = 0; i < messages; i++) {
+            while (paused.get() > 0) {
+                assertTrue("The sender stalled after " + i + " messages", System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+            sender.connection.sendMessage("m" + i);
+        }
+        while (receiver.received.get() < messages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(messages, receiver.received.get());
+    }
+
+    @Test
+    public void testBlockingSendFromOnConnect() throws Exception {
+        BlockReceiver receiver = new BlockReceiver();
+        receiver.expected = new CountDownLatch(3);
+        receiver.release.countDown();
+        manager.addEndpoint("receiver", receiver);
+        manager.addEndpoint("sender", new Sender() {
+            @Override
+            public MessageHandler onConnect(Connection connection) {
+                super.onConnect(connection);
+                send(this.connection, 0, 2);
+                return this;
+            }
+        });
+
+        // More messages than the capacity of the queue are sent before the connection is active
+        Thread connecting = new Thread() {
+            @Override
+            public void run() {
+                manager.autoConnect();
+            }
+        };
+        connecting.start();
+        connecting.join(5000);
+        assertFalse("Connecting should not block", connecting.isAlive());
+        assertTrue(receiver.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList((Object) "m0", "m1", "m2"), receiver.messages);
+    }
+}
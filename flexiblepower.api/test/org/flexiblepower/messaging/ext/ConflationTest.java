@@ -0,0 +1,169 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.flexiblepower.messaging.BoundedConnection;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.MessageKeyExtractor;
+import org.flexiblepower.messaging.OverflowPolicy;
+import org.flexiblepower.messaging.Port;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConflationTest {
+    /**
+     * Uses the part before the colon as the key, e.g. "a:1" and "a:2" have the same key. Messages without a colon have
+     * no key.
+     */
+    public static class PrefixKey implements MessageKeyExtractor {
+        @Override
+        public Object keyOf(Object message) {
+            String text = (String) message;
+            int index = text.indexOf(':');
+            return index < 0 ? null : text.substring(0, index);
+        }
+    }
+
+    /**
+     * A receiver that handles a message only after a permit has been released.
+     */
+    @Port(name = "in", accepts = String.class, conflateBy = PrefixKey.class)
+    static class Receiver implements Endpoint, MessageHandler {
+        final List<Object> messages = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final Semaphore permits = new Semaphore(0);
+        volatile CountDownLatch expected = new CountDownLatch(0);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+            started.countDown();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            messages.add(message);
+            expected.countDown();
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    @Port(name = "in",
+          accepts = String.class,
+          conflateBy = PrefixKey.class,
+          queueCapacity = 2,
+          overflowPolicy = OverflowPolicy.DROP_NEWEST)
+    static class BoundedReceiver extends Receiver {
+    }
+
+    @Port(name = "out", sends = String.class)
+    static class Sender implements Endpoint, MessageHandler {
+        volatile BoundedConnection connection;
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            this.connection = (BoundedConnection) connection;
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    private ExecutorService workerPool;
+    private DispatchingConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(2);
+        manager = DispatchingConnectionManager.create(workerPool).build();
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        workerPool.shutdownNow();
+    }
+
+    private BoundedConnection connect(Receiver receiver, int expected) throws InterruptedException {
+        Sender sender = new Sender();
+        manager.addEndpoint("sender", sender);
+        manager.addEndpoint("receiver", receiver);
+        manager.autoConnect();
+        receiver.expected = new CountDownLatch(expected);
+        sender.connection.sendMessage("first");
+        assertTrue(receiver.started.await(5, TimeUnit.SECONDS));
+        return sender.connection;
+    }
+
+    private static void assertReceived(Receiver receiver, String... messages) throws InterruptedException {
+        receiver.permits.release(messages.length);
+        assertTrue(receiver.expected.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList((Object[]) messages), receiver.messages);
+    }
+
+    @Test
+    public void testLatestValueWins() throws Exception {
+        Receiver receiver = new Receiver();
+        BoundedConnection connection = connect(receiver, 5);
+        for (String message : new String[] { "a:1", "b:1", "x", "a:2", "y", "b:2", "a:3" }) {
+            connection.sendMessage(message);
+        }
+        assertEquals(4, connection.getQueueDepth());
+        assertEquals(3, connection.getDroppedCount());
+        assertReceived(receiver, "first", "a:3", "b:2", "x", "y");
+    }
+
+    @Test
+    public void testKeyIsReleasedWhenHandled() throws Exception {
+        Receiver receiver = new Receiver();
+        BoundedConnection connection = connect(receiver, 3);
+        connection.sendMessage("a:1");
+        receiver.permits.release();
+        while (connection.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        connection.sendMessage("a:2");
+        connection.sendMessage("a:3");
+        assertReceived(receiver, "first", "a:1", "a:3");
+    }
+
+    @Test
+    public void testCapacityWithKeys() throws Exception {
+        BoundedReceiver receiver = new BoundedReceiver();
+        BoundedConnection connection = connect(receiver, 3);
+        connection.sendMessage("a:1");
+        connection.sendMessage("b:1");
+        connection.sendMessage("c:1");
+        connection.sendMessage("a:2");
+        assertEquals(2, connection.getQueueDepth());
+        assertReceived(receiver, "first", "a:2", "b:1");
+    }
+}
@@ -0,0 +1,77 @@
+package org.flexiblepower.messaging.ext;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Base class of the tests that need a {@link DispatchingConnectionManager} with a few simple endpoints. A new manager
+ * is created before each test and closed after it.
+ */
+abstract class ConnectionManagerFixture {
+    /**
+     * Runs every task in the calling thread, so a manager that uses it connects synchronously.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Accepts every connection and ignores its messages.
+     */
+    static class Accepting implements Endpoint, MessageHandler {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+        }
+
+        @Override
+        public void disconnected() {
+        }
+    }
+
+    @Port(name = "controller", sends = Integer.class, accepts = String.class)
+    static class Device extends Accepting {
+    }
+
+    @Port(name = "devices", sends = String.class, accepts = Integer.class, cardinality = Cardinality.MULTIPLE)
+    static class Controller extends Accepting {
+    }
+
+    ExecutorService workerPool;
+    DispatchingConnectionManager manager;
+
+    /**
+     * @return The executor of the manager, the worker pool unless overridden
+     */
+    Executor executor() {
+        return workerPool;
+    }
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(4);
+        manager = DispatchingConnectionManager.create(executor()).build();
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        workerPool.shutdownNow();
+    }
+}
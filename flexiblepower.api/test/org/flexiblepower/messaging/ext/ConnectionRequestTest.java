@@ -0,0 +1,146 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.flexiblepower.context.Promise;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.ConnectionFuture;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.MessageHandler;
+import org.junit.Test;
+
+public class ConnectionRequestTest extends ConnectionManagerFixture {
+    @Test
+    public void testPromiseCompletesWithoutLock() throws Exception {
+        ConnectionFuture future = manager.asyncConnectEndpointPorts("device", "controller", "controller", "devices");
+        final CountDownLatch completed = new CountDownLatch(1);
+        final AtomicBoolean locked = new AtomicBoolean();
+        manager.toPromise(future).whenComplete(new Promise.Listener<PotentialConnection>() {
+            @Override
+            public void completed(PotentialConnection value, Throwable failure) {
+                locked.set(Thread.holdsLock(manager.lock));
+                completed.countDown();
+            }
+        });
+
+        manager.addEndpoint("device", new Device());
+        assertFalse(future.isConnected());
+        manager.addEndpoint("controller", new Controller());
+        assertTrue(future.isConnected());
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertFalse(locked.get());
+        assertSame(future.getPotentialConnection(), manager.toPromise(future).get());
+    }
+
+    @Test
+    public void testManyRequests() throws Exception {
+        List<Promise<PotentialConnection>> promises = new ArrayList<Promise<PotentialConnection>>();
+        for (int i = 0; i < 1000; i++) {
+            promises.add(manager.toPromise(manager.asyncConnectEndpointPorts("device" + i,
+                                                                              "controller",
+                                                                              "controller",
+                                                                              "devices")));
+        }
+        manager.addEndpoint("controller", new Controller());
+        for (int i = 0; i < 1000; i++) {
+            manager.addEndpoint("device" + i, new Device());
+        }
+        for (Promise<PotentialConnection> promise : promises) {
+            assertTrue(promise.get(5, TimeUnit.SECONDS).isConnected());
+        }
+    }
+
+    @Test
+    public void testRetriedAfterDisconnect() throws Exception {
+        manager.addEndpoint("device", new Device());
+        manager.addEndpoint("controller1", new Controller());
+        manager.addEndpoint("controller2", new Controller());
+        PotentialConnection first = manager.connectEndpointPorts("device", "controller", "controller1", "devices");
+
+        // The single port of the device is busy
+        ConnectionFuture future = manager.asyncConnectEndpointPorts("device", "controller", "controller2", "devices");
+        assertFalse(future.isConnected());
+        first.disconnect();
+        assertTrue(future.isConnected());
+        assertTrue(manager.toPromise(future).get(5, TimeUnit.SECONDS).isConnected());
+    }
+
+    @Test
+    public void testCompletedByOtherConnect() throws Exception {
+        final AtomicBoolean refuse = new AtomicBoolean(true);
+        manager.addEndpoint("device", new Device() {
+            @Override
+            public MessageHandler onConnect(Connection connection) {
+                return refuse.get() ? null : this;
+            }
+        });
+        manager.addEndpoint("controller", new Controller());
+        ConnectionFuture future = manager.asyncConnectEndpointPorts("controller", "devices", "device", "controller");
+        assertFalse(future.isConnected());
+
+        refuse.set(false);
+        manager.getEndpoint("device").getPort("controller").getPotentialConnections().values().iterator().next().connect();
+        assertTrue(future.isConnected());
+        assertTrue(manager.toPromise(future).get(5, TimeUnit.SECONDS).isConnected());
+    }
+
+    @Test
+    public void testCancelPromise() throws Exception {
+        ConnectionFuture future = manager.asyncConnectEndpointPorts("device", "controller", "controller", "devices");
+        Promise<PotentialConnection> promise = manager.toPromise(future);
+        assertTrue(promise.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(promise.isCancelled());
+
+        manager.addEndpoint("device", new Device());
+        manager.addEndpoint("controller", new Controller());
+        assertFalse(future.isConnected());
+    }
+
+    @Test
+    public void testCancelWhileConnecting() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            final ConnectionFuture future = manager.asyncConnectEndpointPorts("device" + i,
+                                                                              "controller",
+                                                                              "controller" + i,
+                                                                              "devices");
+            manager.addEndpoint("device" + i, new Device());
+            Thread canceller = new Thread() {
+                @Override
+                public void run() {
+                    future.cancel();
+                }
+            };
+            canceller.start();
+            manager.addEndpoint("controller" + i, new Controller());
+            canceller.join();
+
+            assertTrue(future.isConnected() != future.isCancelled());
+            if (future.isConnected()) {
+                future.awaitConnection();
+            }
+        }
+    }
+
+    @Test
+    public void testForeignRequest() {
+        DispatchingConnectionManager other = DispatchingConnectionManager.create(workerPool).build();
+        ConnectionFuture future = other.asyncConnectEndpointPorts("a", "b", "c", "d");
+        try {
+            manager.toPromise(future);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals(false, future.isConnected());
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+import javax.measure.unit.SI;
+
+import org.flexiblepower.messaging.BoundedConnection;
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.ConnectionFuture;
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.ConnectionManagerException;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.MessageListener;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DispatchingConnectionManagerTest {
+    /**
+     * Records the messages that it receives and checks that it is never called concurrently.
+     */
+    static class RecordingEndpoint implements Endpoint, MessageHandler {
+        final List<Object> messages = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Connection> connections = Collections.synchronizedList(new ArrayList<Connection>());
+        final AtomicBoolean busy = new AtomicBoolean();
+        final AtomicInteger concurrentCalls = new AtomicInteger();
+        final AtomicInteger disconnects = new AtomicInteger();
+        volatile CountDownLatch expected = new CountDownLatch(0);
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            connections.add(connection);
+            return this;
+        }
+
+        @Override
+        public void handleMessage(Object message) {
+            if (!busy.compareAndSet(false, true)) {
+                concurrentCalls.incrementAndGet();
+            }
+            messages.add(message);
+            busy.set(false);
+            expected.countDown();
+        }
+
+        @Override
+        public void disconnected() {
+            disconnects.incrementAndGet();
+            expected.countDown();
+        }
+
+        void expect(int count) {
+            expected = new CountDownLatch(count);
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Timed out waiting for messages", expected.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Port(name = "control", sends = String.class, accepts = Integer.class)
+    static class Device extends RecordingEndpoint {
+    }
+
+    @Port(name = "devices", sends = Integer.class, accepts = CharSequence.class, cardinality = Cardinality.MULTIPLE)
+    static class Controller extends RecordingEndpoint {
+    }
+
+    @Ports({ @Port(name = "control", sends = String.class, accepts = Integer.class),
+            @Port(name = "unused", sends = Double.class) })
+    static class OtherDevice extends RecordingEndpoint {
+    }
+
+    @Filter(String.class)
+    static class StringListener implements MessageListener {
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch received = new CountDownLatch(1);
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            seen.add(from + ">" + to + ":" + message);
+            received.countDown();
+        }
+    }
+
+    private ExecutorService workerPool;
+    private DispatchingConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(4);
+        manager = DispatchingConnectionManager.create(workerPool).throughput(8).build();
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        workerPool.shutdownNow();
+    }
+
+    @Test
+    public void testPotentialConnections() {
+        manager.addEndpoint("device1", new Device());
+        manager.addEndpoint("device2", new OtherDevice());
+        manager.addEndpoint("controller", new Controller());
+
+        assertEquals(2, manager.getEndpoint("controller").getPort("devices").getPotentialConnections().size());
+        assertEquals(1, manager.getEndpoint("device2").getPort("control").getPotentialConnections().size());
+        assertEquals(0, manager.getEndpoint("device2").getPort("unused").getPotentialConnections().size());
+        EndpointPort device = manager.getEndpoint("device1").getPort("control");
+        EndpointPort controller = manager.getEndpoint("controller").getPort("devices");
+        PotentialConnection connection = device.getPotentialConnection(controller);
+        assertNotNull(connection);
+        assertEquals(connection, controller.getPotentialConnection(device));
+        assertEquals(device, connection.getOtherEnd(controller));
+        assertTrue(connection.isConnectable());
+
+        assertTrue(manager.removeEndpoint("device1"));
+        assertEquals(1, controller.getPotentialConnections().size());
+    }
+
+    @Test
+    public void testOrderingAndSerialExecution() throws Exception {
+        Controller controller = new Controller();
+        manager.addEndpoint("controller", controller);
+        final int devices = 8;
+        final int messages = 10000;
+        final List<Device> all = new ArrayList<Device>();
+        for (int i = 0; i < devices; i++) {
+            Device device = new Device();
+            all.add(device);
+            manager.addEndpoint("device" + i, device);
+        }
+        manager.autoConnect();
+        controller.expect(devices * messages);
+
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int i = 0; i < devices; i++) {
+            final Connection connection = all.get(i).connections.get(0);
+            final String prefix = "device" + i + ":";
+            Thread sender = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < messages; j++) {
+                        connection.sendMessage(prefix + j);
+                    }
+                }
+            };
+            senders.add(sender);
+            sender.start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        controller.await();
+
+        assertEquals(0, controller.concurrentCalls.get());
+        int[] next = new int[devices];
+        for (Object message : controller.messages) {
+            String[] parts = ((String) message).split(":");
+            int device = Integer.parseInt(parts[0].substring("device".length()));
+            assertEquals(next[device]++, Integer.parseInt(parts[1]));
+        }
+
+        // And the other way around
+        Device device = all.get(3);
+        device.expect(1);
+        controller.connections.get(3).sendMessage(42);
+        device.await();
+        assertEquals(42, device.messages.get(0));
+    }
+
+    @Test
+    public void testDisconnectAfterQueuedMessages() throws Exception {
+        Device device = new Device();
+        Controller controller = new Controller();
+        manager.addEndpoint("device", device);
+        manager.addEndpoint("controller", controller);
+        PotentialConnection connection = manager.connectEndpointPorts("device", "control", "controller", "devices");
+        assertTrue(connection.isConnected());
+
+        controller.expect(101);
+        Connection toController = device.connections.get(0);
+        for (int i = 0; i < 100; i++) {
+            toController.sendMessage("m" + i);
+        }
+        connection.disconnect();
+        toController.sendMessage("ignored");
+        controller.await();
+
+        assertEquals(100, controller.messages.size());
+        assertEquals(1, controller.disconnects.get());
+        assertFalse(connection.isConnected());
+        assertTrue(connection.isConnectable());
+    }
+
+    @Test
+    public void testRefusedConnectionIsClosed() throws Exception {
+        Controller controller = new Controller();
+        manager.addEndpoint("controller", controller);
+        manager.addEndpoint("device", new Device() {
+            @Override
+            public MessageHandler onConnect(Connection connection) {
+                return null;
+            }
+        });
+        // The controller is asked first and accepts
+        manager.autoConnect();
+        assertEquals(1, controller.disconnects.get());
+
+        BoundedConnection toDevice = (BoundedConnection) controller.connections.get(0);
+        toDevice.sendMessage(42);
+        assertFalse(toDevice.trySendMessage(43));
+        assertEquals(0, toDevice.getQueueDepth());
+    }
+
+    @Test(expected = ConnectionManagerException.class)
+    public void testConnectUnknownPort() throws Exception {
+        manager.addEndpoint("device", new Device());
+        manager.addEndpoint("controller", new Controller());
+        manager.connectEndpointPorts("device", "other", "controller", "devices");
+    }
+
+    @Test
+    public void testSinglePortCanOnlyConnectOnce() throws Exception {
+        manager.addEndpoint("device", new Device());
+        manager.addEndpoint("controller1", new Controller());
+        manager.addEndpoint("controller2", new Controller());
+
+        // Two options, so nothing is connected automatically
+        manager.autoConnect();
+        EndpointPort port = manager.getEndpoint("device").getPort("control");
+        for (PotentialConnection connection : port.getPotentialConnections().values()) {
+            assertFalse(connection.isConnected());
+        }
+
+        manager.connectEndpointPorts("device", "control", "controller1", "devices");
+        PotentialConnection second = port.getPotentialConnection(manager.getEndpoint("controller2")
+                                                                        .getPort("devices"));
+        assertFalse(second.isConnectable());
+        second.connect();
+        assertFalse(second.isConnected());
+    }
+
+    @Test
+    public void testAsyncConnect() throws Exception {
+        ConnectionFuture future = manager.asyncConnectEndpointPorts("device", "control", "controller", "devices");
+        assertFalse(future.isConnected());
+        Device device = new Device();
+        device.expect(1);
+        manager.addEndpoint("device", device);
+        assertFalse(future.isConnected());
+        manager.addEndpoint("controller", new Controller());
+        future.awaitConnection(Measure.valueOf(1, SI.SECOND));
+        assertTrue(future.isConnected());
+        assertTrue(future.getPotentialConnection().isConnected());
+
+        ConnectionFuture cancelled = manager.asyncConnectEndpointPorts("x", "a", "y", "b");
+        cancelled.cancel();
+        assertTrue(cancelled.isCancelled());
+        assertNull(cancelled.getPotentialConnection());
+    }
+
+    @Test
+    public void testMessageListener() throws Exception {
+        StringListener listener = new StringListener();
+        manager.addMessageListener(listener);
+        Device device = new Device();
+        Controller controller = new Controller();
+        manager.addEndpoint("device", device);
+        manager.addEndpoint("controller", controller);
+        manager.autoConnect();
+
+        controller.expect(1);
+        device.expect(1);
+        device.connections.get(0).sendMessage("hello");
+        controller.connections.get(0).sendMessage(1);
+        controller.await();
+        device.await();
+        assertTrue(listener.received.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("device:control>controller:devices:hello"), listener.seen);
+    }
+}
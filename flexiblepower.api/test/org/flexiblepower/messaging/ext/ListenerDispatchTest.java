@@ -0,0 +1,151 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.ConnectionManager.EndpointPort;
+import org.flexiblepower.messaging.Filter;
+import org.flexiblepower.messaging.MessageListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ListenerDispatchTest {
+    static class AllListener implements MessageListener {
+        final List<Object> seen = Collections.synchronizedList(new ArrayList<Object>());
+
+        @Override
+        public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+            seen.add(message);
+        }
+    }
+
+    @Filter(Number.class)
+    static class NumberListener extends AllListener {
+    }
+
+    @Filter({ String.class, Double.class })
+    static class TextListener extends AllListener {
+    }
+
+    private ExecutorService workerPool;
+    private DispatchingConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        workerPool = Executors.newFixedThreadPool(2);
+        manager = DispatchingConnectionManager.create(workerPool).build();
+    }
+
+    @After
+    public void tearDown() {
+        manager.close();
+        workerPool.shutdownNow();
+    }
+
+    @Test
+    public void testIndex() {
+        ListenerIndex index = new ListenerIndex();
+        assertSame(ListenerIndex.NONE, index.listenersFor(String.class));
+
+        AllListener all = new AllListener();
+        NumberListener numbers = new NumberListener();
+        TextListener text = new TextListener();
+        index.add(all);
+        index.add(numbers);
+        index.add(text);
+        assertArrayEquals(new MessageListener[] { all, numbers }, index.listenersFor(Integer.class));
+        assertArrayEquals(new MessageListener[] { all, numbers, text }, index.listenersFor(Double.class));
+        assertArrayEquals(new MessageListener[] { all, text }, index.listenersFor(String.class));
+        assertSame(index.listenersFor(Integer.class), index.listenersFor(Integer.class));
+
+        index.remove(all);
+        assertArrayEquals(new MessageListener[] { numbers }, index.listenersFor(Integer.class));
+        index.remove(numbers);
+        index.remove(text);
+        assertTrue(index.isEmpty());
+        assertSame(ListenerIndex.NONE, index.listenersFor(Integer.class));
+    }
+
+    @Test
+    public void testOrderedDelivery() throws Exception {
+        final int count = 10000;
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicBoolean inside = new AtomicBoolean();
+        final AtomicBoolean failed = new AtomicBoolean();
+        MessageListener listener = new MessageListener() {
+            @Override
+            public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+                if (!inside.compareAndSet(false, true) || !message.equals(delivered.get())) {
+                    failed.set(true);
+                }
+                inside.set(false);
+                delivered.incrementAndGet();
+            }
+        };
+        ListenerDispatcher dispatcher = new ListenerDispatcher(manager, workerPool, 16, 64);
+        MessageListener[] listeners = { listener };
+        long deadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < count; i++) {
+            // Stay within the buffer
+            while (i - delivered.get() >= 64 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            dispatcher.publish(null, null, i, listeners);
+        }
+        while (delivered.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, dispatcher.getDroppedCount());
+        assertEquals(count, delivered.get());
+        assertFalse(failed.get());
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Object> seen = Collections.synchronizedList(new ArrayList<Object>());
+        MessageListener listener = new MessageListener() {
+            @Override
+            public void handleMessage(EndpointPort from, EndpointPort to, Object message) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                seen.add(message);
+            }
+        };
+        ListenerDispatcher dispatcher = new ListenerDispatcher(manager, workerPool, 16, 4);
+        MessageListener[] listeners = { listener };
+        dispatcher.publish(null, null, 0, listeners);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 10; i++) {
+            dispatcher.publish(null, null, i, listeners);
+        }
+        assertEquals(6, dispatcher.getDroppedCount());
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (seen.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(5, seen.size());
+        assertEquals(0, seen.get(0));
+        assertEquals(4, seen.get(4));
+    }
+}
@@ -0,0 +1,586 @@
+package org.flexiblepower.messaging.ext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.flexiblepower.context.ext.Histogram;
+import org.flexiblepower.messaging.BoundedConnection;
+import org.flexiblepower.messaging.Cardinality;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.OverflowPolicy;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+
+/**
+ * Drives a {@link DispatchingConnectionManager} with synthetic traffic and reports the throughput, the latency
+ * percentiles, the allocation per message and the queue depths. The topology is built from annotated endpoints:
+ *
+ * <ul>
+ * <li><code>star</code>: <i>nodes</i> devices that each send to one aggregator over a {@link Cardinality#MULTIPLE}
+ * port, connected with {@link DispatchingConnectionManager#autoConnect()}</li>
+ * <li><code>chain</code>: a source, <i>nodes</i> relays that forward each message and a sink</li>
+ * <li><code>mesh</code>: <i>nodes</i> nodes that each send to all other nodes</li>
+ * </ul>
+ *
+ * The chain and the mesh are connected with {@link DispatchingConnectionManager#applyTopology(Topology)}. The
+ * generator threads send at a fixed total rate (open loop), and the latency of a message is measured from the moment
+ * at which it should have been sent according to that rate, so a stalled sender does not hide the delay of the
+ * messages that it could not send in time (coordinated omission). The latency from the actual send is reported as
+ * well. With <code>rate=0</code> the generators send as fast as they can and only the latter is meaningful.
+ *
+ * This is not a unit test; run it as a plain Java application with <code>name=value</code> options:
+ *
+ * <pre>
+ * java -cp bin:bin_test org.flexiblepower.messaging.ext.MessagingLoadGenerator topology=star nodes=1000 rate=200000
+ * </pre>
+ *
+ * The options are <code>topology</code> (star, chain or mesh), <code>nodes</code>, <code>rate</code> (messages per
+ * second in total), <code>size</code> (payload bytes per message), <code>warmup</code> and <code>duration</code>
+ * (seconds), <code>workers</code> (size of the worker pool), <code>generators</code> (sending threads),
+ * <code>capacity</code> (queue capacity per connection, 0 is unbounded) and <code>policy</code> (the
+ * {@link OverflowPolicy} of bounded queues).
+ */
+public final class MessagingLoadGenerator {
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MICRO = 1e3;
+    private static final long SPIN_THRESHOLD_NANOS = 100000;
+    private static final long QUEUE_SAMPLE_MILLIS = 10;
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+    private MessagingLoadGenerator() {
+    }
+
+    /**
+     * The message that is sent around. The payload models the size of real messages.
+     */
+    static final class Sample {
+        final long intendedNanos;
+        final long sentNanos;
+        final byte[] payload;
+
+        Sample(long intendedNanos, long sentNanos, byte[] payload) {
+            this.intendedNanos = intendedNanos;
+            this.sentNanos = sentNanos;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Collects the latencies of delivered messages. Each worker thread records into its own histograms, so they are not
+     * contended, and their snapshots are merged after the worker pool has stopped.
+     */
+    static final class Recorder {
+        private final Queue<Recording> recordings = new ConcurrentLinkedQueue<Recording>();
+        private final ThreadLocal<Recording> current = new ThreadLocal<Recording>() {
+            @Override
+            protected Recording initialValue() {
+                Recording recording = new Recording();
+                recordings.add(recording);
+                return recording;
+            }
+        };
+        private final AtomicLong delivered = new AtomicLong();
+        volatile long measureFromNanos = Long.MAX_VALUE;
+
+        void record(Sample sample) {
+            long now = System.nanoTime();
+            if (sample.intendedNanos >= measureFromNanos) {
+                Recording recording = current.get();
+                recording.corrected.record(now - sample.intendedNanos);
+                recording.uncorrected.record(now - sample.sentNanos);
+                recording.lastDeliveryNanos = now;
+            }
+            delivered.incrementAndGet();
+        }
+
+        long getDelivered() {
+            return delivered.get();
+        }
+
+        Summary summarize() {
+            Summary summary = new Summary();
+            for (Recording recording : recordings) {
+                summary.corrected = summary.corrected.merge(recording.corrected.snapshot());
+                summary.uncorrected = summary.uncorrected.merge(recording.uncorrected.snapshot());
+                summary.lastDeliveryNanos = Math.max(summary.lastDeliveryNanos, recording.lastDeliveryNanos);
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * The latencies that have been recorded by a single worker thread.
+     */
+    static final class Recording {
+        final Histogram corrected = new Histogram();
+        final Histogram uncorrected = new Histogram();
+        long lastDeliveryNanos;
+    }
+
+    /**
+     * The latencies of all worker threads.
+     */
+    static final class Summary {
+        Histogram.Snapshot corrected = new Histogram().snapshot();
+        Histogram.Snapshot uncorrected = new Histogram().snapshot();
+        long lastDeliveryNanos;
+    }
+
+    /**
+     * The base of all endpoints. The connections of ports that send are collected, so the generators and the queue
+     * sampler can use them.
+     */
+    abstract static class Node implements Endpoint {
+        final LoadTest test;
+        volatile Connection out;
+
+        Node(LoadTest test) {
+            this.test = test;
+        }
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            if (connection.getPort().sends().length > 0) {
+                out = connection;
+                test.sendingConnections.add(connection);
+            }
+            return new MessageHandler() {
+                @Override
+                public void handleMessage(Object message) {
+                    handle((Sample) message);
+                }
+
+                @Override
+                public void disconnected() {
+                }
+            };
+        }
+
+        void handle(Sample sample) {
+            test.recorder.record(sample);
+        }
+    }
+
+    @Port(name = "aggregator", sends = Sample.class)
+    static final class Device extends Node {
+        Device(LoadTest test) {
+            super(test);
+        }
+    }
+
+    @Port(name = "devices", accepts = Sample.class, cardinality = Cardinality.MULTIPLE)
+    static final class Aggregator extends Node {
+        Aggregator(LoadTest test) {
+            super(test);
+        }
+    }
+
+    @Port(name = "out", sends = Sample.class)
+    static final class Source extends Node {
+        Source(LoadTest test) {
+            super(test);
+        }
+    }
+
+    @Ports({ @Port(name = "in", accepts = Sample.class), @Port(name = "out", sends = Sample.class) })
+    static final class Relay extends Node {
+        Relay(LoadTest test) {
+            super(test);
+        }
+
+        @Override
+        void handle(Sample sample) {
+            out.sendMessage(sample);
+        }
+    }
+
+    @Port(name = "in", accepts = Sample.class)
+    static final class Sink extends Node {
+        Sink(LoadTest test) {
+            super(test);
+        }
+    }
+
+    @Ports({ @Port(name = "in", accepts = Sample.class, cardinality = Cardinality.MULTIPLE),
+             @Port(name = "out", sends = Sample.class, cardinality = Cardinality.MULTIPLE) })
+    static final class MeshNode extends Node {
+        MeshNode(LoadTest test) {
+            super(test);
+        }
+    }
+
+    /**
+     * Sends messages at a fixed rate, round robin over its share of the sending connections. The thread stays alive
+     * until it is released, so its allocations are still counted when the allocation is measured.
+     */
+    static final class Generator extends Thread {
+        private final List<Connection> connections;
+        private final long intervalNanos;
+        private final long startNanos;
+        private final long endNanos;
+        private final int size;
+        private final CountDownLatch finished;
+        private final CountDownLatch release;
+        long sent;
+        long failed;
+
+        Generator(List<Connection> connections,
+                  long intervalNanos,
+                  long startNanos,
+                  long endNanos,
+                  int size,
+                  CountDownLatch finished,
+                  CountDownLatch release) {
+            super("generator");
+            this.connections = connections;
+            this.intervalNanos = intervalNanos;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.size = size;
+            this.finished = finished;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            try {
+                generate();
+            } finally {
+                finished.countDown();
+            }
+            while (true) {
+                try {
+                    release.await();
+                    return;
+                } catch (InterruptedException e) {
+                    // Keep waiting, the thread is released at the end of the run
+                }
+            }
+        }
+
+        private void generate() {
+            long intended = startNanos;
+            int next = 0;
+            while (true) {
+                long now = System.nanoTime();
+                if (intervalNanos > 0) {
+                    while (now < intended) {
+                        if (intended - now > SPIN_THRESHOLD_NANOS) {
+                            LockSupport.parkNanos(intended - now - SPIN_THRESHOLD_NANOS / 2);
+                        }
+                        now = System.nanoTime();
+                    }
+                } else {
+                    intended = now;
+                }
+                if (intended >= endNanos) {
+                    return;
+                }
+                try {
+                    connections.get(next).sendMessage(new Sample(intended, System.nanoTime(), new byte[size]));
+                    sent++;
+                } catch (RuntimeException e) {
+                    // A full queue with OverflowPolicy.FAIL
+                    failed++;
+                }
+                next = (next + 1) % connections.size();
+                intended += intervalNanos;
+            }
+        }
+    }
+
+    /**
+     * One run of the load generator.
+     */
+    static final class LoadTest {
+        final Recorder recorder = new Recorder();
+        final List<Connection> sendingConnections = new CopyOnWriteArrayList<Connection>();
+        final List<Connection> sources = new ArrayList<Connection>();
+
+        private final String topology;
+        private final int nodes;
+        private final double rate;
+        private final int size;
+        private final double warmup;
+        private final double duration;
+        private final int workers;
+        private final int generators;
+        private final int capacity;
+        private final OverflowPolicy policy;
+
+        private long queueSamples;
+        private long queueDepthSum;
+        private long maxTotalDepth;
+        private long maxConnectionDepth;
+
+        LoadTest(Map<String, String> options) {
+            topology = option(options, "topology", "star");
+            nodes = Integer.parseInt(option(options, "nodes", "100"));
+            rate = Double.parseDouble(option(options, "rate", "100000"));
+            size = Integer.parseInt(option(options, "size", "64"));
+            warmup = Double.parseDouble(option(options, "warmup", "3"));
+            duration = Double.parseDouble(option(options, "duration", "10"));
+            workers = Integer.parseInt(option(options, "workers",
+                                              String.valueOf(Runtime.getRuntime().availableProcessors())));
+            generators = Integer.parseInt(option(options, "generators", "1"));
+            capacity = Integer.parseInt(option(options, "capacity", "0"));
+            policy = OverflowPolicy.valueOf(option(options, "policy", "BLOCK"));
+            if (!options.isEmpty()) {
+                throw new IllegalArgumentException("Unknown options " + options.keySet());
+            }
+        }
+
+        private static String option(Map<String, String> options, String name, String defaultValue) {
+            String value = options.remove(name);
+            return value == null ? defaultValue : value;
+        }
+
+        void run() throws Exception {
+            ExecutorService workerPool = Executors.newFixedThreadPool(workers);
+            DispatchingConnectionManager.Builder builder = DispatchingConnectionManager.create(workerPool);
+            if (capacity > 0) {
+                builder.queueCapacity(capacity, policy);
+            }
+            DispatchingConnectionManager manager = builder.build();
+            build(manager);
+            System.out.println("Topology " + topology + " with " + manager.getEndpoints().size() + " endpoints, "
+                               + sources.size() + " sending connections, " + sendingConnections.size()
+                               + " connections in total");
+
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureFrom = start + (long) (warmup * NANOS_PER_SECOND);
+            long end = measureFrom + (long) (duration * NANOS_PER_SECOND);
+            long intervalNanos = rate > 0 ? (long) (generators * NANOS_PER_SECOND / rate) : 0;
+            recorder.measureFromNanos = measureFrom;
+
+            List<Generator> threads = new ArrayList<Generator>();
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch finished = new CountDownLatch(Math.min(generators, sources.size()));
+            for (int i = 0; i < generators; i++) {
+                List<Connection> share = new ArrayList<Connection>();
+                for (int j = i; j < sources.size(); j += generators) {
+                    share.add(sources.get(j));
+                }
+                if (!share.isEmpty()) {
+                    threads.add(new Generator(share,
+                                              intervalNanos,
+                                              start + i * intervalNanos / generators,
+                                              end,
+                                              size,
+                                              finished,
+                                              release));
+                }
+            }
+            for (Generator generator : threads) {
+                generator.start();
+            }
+
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            while (System.nanoTime() < measureFrom) {
+                Thread.sleep(1);
+            }
+            long allocatedBefore = allocatedBytes(threadBean);
+            long deliveredBefore = recorder.getDelivered();
+            while (System.nanoTime() < end) {
+                sampleQueues();
+                Thread.sleep(QUEUE_SAMPLE_MILLIS);
+            }
+
+            finished.await();
+            long sent = 0;
+            long failed = 0;
+            for (Generator generator : threads) {
+                sent += generator.sent;
+                failed += generator.failed;
+            }
+            long dropped = 0;
+            long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            while (true) {
+                dropped = droppedCount();
+                // Sends that failed on a full queue are counted as dropped by the connection as well
+                if (recorder.getDelivered() + dropped >= sent + failed || System.nanoTime() > drainDeadline) {
+                    break;
+                }
+                Thread.sleep(1);
+            }
+            long allocated = allocatedBytes(threadBean) - allocatedBefore;
+            long deliveredInWindow = recorder.getDelivered() - deliveredBefore;
+            release.countDown();
+            for (Generator generator : threads) {
+                generator.join();
+            }
+
+            manager.close();
+            workerPool.shutdown();
+            workerPool.awaitTermination(10, TimeUnit.SECONDS);
+            report(recorder.summarize(), measureFrom, end, sent, failed, dropped, allocated, deliveredInWindow);
+        }
+
+        private void build(DispatchingConnectionManager manager) throws Exception {
+            if ("star".equals(topology)) {
+                manager.addEndpoint("aggregator", new Aggregator(this));
+                for (int i = 0; i < nodes; i++) {
+                    manager.addEndpoint("device" + i, new Device(this));
+                }
+                manager.autoConnect();
+                sources.addAll(sendingConnections);
+            } else if ("chain".equals(topology)) {
+                Topology.Builder links = Topology.create();
+                Source source = new Source(this);
+                manager.addEndpoint("source", source);
+                String previous = "source";
+                for (int i = 0; i < nodes; i++) {
+                    manager.addEndpoint("relay" + i, new Relay(this));
+                    links.link(previous, "out", "relay" + i, "in");
+                    previous = "relay" + i;
+                }
+                manager.addEndpoint("sink", new Sink(this));
+                links.link(previous, "out", "sink", "in");
+                checkApplied(manager.applyTopology(links.build()));
+                sources.add(source.out);
+            } else if ("mesh".equals(topology)) {
+                Topology.Builder links = Topology.create();
+                for (int i = 0; i < nodes; i++) {
+                    manager.addEndpoint("node" + i, new MeshNode(this));
+                    for (int j = 0; j < i; j++) {
+                        links.link("node" + i, "out", "node" + j, "in");
+                        links.link("node" + j, "out", "node" + i, "in");
+                    }
+                }
+                checkApplied(manager.applyTopology(links.build()));
+                sources.addAll(sendingConnections);
+            } else {
+                throw new IllegalArgumentException("Unknown topology " + topology);
+            }
+        }
+
+        private static void checkApplied(Topology refused) {
+            if (!refused.isEmpty()) {
+                throw new IllegalStateException("Links have been refused: " + refused);
+            }
+        }
+
+        private void sampleQueues() {
+            long total = 0;
+            for (Connection connection : sendingConnections) {
+                if (connection instanceof BoundedConnection) {
+                    int depth = ((BoundedConnection) connection).getQueueDepth();
+                    total += depth;
+                    maxConnectionDepth = Math.max(maxConnectionDepth, depth);
+                }
+            }
+            maxTotalDepth = Math.max(maxTotalDepth, total);
+            queueDepthSum += total;
+            queueSamples++;
+        }
+
+        private long droppedCount() {
+            long dropped = 0;
+            for (Connection connection : sendingConnections) {
+                if (connection instanceof BoundedConnection) {
+                    dropped += ((BoundedConnection) connection).getDroppedCount();
+                }
+            }
+            return dropped;
+        }
+
+        /**
+         * @return The bytes that have been allocated by all live threads, or -1 when the JVM does not support this
+         */
+        private static long allocatedBytes(ThreadMXBean threadBean) {
+            if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+                return -1;
+            }
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+            if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+                return -1;
+            }
+            long total = 0;
+            for (long allocated : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+                if (allocated > 0) {
+                    total += allocated;
+                }
+            }
+            return total;
+        }
+
+        private void report(Summary summary,
+                            long measureFrom,
+                            long end,
+                            long sent,
+                            long failed,
+                            long dropped,
+                            long allocated,
+                            long deliveredInWindow) {
+            long measured = summary.corrected.getCount();
+            double seconds = (Math.max(end, summary.lastDeliveryNanos) - measureFrom) / NANOS_PER_SECOND;
+            System.out.printf("rate            : %s, %d bytes payload, %d workers, %d generators%n",
+                              rate > 0 ? (long) rate + " msg/s" : "unthrottled",
+                              size,
+                              workers,
+                              generators);
+            System.out.printf("throughput      : %.0f msg/s delivered (%d messages in %.2f s)%n",
+                              measured / seconds,
+                              measured,
+                              seconds);
+            System.out.printf("sent            : %d, %d failed on a full queue, %d dropped in total%n",
+                              sent + failed,
+                              failed,
+                              dropped);
+            printLatencies("latency         ", summary.corrected);
+            printLatencies("latency of send ", summary.uncorrected);
+            if (allocated >= 0 && deliveredInWindow > 0) {
+                System.out.printf("allocation      : %.0f bytes per delivered message%n",
+                                  (double) allocated / deliveredInWindow);
+            }
+            if (queueSamples > 0) {
+                System.out.printf("queue depth     : mean %.1f, max %d in total, max %d per connection%n",
+                                  (double) queueDepthSum / queueSamples,
+                                  maxTotalDepth,
+                                  maxConnectionDepth);
+            }
+        }
+
+        private static void printLatencies(String name, Histogram.Snapshot histogram) {
+            StringBuilder line = new StringBuilder(name).append(':');
+            for (double percentile : PERCENTILES) {
+                line.append(String.format(" p%s=%.1f", formatPercentile(percentile),
+                                          histogram.getValueAtPercentile(percentile) / NANOS_PER_MICRO));
+            }
+            line.append(String.format(" max=%.1f us", histogram.getMax() / NANOS_PER_MICRO));
+            System.out.println(line);
+        }
+
+        private static String formatPercentile(double percentile) {
+            return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        new LoadTest(options).run();
+    }
+}
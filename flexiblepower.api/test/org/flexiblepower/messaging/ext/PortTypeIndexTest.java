@@ -0,0 +1,131 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.Endpoint;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.Port;
+import org.flexiblepower.messaging.Ports;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PortTypeIndexTest {
+    abstract static class NoConnections implements Endpoint {
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            return null;
+        }
+    }
+
+    @Ports({ @Port(name = "numbers", sends = Integer.class, accepts = Number.class),
+            @Port(name = "text", sends = String.class),
+            @Port(name = "arrays", sends = String[].class),
+            @Port(name = "declaration") })
+    static class A extends NoConnections {
+    }
+
+    @Ports({ @Port(name = "numbers", sends = Double.class, accepts = Integer.class),
+            @Port(name = "any", accepts = Object.class),
+            @Port(name = "serializable", accepts = Serializable.class, sends = Long.class),
+            @Port(name = "objects", accepts = Object[].class) })
+    static class B extends NoConnections {
+    }
+
+    @Ports({ @Port(name = "numbers", sends = { Integer.class, Double.class }, accepts = Number.class),
+            @Port(name = "sink", accepts = CharSequence.class),
+            @Port(name = "other", sends = Boolean.class, accepts = Boolean.class) })
+    static class C extends NoConnections {
+    }
+
+    private DispatchingConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        manager = DispatchingConnectionManager.create(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }).build();
+    }
+
+    /**
+     * Compares the potential connections with the ones that are found by comparing all ports with each other.
+     */
+    private void assertAllMatches() {
+        Set<String> expected = new HashSet<String>();
+        Set<String> actual = new HashSet<String>();
+        for (ManagedEndpointImpl endpoint : manager.getEndpoints().values()) {
+            for (EndpointPortImpl port : endpoint.getPorts().values()) {
+                actual.addAll(port.getPotentialConnections().keySet());
+                for (ManagedEndpointImpl other : manager.getEndpoints().values()) {
+                    if (other == endpoint) {
+                        continue;
+                    }
+                    for (EndpointPortImpl otherPort : other.getPorts().values()) {
+                        if (EndpointPortImpl.matches(port.getPortDefinition(), otherPort.getPortDefinition())) {
+                            expected.add(PotentialConnectionImpl.idOf(port, otherPort));
+                        }
+                    }
+                }
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSameAsComparingAllPorts() {
+        manager.addEndpoint("a1", new A());
+        manager.addEndpoint("b1", new B());
+        assertAllMatches();
+        manager.addEndpoint("c1", new C());
+        manager.addEndpoint("a2", new A());
+        manager.addEndpoint("c2", new C());
+        assertAllMatches();
+        assertTrue(manager.getEndpoint("a1").getPort("text").getPotentialConnections().containsKey("a1:text-c1:sink"));
+        assertTrue(manager.getEndpoint("a1")
+                          .getPort("arrays")
+                          .getPotentialConnections()
+                          .containsKey("a1:arrays-b1:objects"));
+
+        manager.removeEndpoint("b1");
+        manager.removeEndpoint("a2");
+        assertAllMatches();
+        manager.addEndpoint("b1", new B());
+        assertAllMatches();
+    }
+
+    @Test
+    public void testSnapshots() {
+        manager.addEndpoint("a1", new A());
+        assertSame(manager.getEndpoints(), manager.getEndpoints());
+        EndpointPortImpl port = (EndpointPortImpl) manager.getEndpoint("a1").getPort("numbers");
+        assertSame(port.getPotentialConnections(), port.getPotentialConnections());
+        assertEquals(0, port.getPotentialConnections().size());
+
+        manager.addEndpoint("b1", new B());
+        assertEquals(2, manager.getEndpoints().size());
+        // b1:numbers, b1:any and b1:serializable
+        assertEquals(3, port.getPotentialConnections().size());
+    }
+
+    @Test
+    public void testSuperTypes() {
+        Set<Class<?>> superTypes = PortTypeIndex.superTypesOf(Integer.class);
+        assertTrue(superTypes.contains(Number.class));
+        assertTrue(superTypes.contains(Comparable.class));
+        assertTrue(superTypes.contains(Serializable.class));
+        assertTrue(superTypes.contains(Object.class));
+        assertTrue(PortTypeIndex.superTypesOf(Runnable.class).contains(Object.class));
+        assertTrue(PortTypeIndex.superTypesOf(String[].class).contains(CharSequence[].class));
+        assertTrue(PortTypeIndex.superTypesOf(String[].class).contains(Object[].class));
+    }
+}
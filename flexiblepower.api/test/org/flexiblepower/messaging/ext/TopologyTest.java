@@ -0,0 +1,180 @@
+package org.flexiblepower.messaging.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.flexiblepower.messaging.BoundedConnection;
+import org.flexiblepower.messaging.Connection;
+import org.flexiblepower.messaging.ConnectionManager.PotentialConnection;
+import org.flexiblepower.messaging.ConnectionManagerException;
+import org.flexiblepower.messaging.MessageHandler;
+import org.flexiblepower.messaging.ext.Topology.Link;
+import org.junit.Test;
+
+public class TopologyTest extends ConnectionManagerFixture {
+    static class RecordingController extends Controller {
+        final AtomicInteger disconnects = new AtomicInteger();
+        final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+
+        @Override
+        public MessageHandler onConnect(Connection connection) {
+            connections.add(connection);
+            return this;
+        }
+
+        @Override
+        public void disconnected() {
+            disconnects.incrementAndGet();
+        }
+    }
+
+    private boolean isConnected(String devicePid) {
+        for (PotentialConnection connection : manager.getEndpoint(devicePid)
+                                                     .getPort("controller")
+                                                     .getPotentialConnections()
+                                                     .values()) {
+            if (connection.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Topology topology = Topology.create()
+                                    .link("device", "controller", "controller", "devices")
+                                    .link("controller", "devices", "device", "controller")
+                                    .link("b", "x", "a", "y")
+                                    .build();
+        assertEquals(2, topology.size());
+        Link link = Topology.create().link("b", "x", "a", "y").build().getLinks().iterator().next();
+        assertEquals("a", link.getOnePid());
+        assertEquals("y", link.getOnePort());
+
+        StringWriter writer = new StringWriter();
+        topology.writeTo(writer);
+        assertEquals(topology, Topology.readFrom(new StringReader(writer.toString())));
+
+        try {
+            Topology.readFrom(new StringReader("a\tb\tc\n"));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            Topology.readFrom(new StringReader("a\\q\tb\tc\td\n"));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected, \\q is not a valid escape
+        }
+    }
+
+    @Test
+    public void testWriteAndReadSpecialNames() throws IOException {
+        Topology topology = Topology.create()
+                                    .link("#a", "x\ty", "b#", "line\nbreak")
+                                    .link("c\\d", "\r", "", "\\#")
+                                    .build();
+        StringWriter writer = new StringWriter();
+        topology.writeTo(writer);
+        assertEquals(3, writer.toString().split("\n").length);
+        assertEquals(topology, Topology.readFrom(new StringReader(writer.toString())));
+    }
+
+    @Test
+    public void testSnapshotWithSpecialPids() throws Exception {
+        manager.addEndpoint("#device", new Device());
+        manager.addEndpoint("controller\t1", new Controller());
+        Topology topology = Topology.create().link("#device", "controller", "controller\t1", "devices").build();
+        assertTrue(manager.applyTopology(topology).isEmpty());
+        assertEquals(topology, manager.getTopology());
+
+        StringWriter writer = new StringWriter();
+        manager.getTopology().writeTo(writer);
+        assertEquals(topology, Topology.readFrom(new StringReader(writer.toString())));
+    }
+
+    @Test
+    public void testApplyAndSnapshot() throws Exception {
+        Topology.Builder builder = Topology.create();
+        manager.addEndpoint("controller", new Controller());
+        for (int i = 0; i < 200; i++) {
+            manager.addEndpoint("device" + i, new Device());
+            builder.link("device" + i, "controller", "controller", "devices");
+        }
+        Topology topology = builder.build();
+
+        assertTrue(manager.applyTopology(topology).isEmpty());
+        for (int i = 0; i < 200; i++) {
+            assertTrue(isConnected("device" + i));
+        }
+        assertEquals(topology, manager.getTopology());
+
+        // Applying it again changes nothing
+        assertTrue(manager.applyTopology(manager.getTopology()).isEmpty());
+        assertEquals(topology, manager.getTopology());
+    }
+
+    @Test
+    public void testInvalidTopology() throws Exception {
+        manager.addEndpoint("device", new Device());
+        manager.addEndpoint("controller1", new Controller());
+        manager.addEndpoint("controller2", new Controller());
+        Topology topology = Topology.create()
+                                    .link("device", "controller", "controller1", "devices")
+                                    .link("device", "controller", "controller2", "devices")
+                                    .link("unknown", "controller", "controller1", "devices")
+                                    .build();
+        try {
+            manager.applyTopology(topology);
+            fail("Expected a ConnectionManagerException");
+        } catch (ConnectionManagerException e) {
+            assertTrue(e.getMessage().contains("unknown"));
+            assertTrue(e.getMessage().contains("more than one connection"));
+        }
+        assertFalse(isConnected("device"));
+        assertTrue(manager.getTopology().isEmpty());
+    }
+
+    @Test
+    public void testRefusedLink() throws Exception {
+        RecordingController controller = new RecordingController();
+        manager.addEndpoint("accepting", new Device());
+        manager.addEndpoint("refusing", new Device() {
+            @Override
+            public MessageHandler onConnect(Connection connection) {
+                return null;
+            }
+        });
+        manager.addEndpoint("controller", controller);
+
+        Topology refused = manager.applyTopology(Topology.create()
+                                                         .link("accepting", "controller", "controller", "devices")
+                                                         .link("refusing", "controller", "controller", "devices")
+                                                         .build());
+        assertEquals(Topology.create().link("refusing", "controller", "controller", "devices").build(), refused);
+        assertEquals(1, controller.disconnects.get());
+        assertEquals(2, controller.connections.size());
+        for (Connection connection : controller.connections) {
+            BoundedConnection bounded = (BoundedConnection) connection;
+            boolean toRefusing = bounded.toString().contains("refusing");
+            assertEquals(!toRefusing, bounded.trySendMessage("message"));
+        }
+        assertEquals(Topology.create().link("accepting", "controller", "controller", "devices").build(),
+                     manager.getTopology());
+
+        // The refused link can still be connected later
+        assertTrue(manager.getEndpoint("refusing").getPort("controller").getPotentialConnections().values()
+                          .iterator().next().isConnectable());
+    }
+}
@@ -0,0 +1,43 @@
+package org.flexiblepower.time;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+import javax.measure.unit.NonSI;
+import javax.measure.unit.SI;
+
+import org.junit.Test;
+
+public class TimeUtilTest {
+    @Test
+    public void testToMillis() {
+        assertEquals(1500, TimeUtil.toMillis(Measure.valueOf(1500, TimeUtil.MS)));
+        assertEquals(1500, TimeUtil.toMillis(Measure.valueOf(1500L, SI.MILLI(SI.SECOND))));
+        assertEquals(1500, TimeUtil.toMillis(Measure.valueOf(1.5, SI.SECOND)));
+        assertEquals(90000, TimeUtil.toMillis(Measure.valueOf(1.5, NonSI.MINUTE)));
+        assertEquals(0, TimeUtil.toMillis(TimeUtil.ZERO));
+    }
+
+    @Test
+    public void testPrimitiveOverloads() {
+        Date start = new Date(1000000);
+        assertEquals(TimeUtil.add(start, Measure.valueOf(2, SI.SECOND)).getTime(),
+                     TimeUtil.add(1000000, Measure.valueOf(2, SI.SECOND)));
+        assertEquals(TimeUtil.subtract(start, Measure.valueOf(2, SI.SECOND)).getTime(),
+                     TimeUtil.subtract(1000000, Measure.valueOf(2, SI.SECOND)));
+        assertEquals(2500, TimeUtil.difference(1000, 3500).longValue(TimeUtil.MS));
+    }
+
+    @Test
+    public void testTimeUnit() {
+        assertEquals(90, TimeUtil.toTimeUnit(Measure.valueOf(1.5, NonSI.HOUR), TimeUnit.MINUTES));
+        assertEquals(1500000, TimeUtil.toTimeUnit(Measure.valueOf(1.5, SI.SECOND), TimeUnit.MICROSECONDS));
+        assertEquals(2, TimeUtil.toTimeUnit(Measure.valueOf(1.5, SI.SECOND), TimeUnit.SECONDS));
+        for (TimeUnit timeUnit : TimeUnit.values()) {
+            assertEquals(timeUnit.toMillis(3), TimeUtil.toMillis(TimeUtil.fromTimeUnit(3, timeUnit)));
+        }
+    }
+}